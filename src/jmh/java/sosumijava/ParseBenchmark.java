@@ -0,0 +1,85 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding of initClient responses with 1, 10 and 100 devices.
+ *
+ * @author tomasca
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int devices;
+    private String payload;
+    private String[] deviceJson;
+    private String[] locationJson;
+
+    @Setup
+    public void setUp() {
+        payload = Payloads.initClient(devices);
+        deviceJson = new String[devices];
+        locationJson = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            deviceJson[i] = Payloads.device(i);
+            String json = deviceJson[i];
+            int start = json.indexOf("\"location\":") + "\"location\":".length();
+            locationJson[i] = json.substring(start, json.indexOf('}', start) + 1);
+        }
+    }
+
+    /**
+     * The whole response, as decoded by a refresh.
+     */
+    @Benchmark
+    public List<DeviceInfo> initClientResponse() throws IOException {
+        return DeviceListParser.parse(new StringReader(payload));
+    }
+
+    /**
+     * The same response, keeping only one device.
+     */
+    @Benchmark
+    public List<DeviceInfo> initClientResponseFiltered() throws IOException {
+        return DeviceListParser.parse(new StringReader(payload), DeviceFilters.byName("Device 0"));
+    }
+
+    @Benchmark
+    public void deviceInfoFromJson(Blackhole bh) {
+        for (String json : deviceJson) {
+            bh.consume(DeviceInfo.fromJson(json));
+        }
+    }
+
+    @Benchmark
+    public void deviceLocationFromJson(Blackhole bh) {
+        for (String json : locationJson) {
+            bh.consume(DeviceLocation.fromJson(json));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * Realistic initClient payloads for the benchmarks, built from a captured
+ * response.
+ *
+ * @author tomasca
+ */
+final class Payloads {
+
+    private static final String DEVICE = "{\"canWipeAfterLock\":true,\"remoteWipe\":null,\"locFoundEnabled\":false,\"location\":{\"timeStamp\":1392159139870,\"locationType\":null,\"positionType\":\"GPS\",\"horizontalAccuracy\":10.0,\"locationFinished\":true,\"isInaccurate\":false,\"longitude\":12.01929723730405,\"latitude\":60.%1$06d,\"isOld\":false},\"deviceModel\":\"FifthGen\",\"remoteLock\":null,\"activationLocked\":true,\"locationEnabled\":true,\"rawDeviceModel\":\"iPhone4,1\",\"modelDisplayName\":\"iPhone\",\"lostModeCapable\":true,\"id\":\"KOODsac0121e/ASDcascasSDAS%1$06d\",\"deviceDisplayName\":\"iPhone 4s\",\"darkWake\":false,\"locationCapable\":true,\"maxMsgChar\":160,\"name\":\"Device %1$d\",\"batteryLevel\":0.1939275,\"features\":{\"CLT\":false,\"CWP\":false,\"WMG\":true,\"XRM\":false,\"CLK\":false,\"SND\":true,\"LST\":true,\"KEY\":false,\"WIP\":true,\"LOC\":true,\"LLC\":false,\"MSG\":true,\"LMG\":false,\"LCK\":true,\"REM\":false,\"SVP\":false,\"TEU\":true,\"LKL\":false,\"LKM\":false,\"PIN\":false,\"KPD\":false},\"deviceClass\":\"iPhone\",\"wipeInProgress\":false,\"passcodeLength\":4,\"mesg\":null,\"isMac\":false,\"snd\":null,\"isLocating\":true,\"trackingInfo\":null,\"deviceColor\":null,\"batteryStatus\":\"Charging\",\"deviceStatus\":\"203\",\"wipedTimestamp\":null,\"lockedTimestamp\":null,\"msg\":null,\"lostTimestamp\":\"\",\"lostModeEnabled\":false,\"thisDevice\":false,\"lostDevice\":null}";
+    private static final String CONTEXT = "\"userInfo\":{\"lastName\":\"Bar\",\"firstName\":\"Foo\"},\"userPreferences\":{\"touchPrefs\":{},\"activationProhibitedDevices\":{\"0000000000000000000000000000000000000000000000000\":\"111111111111111111\"},\"activationUpgradeEmailSent\":true,\"lastUpdatedTime\":1384881308761,\"builder\":null},\"serverContext\":{\"minTrackLocThresholdInMts\":100,\"prefsUpdateTime\":1384881308761,\"maxDeviceLoadTime\":60000,\"authToken\":\"ABABABABABABAB\",\"classicUser\":false,\"sessionLifespan\":900000,\"serverTimestamp\":1392159219259,\"enableMapStats\":true,\"imageBaseUrl\":\"https://statici.icloud.com\",\"deviceLoadStatus\":\"200\",\"preferredLanguage\":\"sv-se\",\"clientId\":\"0101010101010101010101011\",\"lastSessionExtensionTime\":null,\"trackInfoCacheDurationInSecs\":86400,\"isHSA\":false,\"timezone\":{\"tzCurrentName\":\"Pacific Standard Time\",\"previousTransition\":1383469199999,\"previousOffset\":-25200000,\"currentOffset\":-28800000,\"tzName\":\"America/Los_Angeles\"},\"callbackIntervalInMS\":2000,\"cloudUser\":true,\"validRegion\":true,\"maxLocatingTime\":90000,\"prsId\":121212121212,\"macCount\":0}";
+
+    private Payloads() {
+    }
+
+    /**
+     * @param index makes the name, id and latitude of the device unique
+     * @return the JSON of one device
+     */
+    static String device(int index) {
+        return String.format(DEVICE, index);
+    }
+
+    /**
+     * @param devices number of devices in the response
+     * @return an initClient response body
+     */
+    static String initClient(int devices) {
+        StringBuilder sb = new StringBuilder("{\"statusCode\":\"200\",\"content\":[");
+        for (int i = 0; i < devices; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(device(i));
+        }
+        return sb.append("],").append(CONTEXT).append('}').toString();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.Consts;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Construction of the requests made by postApiCall, without any I/O.
+ *
+ * @author tomasca
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+    private static final byte[] INIT_BODY = "{\"clientContext\":{\"appName\":\"FindMyiPhone\",\"appVersion\":\"3.0\"}}".getBytes(Consts.UTF_8);
+    private RequestTemplate template;
+    private DeviceInfo device;
+
+    @Setup
+    public void setUp() throws Exception {
+        template = new RequestTemplate(new URL("https://fmipmobile.icloud.com"), "user@example.com", "password", AccountEndpoint.UNKNOWN);
+        device = DeviceInfo.fromJson(Payloads.device(0));
+    }
+
+    @Benchmark
+    public HttpPost initClientRequest() {
+        return template.newPost("initClient", new ByteArrayEntity(INIT_BODY), true);
+    }
+
+    @Benchmark
+    public HttpPost sendMessageRequest() {
+        return template.newPost("sendMessage", Sosumi.writeMessage(device, "A text message \"quoted\"", "A subject", false).toEntity(), true);
+    }
+
+    @Benchmark
+    public RequestTemplate endpointChange() throws Exception {
+        return template.withEndpoint(new AccountEndpoint(new URL("https://p01-fmipmobile.icloud.com"), "scope"));
+    }
+}
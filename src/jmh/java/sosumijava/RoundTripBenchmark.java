@@ -0,0 +1,95 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full API calls against a {@link LocalTestServer}, as in SosumiTest. The
+ * account is created per call for locateDevice, so that every locate makes
+ * an initClient call instead of using the last snapshot.
+ *
+ * @author tomasca
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int devices;
+    private LocalTestServer server;
+    private String url;
+    private SosumiTransport transport;
+    private Sosumi sosumi;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final String payload = Payloads.initClient(devices);
+        server = new LocalTestServer(null, null);
+        server.register("/*", new HttpRequestHandler() {
+            public void handle(HttpRequest req, HttpResponse resp, HttpContext context) throws HttpException, IOException {
+                if (req.getRequestLine().getUri().endsWith("/sendMessage")) {
+                    resp.setEntity(new StringEntity("{\"statusCode\":\"200\"}", ContentType.APPLICATION_JSON));
+                } else {
+                    resp.setEntity(new StringEntity(payload, ContentType.APPLICATION_JSON));
+                }
+                resp.setStatusCode(200);
+            }
+        });
+        server.start();
+        url = "http://" + server.getServiceAddress().getHostName() + ":" + server.getServiceAddress().getPort();
+        transport = new BlockingTransport(HttpClients.createDefault());
+        sosumi = new Sosumi(url, "user", "pass", transport, Sosumi.sharedScheduler());
+        sosumi.refresh(DeviceFilter.ALL);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        transport.close();
+        server.stop();
+    }
+
+    @Benchmark
+    public DeviceLocation locateDevice() throws Exception {
+        return new Sosumi(url, "user", "pass", transport, Sosumi.sharedScheduler()).locateDevice("Device 0", 10);
+    }
+
+    @Benchmark
+    public DeviceSnapshot refresh() throws Exception {
+        return sosumi.refresh(DeviceFilter.ALL);
+    }
+
+    @Benchmark
+    public void sendMessage() throws Exception {
+        sosumi.sendMessage("Device 0", "A text message", "A subject", false);
+    }
+}
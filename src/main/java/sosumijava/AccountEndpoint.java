@@ -0,0 +1,66 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.net.URL;
+
+/**
+ * Partition and scope of an account as learned from the X-Apple-MMe-Host and
+ * X-Apple-MMe-Scope headers of a 330 response. Immutable, so that partition
+ * and scope are always published together.
+ *
+ * @author tomasca
+ */
+public final class AccountEndpoint {
+
+    static final AccountEndpoint UNKNOWN = new AccountEndpoint(null, null);
+
+    private final URL partition;
+    private final String scope;
+
+    /**
+     *
+     * @param partition the partition host, or null if not known
+     * @param scope the account scope, or null if not known
+     */
+    public AccountEndpoint(URL partition, String scope) {
+        this.partition = partition;
+        this.scope = scope;
+    }
+
+    /**
+     * @return the partition host, or null if not yet known
+     */
+    public URL getPartition() {
+        return partition;
+    }
+
+    /**
+     * @return the account scope, or null if not yet known
+     */
+    public String getScope() {
+        return scope;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof AccountEndpoint)) {
+            return false;
+        }
+        AccountEndpoint other = (AccountEndpoint) obj;
+        return (partition == null ? other.partition == null : partition.toExternalForm().equals(other.partition == null ? null : other.partition.toExternalForm()))
+                && (scope == null ? other.scope == null : scope.equals(other.scope));
+    }
+
+    @Override
+    public int hashCode() {
+        return (partition != null ? partition.toExternalForm().hashCode() : 0) * 31 + (scope != null ? scope.hashCode() : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "AccountEndpoint{" + "partition=" + partition + ", scope=" + scope + '}';
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * The FMIP API functions called by this client.
+ *
+ * @author tomasca
+ */
+public enum ApiFunction {
+
+    INIT_CLIENT("initClient"),
+    SEND_MESSAGE("sendMessage");
+
+    private final String path;
+
+    private ApiFunction(String path) {
+        this.path = path;
+    }
+
+    /**
+     * @return the last segment of the URL of the function
+     */
+    public String getPath() {
+        return path;
+    }
+}
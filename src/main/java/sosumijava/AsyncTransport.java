@@ -0,0 +1,108 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Non-blocking transport on the Apache HttpAsyncClient. Requests in flight
+ * do not hold any thread, so a handful of I/O threads can serve thousands of
+ * concurrent polls and messages. Responses are buffered in memory and the
+ * handler runs on an I/O thread.
+ *
+ * @author tomasca
+ */
+public class AsyncTransport implements SosumiTransport {
+
+    private final CloseableHttpAsyncClient httpclient;
+
+    /**
+     * Create a transport on a default async client.
+     */
+    public AsyncTransport() {
+        this(HttpAsyncClients.createDefault());
+    }
+
+    /**
+     * @param httpclient the client executing the requests. It is started if
+     * it is not already running.
+     */
+    public AsyncTransport(CloseableHttpAsyncClient httpclient) {
+        this.httpclient = httpclient;
+        if (!httpclient.isRunning()) {
+            httpclient.start();
+        }
+    }
+
+    @Override
+    public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException {
+        CompletableFuture<T> future = executeAsync(request, handler);
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for response", ex);
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<T> executeAsync(HttpUriRequest request, final ResponseHandler<? extends T> handler) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        final Future<HttpResponse> call = httpclient.execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                try {
+                    result.complete(handler.handleResponse(response));
+                } catch (IOException ex) {
+                    result.completeExceptionally(ex);
+                } catch (RuntimeException ex) {
+                    result.completeExceptionally(ex);
+                } finally {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                result.completeExceptionally(ex);
+            }
+
+            @Override
+            public void cancelled() {
+                result.cancel(false);
+            }
+        });
+        result.whenComplete((r, t) -> {
+            if (result.isCancelled()) {
+                call.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpclient.close();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Transport on the blocking Apache HttpClient. Asynchronous calls occupy a
+ * thread of the executor while the request is in flight, so by default the
+ * executor has no more threads than the client has connections; further
+ * calls wait in its queue.
+ *
+ * @author tomasca
+ */
+public class BlockingTransport implements SosumiTransport {
+
+    /**
+     * Maximum number of concurrent calls by default, the default maximum
+     * number of connections of an Apache HttpClient.
+     */
+    public static final int DEFAULT_MAX_CONCURRENCY = 20;
+    private final CloseableHttpClient httpclient;
+    private final Executor executor;
+    // the executor created by this transport, or null if given one
+    private final ThreadPoolExecutor ownExecutor;
+
+    /**
+     * @param httpclient the client executing the requests, with at most
+     * {@link #DEFAULT_MAX_CONCURRENCY} connections
+     */
+    public BlockingTransport(CloseableHttpClient httpclient) {
+        this(httpclient, DEFAULT_MAX_CONCURRENCY);
+    }
+
+    /**
+     * @param httpclient the client executing the requests
+     * @param maxConcurrency maximum number of asynchronous calls in flight,
+     * normally the maximum number of connections of the client
+     */
+    public BlockingTransport(CloseableHttpClient httpclient, int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        this.httpclient = httpclient;
+        this.ownExecutor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("sosumi-io"));
+        this.ownExecutor.allowCoreThreadTimeOut(true);
+        this.executor = ownExecutor;
+    }
+
+    /**
+     * @param httpclient the client executing the requests
+     * @param executor executor running asynchronous calls. It should not run
+     * more calls at a time than the client has connections.
+     */
+    public BlockingTransport(CloseableHttpClient httpclient, Executor executor) {
+        this.httpclient = httpclient;
+        this.executor = executor;
+        this.ownExecutor = null;
+    }
+
+    /**
+     * Follow a change of the size of the connection pool. Has no effect when
+     * the transport was given an executor.
+     *
+     * @param maxConcurrency maximum number of asynchronous calls in flight
+     */
+    void setMaxConcurrency(int maxConcurrency) {
+        if (ownExecutor == null) {
+            return;
+        }
+        if (maxConcurrency > ownExecutor.getMaximumPoolSize()) {
+            ownExecutor.setMaximumPoolSize(maxConcurrency);
+            ownExecutor.setCorePoolSize(maxConcurrency);
+        } else {
+            ownExecutor.setCorePoolSize(maxConcurrency);
+            ownExecutor.setMaximumPoolSize(maxConcurrency);
+        }
+    }
+
+    @Override
+    public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException {
+        return httpclient.execute(request, handler);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> executeAsync(final HttpUriRequest request, final ResponseHandler<? extends T> handler) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        executor.execute(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                result.complete(httpclient.execute(request, handler));
+            } catch (IOException ex) {
+                result.completeExceptionally(ex);
+            } catch (RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+        result.whenComplete((r, t) -> {
+            if (result.isCancelled()) {
+                // unblocks the executing thread and releases its connection
+                request.abort();
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+        httpclient.close();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.entity.ByteArrayEntity;
+
+/**
+ * The gzip and deflate content codings negotiated with the FMIP service.
+ * Responses are decoded as they are read, so the decoded payload is never
+ * held in memory as a whole.
+ *
+ * @author tomasca
+ */
+final class ContentCoding {
+
+    /**
+     * Value of the Accept-Encoding header of requests accepting compressed
+     * responses.
+     */
+    static final String ACCEPTED = "gzip, deflate";
+    // smaller bodies do not shrink enough to pay for the gzip header
+    static final int MIN_COMPRESSED_LENGTH = 256;
+    private static final int BUFFER_SIZE = 8192;
+
+    private ContentCoding() {
+    }
+
+    /**
+     * Open the content of a response entity, decoding it as told by its
+     * Content-Encoding. The caller must close the stream.
+     *
+     * @param entity the response entity
+     * @return the decoded content
+     * @throws IOException if the content could not be read, or is encoded
+     * with an unsupported coding
+     */
+    static InputStream decode(HttpEntity entity) throws IOException {
+        InputStream in = entity.getContent();
+        Header header = entity.getContentEncoding();
+        if (header == null) {
+            return in;
+        }
+        String coding = header.getValue().trim().toLowerCase(Locale.ROOT);
+        try {
+            switch (coding) {
+                case "":
+                case "identity":
+                    return in;
+                case "gzip":
+                case "x-gzip":
+                    return new GZIPInputStream(in, BUFFER_SIZE);
+                case "deflate":
+                    // both the zlib format and raw deflate are seen in the wild
+                    return new DeflateInputStream(in);
+                default:
+                    throw new ClientProtocolException("Unsupported Content-Encoding: " + header.getValue());
+            }
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Compress a request body with gzip. Bodies that are small, already
+     * encoded or not repeatable are returned as they are. The compressed
+     * body is repeatable, so the call can be retried.
+     *
+     * @param body the request body
+     * @return the compressed body, or the body itself
+     * @throws IOException if the body could not be read
+     */
+    static HttpEntity compress(HttpEntity body) throws IOException {
+        long length = body.getContentLength();
+        if (length < MIN_COMPRESSED_LENGTH || length > Integer.MAX_VALUE
+                || !body.isRepeatable() || body.getContentEncoding() != null) {
+            return body;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) length / 2);
+        GZIPOutputStream out = new GZIPOutputStream(bytes, BUFFER_SIZE);
+        try {
+            body.writeTo(out);
+        } finally {
+            out.close();
+        }
+        ByteArrayEntity compressed = new ByteArrayEntity(bytes.toByteArray());
+        compressed.setContentType(body.getContentType());
+        compressed.setContentEncoding("gzip");
+        return compressed;
+    }
+}
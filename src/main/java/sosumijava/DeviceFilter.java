@@ -0,0 +1,40 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * Selects the devices to decode during a refresh. Devices that are not
+ * accepted are skipped in the response stream and keep their previous state
+ * in the device snapshot.
+ *
+ * @see DeviceFilters
+ * @author tomasca
+ */
+public interface DeviceFilter {
+
+    /**
+     * Accepts every device.
+     */
+    DeviceFilter ALL = new DeviceFilter() {
+        @Override
+        public boolean accept(String deviceName, String deviceId) {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "DeviceFilter.ALL";
+        }
+    };
+
+    /**
+     * @param deviceName name of the device, or null if the service did not
+     * report one
+     * @param deviceId FMIP id of the device, or null if the service did not
+     * report one
+     * @return true if the device should be decoded
+     */
+    boolean accept(String deviceName, String deviceId);
+}
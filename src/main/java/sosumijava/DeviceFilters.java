@@ -0,0 +1,81 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Factory methods for common device filters.
+ *
+ * @author tomasca
+ */
+public final class DeviceFilters {
+
+    private DeviceFilters() {
+    }
+
+    /**
+     * @param deviceNames names of the devices to accept
+     * @return a filter accepting devices by name
+     */
+    public static DeviceFilter byName(Collection<String> deviceNames) {
+        return new SetFilter(deviceNames, false);
+    }
+
+    public static DeviceFilter byName(String... deviceNames) {
+        return byName(Arrays.asList(deviceNames));
+    }
+
+    /**
+     * @param deviceIds FMIP ids of the devices to accept
+     * @return a filter accepting devices by id
+     */
+    public static DeviceFilter byId(Collection<String> deviceIds) {
+        return new SetFilter(deviceIds, true);
+    }
+
+    public static DeviceFilter byId(String... deviceIds) {
+        return byId(Arrays.asList(deviceIds));
+    }
+
+    private static final class SetFilter implements DeviceFilter {
+
+        private final Set<String> values;
+        private final boolean matchId;
+
+        SetFilter(Collection<String> values, boolean matchId) {
+            this.values = Collections.unmodifiableSet(new HashSet<String>(values));
+            this.matchId = matchId;
+        }
+
+        @Override
+        public boolean accept(String deviceName, String deviceId) {
+            return values.contains(matchId ? deviceId : deviceName);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SetFilter)) {
+                return false;
+            }
+            SetFilter other = (SetFilter) obj;
+            return matchId == other.matchId && values.equals(other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return values.hashCode() * 31 + (matchId ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return "SetFilter{" + (matchId ? "ids=" : "names=") + values + '}';
+        }
+    }
+}
@@ -4,39 +4,154 @@
  */
 package sosumijava;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * A device as reported by the FMIP service. Instances are immutable and
+ * compact, since the latest state of every device of a large fleet is kept
+ * in memory: the location is stored inline as primitives, and the device
+ * class and battery status strings are shared between devices. A refresh
+ * reuses the previous instance of a device that did not change.
  *
  * @author tomasca
  */
 public class DeviceInfo {
 
+    // device classes and battery statuses come from a small set
+    private static final int MAX_SHARED_VALUES = 256;
+    private static final ConcurrentMap<String, String> SHARED_VALUES = new ConcurrentHashMap<String, String>();
+
     public static DeviceInfo fromJson(String json) {
+        try {
+            return fromJson(new JsonReader(new StringReader(json)));
+        } catch (IOException ex) {
+            throw new JsonSyntaxException(ex);
+        }
+    }
 
-        JsonElement je = new JsonParser().parse(json);
-        JsonObject diObject = je.getAsJsonObject();
+    /**
+     * Read a device object from a stream positioned at its start. Fields that
+     * are not mapped are skipped without being materialized.
+     */
+    static DeviceInfo fromJson(JsonReader reader) throws IOException {
+        return fromJson(reader, DeviceFilter.ALL, DeviceSnapshot.EMPTY);
+    }
 
+    /**
+     * Read a device object from a stream positioned at its start. As soon as
+     * both name and id have been read the filter is consulted, and the rest
+     * of a rejected device is skipped without being decoded.
+     *
+     * @param previous snapshot holding the previous state of the device. If
+     * the device is unchanged, its previous instance is returned.
+     * @return the device, or null if it was rejected by the filter
+     */
+    static DeviceInfo fromJson(JsonReader reader, DeviceFilter filter, DeviceSnapshot previous) throws IOException {
         DeviceInfo di = new DeviceInfo();
-        di.deviceName = diObject.get("name").getAsString();
-        di.deviceClass = diObject.get("deviceClass").getAsString();
-        di.batteryLevel = diObject.get("batteryLevel").getAsDouble();
-        di.batteryStatus = diObject.get("batteryStatus").getAsString();
-        di.deviceId = diObject.get("id").getAsString();
-        JsonElement loc = diObject.get("location");
-        if (loc != null && !loc.isJsonNull()) {
-            di.deviceLocation = DeviceLocation.fromJson(loc.toString());
+        boolean decided = filter == DeviceFilter.ALL;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (name.equals("name")) {
+                di.deviceName = reader.nextString();
+            } else if (name.equals("deviceClass")) {
+                di.deviceClass = shared(reader.nextString());
+            } else if (name.equals("batteryLevel")) {
+                di.batteryLevel = reader.nextDouble();
+            } else if (name.equals("batteryStatus")) {
+                di.batteryStatus = shared(reader.nextString());
+            } else if (name.equals("id")) {
+                di.deviceId = reader.nextString();
+            } else if (name.equals("location")) {
+                di.readLocation(reader);
+            } else {
+                reader.skipValue();
+            }
+            if (!decided && di.deviceName != null && di.deviceId != null) {
+                if (!filter.accept(di.deviceName, di.deviceId)) {
+                    while (reader.hasNext()) {
+                        reader.skipValue();
+                    }
+                    reader.endObject();
+                    return null;
+                }
+                decided = true;
+            }
+        }
+        reader.endObject();
+        if (!decided && !filter.accept(di.deviceName, di.deviceId)) {
+            return null;
+        }
+        DeviceInfo old = di.deviceId != null ? previous.getById(di.deviceId) : null;
+        if (old != null) {
+            if (di.sameAs(old)) {
+                return old;
+            }
+            // keep a single copy of the strings that rarely change
+            di.deviceId = old.deviceId;
+            if (old.deviceName != null && old.deviceName.equals(di.deviceName)) {
+                di.deviceName = old.deviceName;
+            }
         }
         return di;
     }
+
+    private void readLocation(JsonReader reader) throws IOException {
+        hasLocation = true;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (name.equals("latitude")) {
+                latitude = reader.nextDouble();
+            } else if (name.equals("longitude")) {
+                longitude = reader.nextDouble();
+            } else if (name.equals("timeStamp")) {
+                timestamp = reader.nextLong();
+            } else if (name.equals("horizontalAccuracy")) {
+                horizontalAccuracy = (float) reader.nextDouble();
+            } else if (name.equals("locationFinished")) {
+                locationFinished = reader.nextBoolean();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static String shared(String value) {
+        String current = SHARED_VALUES.get(value);
+        if (current != null) {
+            return current;
+        }
+        if (SHARED_VALUES.size() >= MAX_SHARED_VALUES) {
+            return value;
+        }
+        current = SHARED_VALUES.putIfAbsent(value, value);
+        return current != null ? current : value;
+    }
+
     private String deviceName;
     private String deviceClass;
     private double batteryLevel;
     private String batteryStatus;
-    private DeviceLocation deviceLocation;
     private String deviceId;
+    private boolean hasLocation;
+    private boolean locationFinished;
+    private float horizontalAccuracy;
+    private double latitude;
+    private double longitude;
+    private long timestamp;
 
     public String getDeviceId() {
         return deviceId;
@@ -58,17 +173,50 @@ public class DeviceInfo {
         return batteryStatus;
     }
 
+    /**
+     * @return the location of the device, or null if it has not reported
+     * one. A new object is returned by every call.
+     */
     public DeviceLocation getDeviceLocation() {
-        return deviceLocation;
+        return hasLocation ? new DeviceLocation(latitude, longitude, horizontalAccuracy, timestamp, locationFinished) : null;
     }
 
     public boolean isLocationFinished() {
-        return deviceLocation != null ? deviceLocation.isLocationFinished() : false;
+        return locationFinished;
+    }
+
+    boolean hasLocation() {
+        return hasLocation;
+    }
+
+    long getLocationTimestamp() {
+        return timestamp;
+    }
+
+    double getLatitude() {
+        return latitude;
+    }
+
+    double getLongitude() {
+        return longitude;
+    }
+
+    private boolean sameAs(DeviceInfo other) {
+        return Objects.equals(deviceName, other.deviceName)
+                && Objects.equals(deviceClass, other.deviceClass)
+                && Double.compare(batteryLevel, other.batteryLevel) == 0
+                && Objects.equals(batteryStatus, other.batteryStatus)
+                && hasLocation == other.hasLocation
+                && locationFinished == other.locationFinished
+                && Float.compare(horizontalAccuracy, other.horizontalAccuracy) == 0
+                && Double.compare(latitude, other.latitude) == 0
+                && Double.compare(longitude, other.longitude) == 0
+                && timestamp == other.timestamp;
     }
 
     @Override
     public String toString() {
-        return "DeviceInfo{" + "deviceName=" + deviceName + ", deviceClass=" + deviceClass + ", batteryLevel=" + batteryLevel + ", batteryStatus=" + batteryStatus + ", deviceLocation=" + deviceLocation + ", deviceId=" + deviceId + '}';
+        return "DeviceInfo{" + "deviceName=" + deviceName + ", deviceClass=" + deviceClass + ", batteryLevel=" + batteryLevel + ", batteryStatus=" + batteryStatus + ", deviceLocation=" + getDeviceLocation() + ", deviceId=" + deviceId + '}';
     }
 
 }
@@ -0,0 +1,80 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * Streaming parser for initClient responses. The device list is read in a
+ * single pass straight into DeviceInfo objects; everything outside the
+ * content array is skipped without building a tree.
+ *
+ * @author tomasca
+ */
+final class DeviceListParser {
+
+    private static final Logger LOG = Logger.getLogger(DeviceListParser.class);
+
+    private DeviceListParser() {
+    }
+
+    /**
+     * @param in the response payload
+     * @return the devices in the content array, or null if the payload has no
+     * content array
+     */
+    static List<DeviceInfo> parse(Reader in) throws IOException {
+        return parse(in, DeviceFilter.ALL);
+    }
+
+    /**
+     * @param in the response payload
+     * @param filter selects the devices to decode, the others are skipped
+     * @return the accepted devices in the content array, or null if the
+     * payload has no content array
+     */
+    static List<DeviceInfo> parse(Reader in, DeviceFilter filter) throws IOException {
+        return parse(in, filter, DeviceSnapshot.EMPTY);
+    }
+
+    /**
+     * @param in the response payload
+     * @param filter selects the devices to decode, the others are skipped
+     * @param previous the devices before this response. Unchanged devices
+     * are returned as their previous instances.
+     * @return the accepted devices in the content array, or null if the
+     * payload has no content array
+     */
+    static List<DeviceInfo> parse(Reader in, DeviceFilter filter, DeviceSnapshot previous) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        List<DeviceInfo> devices = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("content")) {
+                devices = new ArrayList<DeviceInfo>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    DeviceInfo di = DeviceInfo.fromJson(reader, filter, previous);
+                    if (di != null) {
+                        devices.add(di);
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug(di);
+                        }
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return devices;
+    }
+}
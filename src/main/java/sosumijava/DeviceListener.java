@@ -0,0 +1,24 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * Receives the changes of a tracked device.
+ *
+ * @see Sosumi#track(String, DeviceListener)
+ * @author tomasca
+ */
+public interface DeviceListener {
+
+    /**
+     * Called when the location timestamp, coordinates, battery level or
+     * battery status of the device changed. Calls for one subscription are
+     * made one at a time, in order, never on the polling thread.
+     *
+     * @param previous the device as last reported, or null on the first call
+     * @param current the device now
+     */
+    void deviceChanged(DeviceInfo previous, DeviceInfo current);
+}
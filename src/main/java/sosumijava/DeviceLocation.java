@@ -4,9 +4,11 @@
  */
 package sosumijava;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.StringReader;
 
 /**
  *
@@ -15,17 +17,39 @@ import com.google.gson.JsonParser;
 public class DeviceLocation {
 
     static DeviceLocation fromJson(String json) {
+        try {
+            return fromJson(new JsonReader(new StringReader(json)));
+        } catch (IOException ex) {
+            throw new JsonSyntaxException(ex);
+        }
+    }
 
-        JsonElement je = new JsonParser().parse(json);
-        JsonObject jobj = je.getAsJsonObject();
-
+    /**
+     * Read a location object from a stream positioned at its start. Fields
+     * that are not mapped are skipped without being materialized.
+     */
+    static DeviceLocation fromJson(JsonReader reader) throws IOException {
         DeviceLocation dl = new DeviceLocation();
-        dl.latitude = jobj.get("latitude").getAsDouble();
-        dl.longitude = jobj.get("longitude").getAsDouble();
-        dl.timestamp = jobj.get("timeStamp").getAsLong();
-        dl.horizontalAccuracy = jobj.get("horizontalAccuracy").getAsFloat();
-        dl.locationFinished = jobj.get("locationFinished").getAsBoolean();
-
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (name.equals("latitude")) {
+                dl.latitude = reader.nextDouble();
+            } else if (name.equals("longitude")) {
+                dl.longitude = reader.nextDouble();
+            } else if (name.equals("timeStamp")) {
+                dl.timestamp = reader.nextLong();
+            } else if (name.equals("horizontalAccuracy")) {
+                dl.horizontalAccuracy = (float) reader.nextDouble();
+            } else if (name.equals("locationFinished")) {
+                dl.locationFinished = reader.nextBoolean();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
         return dl;
     }
     private double latitude;
@@ -34,6 +58,17 @@ public class DeviceLocation {
     private long timestamp;
     private boolean locationFinished;
 
+    private DeviceLocation() {
+    }
+
+    DeviceLocation(double latitude, double longitude, float horizontalAccuracy, long timestamp, boolean locationFinished) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.horizontalAccuracy = horizontalAccuracy;
+        this.timestamp = timestamp;
+        this.locationFinished = locationFinished;
+    }
+
     public double getLatitude() {
         return latitude;
     }
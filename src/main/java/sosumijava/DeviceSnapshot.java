@@ -0,0 +1,227 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable view of the devices on an account, merged from the refreshes of
+ * all devices and of some devices. Snapshots are replaced as a whole, so a
+ * reader holding one always sees a consistent set of devices without any
+ * locking.
+ * <p>
+ * Each device has its own fetch time. Only a refresh of all devices tells
+ * which devices exist, so a device missing from a snapshot is known not to
+ * exist only as of {@link #getListedAt()}.
+ *
+ * @author tomasca
+ */
+public final class DeviceSnapshot {
+
+    static final DeviceSnapshot EMPTY = new DeviceSnapshot(Collections.<DeviceInfo>emptyList(), 0L);
+
+    private final List<DeviceInfo> devices;
+    private final Map<String, DeviceInfo> byName;
+    private final Map<String, DeviceInfo> byId;
+    // fetch time of every device, by id
+    private final Map<String, Long> fetchedAtById;
+    private final long fetchedAt;
+    private final long listedAt;
+    private final long oldestFetchedAt;
+
+    /**
+     * A snapshot of a listing of all devices.
+     */
+    DeviceSnapshot(Collection<DeviceInfo> devices, long fetchedAt) {
+        this(devices, null, fetchedAt, fetchedAt);
+    }
+
+    /**
+     * @param fetchedAtById fetch time of every device, or null if all were
+     * fetched at {@code fetchedAt}
+     */
+    private DeviceSnapshot(Collection<DeviceInfo> devices, Map<String, Long> fetchedAtById, long fetchedAt, long listedAt) {
+        List<DeviceInfo> list = new ArrayList<DeviceInfo>(devices.size());
+        Map<String, DeviceInfo> names = new HashMap<String, DeviceInfo>(devices.size() * 2);
+        Map<String, DeviceInfo> ids = new HashMap<String, DeviceInfo>(devices.size() * 2);
+        Map<String, Long> times = new HashMap<String, Long>(devices.size() * 2);
+        long oldest = devices.isEmpty() ? fetchedAt : Long.MAX_VALUE;
+        for (DeviceInfo di : devices) {
+            // a device is listed once per id, while names may be shared by several devices
+            if (di.getDeviceId() != null && ids.containsKey(di.getDeviceId())) {
+                continue;
+            }
+            list.add(di);
+            ids.put(di.getDeviceId(), di);
+            if (!names.containsKey(di.getDeviceName())) {
+                names.put(di.getDeviceName(), di);
+            }
+            Long time = fetchedAtById != null ? fetchedAtById.get(di.getDeviceId()) : null;
+            long t = time != null ? time : fetchedAt;
+            times.put(di.getDeviceId(), t);
+            oldest = Math.min(oldest, t);
+        }
+        this.devices = Collections.unmodifiableList(list);
+        this.byName = names;
+        this.byId = ids;
+        this.fetchedAtById = times;
+        this.fetchedAt = fetchedAt;
+        this.listedAt = listedAt;
+        this.oldestFetchedAt = oldest;
+    }
+
+    /**
+     * Devices are not required to have unique names. When several devices
+     * share a name, the first one in the order of the service is returned.
+     *
+     * @param deviceName name of the device
+     * @return the device, or null if there is no device with that name
+     */
+    public DeviceInfo getByName(String deviceName) {
+        return byName.get(deviceName);
+    }
+
+    /**
+     * @param deviceId FMIP id of the device
+     * @return the device, or null if there is no device with that id
+     */
+    public DeviceInfo getById(String deviceId) {
+        return byId.get(deviceId);
+    }
+
+    /**
+     * @return all devices in the order they were returned by the service
+     */
+    public Collection<DeviceInfo> getDevices() {
+        return devices;
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    /**
+     * @return time (in milliseconds since epoch) of the latest refresh merged
+     * into the snapshot, of all devices or only some, or 0 if it has never
+     * been fetched
+     */
+    public long getFetchedAt() {
+        return fetchedAt;
+    }
+
+    /**
+     * @return time (in milliseconds since epoch) of the latest refresh of all
+     * devices merged into the snapshot, or 0 if all devices have never been
+     * listed and the snapshot may lack devices of the account
+     */
+    public long getListedAt() {
+        return listedAt;
+    }
+
+    /**
+     * @return time (in milliseconds since epoch) the least recently fetched
+     * device was fetched, or 0 if the snapshot has never been fetched
+     */
+    public long getOldestFetchedAt() {
+        return oldestFetchedAt;
+    }
+
+    /**
+     * A filtered refresh only fetches some of the devices, so devices of a
+     * snapshot may have been fetched at different times.
+     *
+     * @param deviceId FMIP id of the device
+     * @return time (in milliseconds since epoch) the device was fetched, or 0
+     * if the snapshot holds no such device
+     */
+    public long getFetchedAt(String deviceId) {
+        Long time = fetchedAtById.get(deviceId);
+        return time != null ? time : 0L;
+    }
+
+    /**
+     * Create a new snapshot from the result of a refresh. Each device fetched
+     * is replaced, unless the snapshot holds it from a refresh not started
+     * before this one. Devices accepted by the filter but no longer reported
+     * are dropped, unless reported by a refresh not started before this one; all other devices are kept
+     * as they are. A refresh of all devices started before the last listing
+     * merged is out of date, and leaves the snapshot as it is.
+     *
+     * @param fresh devices decoded by the refresh
+     * @param filter the filter used by the refresh
+     * @param fetchedAt time the refresh was started
+     * @return the merged snapshot, or this snapshot if nothing changed
+     */
+    DeviceSnapshot merge(Collection<DeviceInfo> fresh, DeviceFilter filter, long fetchedAt) {
+        boolean all = filter == DeviceFilter.ALL;
+        if (all && fetchedAt <= listedAt) {
+            return this;
+        }
+        Map<String, DeviceInfo> freshById = new HashMap<String, DeviceInfo>(fresh.size() * 2);
+        for (DeviceInfo di : fresh) {
+            if (!freshById.containsKey(di.getDeviceId())) {
+                freshById.put(di.getDeviceId(), di);
+            }
+        }
+        // a listing gives the order of the service, a filtered refresh keeps the order known
+        List<DeviceInfo> candidates = new ArrayList<DeviceInfo>(fresh.size() + devices.size());
+        if (all) {
+            candidates.addAll(fresh);
+            for (DeviceInfo di : devices) {
+                if (!freshById.containsKey(di.getDeviceId())) {
+                    candidates.add(di);
+                }
+            }
+        } else {
+            for (DeviceInfo di : devices) {
+                DeviceInfo replaced = freshById.get(di.getDeviceId());
+                candidates.add(replaced != null ? replaced : di);
+            }
+            for (DeviceInfo di : fresh) {
+                if (!byId.containsKey(di.getDeviceId())) {
+                    candidates.add(di);
+                }
+            }
+        }
+        List<DeviceInfo> merged = new ArrayList<DeviceInfo>(candidates.size());
+        Map<String, Long> times = new HashMap<String, Long>(candidates.size() * 2);
+        boolean changed = all || fetchedAt > this.fetchedAt;
+        for (DeviceInfo di : candidates) {
+            String id = di.getDeviceId();
+            long known = getFetchedAt(id);
+            DeviceInfo current = byId.get(id);
+            if (freshById.get(id) == di) {
+                if (current != null && known >= fetchedAt) {
+                    // reported by a refresh started later
+                    merged.add(current);
+                    times.put(id, known);
+                } else {
+                    merged.add(di);
+                    times.put(id, fetchedAt);
+                    changed = true;
+                }
+            } else if ((!all && !filter.accept(di.getDeviceName(), id)) || known >= fetchedAt) {
+                merged.add(di);
+                times.put(id, known);
+            } else {
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return this;
+        }
+        return new DeviceSnapshot(merged, times, Math.max(this.fetchedAt, fetchedAt), all ? fetchedAt : listedAt);
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceSnapshot{" + "devices=" + devices + ", fetchedAt=" + fetchedAt + ", listedAt=" + listedAt + '}';
+    }
+}
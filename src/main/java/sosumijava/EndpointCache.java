@@ -0,0 +1,36 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * Remembers the partition and scope of accounts, so that a new client for an
+ * account can go straight to its partition instead of being redirected by
+ * the FMIP host first. Implementations must be thread safe.
+ *
+ * @see InMemoryEndpointCache
+ * @see FileEndpointCache
+ * @author tomasca
+ */
+public interface EndpointCache {
+
+    /**
+     * @param username iCloud username (Apple ID)
+     * @return the cached endpoint, or null if none is cached
+     */
+    AccountEndpoint get(String username);
+
+    /**
+     * Called whenever a 330 response gives an account a new endpoint.
+     *
+     * @param username iCloud username (Apple ID)
+     * @param endpoint the new endpoint
+     */
+    void put(String username, AccountEndpoint endpoint);
+
+    /**
+     * @param username iCloud username (Apple ID)
+     */
+    void remove(String username);
+}
@@ -0,0 +1,126 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.log4j.Logger;
+
+/**
+ * Endpoint cache persisted in a properties file, so that partitions survive
+ * a restart. The file is loaded when the cache is created.
+ * <p>
+ * The file is only written by {@link #flush()} and {@link #close()}, which
+ * rewrite it atomically; nothing is written as endpoints are learned or
+ * dropped. Changes not flushed are lost if the process exits without
+ * closing the cache, so a long running application should also call
+ * {@link #flush()} periodically, for instance from a scheduled executor. A
+ * flush without changes does not touch the file.
+ *
+ * @author tomasca
+ */
+public class FileEndpointCache extends InMemoryEndpointCache implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(FileEndpointCache.class);
+    private static final char SEPARATOR = ' ';
+    private final File file;
+    private volatile boolean dirty;
+
+    /**
+     * @param file the file holding the cache. It is created on the first
+     * flush if it does not exist.
+     * @throws IOException if an existing file could not be read
+     */
+    public FileEndpointCache(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    @Override
+    public void put(String username, AccountEndpoint endpoint) {
+        if (!endpoint.equals(get(username))) {
+            super.put(username, endpoint);
+            dirty = true;
+        }
+    }
+
+    @Override
+    public void remove(String username) {
+        if (get(username) != null) {
+            super.remove(username);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Write the cache to its file if it has changed since it was loaded or
+     * last flushed.
+     *
+     * @throws IOException if the file could not be written
+     */
+    public synchronized void flush() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        Properties props = new Properties();
+        for (Map.Entry<String, AccountEndpoint> e : entries()) {
+            AccountEndpoint ep = e.getValue();
+            if (ep.getPartition() != null) {
+                props.setProperty(e.getKey(), ep.getPartition().toExternalForm() + (ep.getScope() != null ? SEPARATOR + ep.getScope() : ""));
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, "sosumi-java account endpoints");
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                dirty = true;
+                throw new IOException("Failed to replace " + file);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void load() throws IOException {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        for (String username : props.stringPropertyNames()) {
+            String value = props.getProperty(username);
+            int sep = value.indexOf(SEPARATOR);
+            try {
+                URL partition = new URL(sep >= 0 ? value.substring(0, sep) : value);
+                super.put(username, new AccountEndpoint(partition, sep >= 0 ? value.substring(sep + 1) : null));
+            } catch (MalformedURLException ex) {
+                LOG.warn("Ignoring cached endpoint for " + username + ": " + value);
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * An area that devices enter and exit, see {@link GeofenceEngine}.
+ * Distances are computed on a local flat projection of the fence, which is
+ * accurate for fences up to some hundred kilometers across. Fences may cross
+ * the antimeridian, in which case their longitude bounds extend past 180 or
+ * -180 degrees.
+ *
+ * @author tomasca
+ */
+public abstract class Geofence {
+
+    /**
+     * Whether a location is within a fence, given its accuracy.
+     */
+    public enum Containment {
+
+        /**
+         * The whole accuracy circle of the location is within the fence.
+         */
+        INSIDE,
+        /**
+         * The accuracy circle of the location crosses the fence boundary.
+         */
+        POSSIBLY_INSIDE,
+        /**
+         * The whole accuracy circle of the location is outside the fence.
+         */
+        OUTSIDE
+    }
+
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180.0;
+    private final String id;
+    final double minLatitude;
+    final double maxLatitude;
+    final double minLongitude;
+    final double maxLongitude;
+
+    Geofence(String id, double minLatitude, double maxLatitude, double minLongitude, double maxLongitude) {
+        this.id = id;
+        this.minLatitude = minLatitude;
+        this.maxLatitude = maxLatitude;
+        this.minLongitude = minLongitude;
+        this.maxLongitude = maxLongitude;
+    }
+
+    /**
+     * @param id identifies the fence in its engine
+     * @param latitude latitude of the center
+     * @param longitude longitude of the center
+     * @param radiusMeters radius of the circle
+     * @return a circular fence
+     */
+    public static Geofence circle(String id, double latitude, double longitude, double radiusMeters) {
+        return new Circle(id, latitude, longitude, radiusMeters);
+    }
+
+    /**
+     * @param id identifies the fence in its engine
+     * @param latitudes latitudes of the vertices
+     * @param longitudes longitudes of the vertices, in the same order. A
+     * polygon crossing the antimeridian continues past 180 or -180 degrees,
+     * e.g. from 179 to 181.
+     * @return a polygonal fence. The last vertex connects to the first.
+     */
+    public static Geofence polygon(String id, double[] latitudes, double[] longitudes) {
+        return new Polygon(id, latitudes, longitudes);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @param latitude latitude of the location
+     * @param longitude longitude of the location
+     * @param accuracyMeters radius of the accuracy circle of the location
+     * @return where the location is relative to this fence
+     */
+    public abstract Containment test(double latitude, double longitude, double accuracyMeters);
+
+    boolean containsBounds(double latitude, double longitude) {
+        if (latitude < minLatitude || latitude > maxLatitude) {
+            return false;
+        }
+        // degrees east of the western bound, in [0, 360)
+        double east = longitude - minLongitude;
+        east -= 360.0 * Math.floor(east / 360.0);
+        return east <= maxLongitude - minLongitude;
+    }
+
+    /**
+     * @return a longitude or difference of longitudes normalised into
+     * [-180, 180)
+     */
+    static double wrap(double degrees) {
+        return degrees - 360.0 * Math.floor((degrees + 180.0) / 360.0);
+    }
+
+    private static double metersPerDegreeLongitude(double latitude) {
+        return METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+    }
+
+    private static Containment classify(boolean inside, double boundaryDistance, double accuracyMeters) {
+        double accuracy = accuracyMeters > 0 ? accuracyMeters : 0;
+        if (inside) {
+            return boundaryDistance >= accuracy ? Containment.INSIDE : Containment.POSSIBLY_INSIDE;
+        }
+        return boundaryDistance > accuracy ? Containment.OUTSIDE : Containment.POSSIBLY_INSIDE;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" + id + '}';
+    }
+
+    private static final class Circle extends Geofence {
+
+        private final double latitude;
+        private final double longitude;
+        private final double radius;
+        private final double kx;
+
+        Circle(String id, double latitude, double longitude, double radius) {
+            this(id, latitude, longitude, radius, longitudeSpan(latitude, radius));
+        }
+
+        private Circle(String id, double latitude, double longitude, double radius, double span) {
+            super(id, Math.max(-90.0, latitude - radius / METERS_PER_DEGREE), Math.min(90.0, latitude + radius / METERS_PER_DEGREE),
+                    span < 180.0 ? longitude - span : -180.0, span < 180.0 ? longitude + span : 180.0);
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radius = radius;
+            this.kx = metersPerDegreeLongitude(latitude);
+        }
+
+        /**
+         * Half the width of the bounds in degrees. Near the poles a degree of
+         * longitude shrinks towards nothing, and a circle reaching a pole
+         * spans every longitude.
+         */
+        private static double longitudeSpan(double latitude, double radius) {
+            if (Math.abs(latitude) + radius / METERS_PER_DEGREE >= 90.0) {
+                return 360.0;
+            }
+            return Math.min(360.0, radius / metersPerDegreeLongitude(latitude));
+        }
+
+        @Override
+        public Containment test(double lat, double lon, double accuracyMeters) {
+            double dx = wrap(lon - longitude) * kx;
+            double dy = (lat - latitude) * METERS_PER_DEGREE;
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            return classify(distance <= radius, Math.abs(radius - distance), accuracyMeters);
+        }
+    }
+
+    private static final class Polygon extends Geofence {
+
+        private final double originLatitude;
+        private final double originLongitude;
+        private final double kx;
+        // vertices in meters from the origin
+        private final double[] xs;
+        private final double[] ys;
+
+        Polygon(String id, double[] latitudes, double[] longitudes) {
+            super(id, min(latitudes), max(latitudes), min(longitudes), max(longitudes));
+            if (latitudes.length != longitudes.length || latitudes.length < 3) {
+                throw new IllegalArgumentException("A polygon needs at least three vertices");
+            }
+            this.originLatitude = (minLatitude + maxLatitude) / 2;
+            this.originLongitude = (minLongitude + maxLongitude) / 2;
+            this.kx = metersPerDegreeLongitude(originLatitude);
+            this.xs = new double[latitudes.length];
+            this.ys = new double[latitudes.length];
+            for (int i = 0; i < latitudes.length; i++) {
+                xs[i] = (longitudes[i] - originLongitude) * kx;
+                ys[i] = (latitudes[i] - originLatitude) * METERS_PER_DEGREE;
+            }
+        }
+
+        @Override
+        public Containment test(double lat, double lon, double accuracyMeters) {
+            double px = wrap(lon - originLongitude) * kx;
+            double py = (lat - originLatitude) * METERS_PER_DEGREE;
+            boolean inside = false;
+            double minDistanceSq = Double.MAX_VALUE;
+            for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+                double xi = xs[i], yi = ys[i], xj = xs[j], yj = ys[j];
+                if ((yi > py) != (yj > py) && px < (xj - xi) * (py - yi) / (yj - yi) + xi) {
+                    inside = !inside;
+                }
+                minDistanceSq = Math.min(minDistanceSq, segmentDistanceSq(px, py, xi, yi, xj, yj));
+            }
+            return classify(inside, Math.sqrt(minDistanceSq), accuracyMeters);
+        }
+
+        private static double segmentDistanceSq(double px, double py, double ax, double ay, double bx, double by) {
+            double dx = bx - ax;
+            double dy = by - ay;
+            double lengthSq = dx * dx + dy * dy;
+            double t = lengthSq > 0 ? ((px - ax) * dx + (py - ay) * dy) / lengthSq : 0;
+            t = Math.max(0, Math.min(1, t));
+            double ex = ax + t * dx - px;
+            double ey = ay + t * dy - py;
+            return ex * ex + ey * ey;
+        }
+
+        private static double min(double[] values) {
+            double min = Double.MAX_VALUE;
+            for (double v : values) {
+                min = Math.min(min, v);
+            }
+            return min;
+        }
+
+        private static double max(double[] values) {
+            double max = -Double.MAX_VALUE;
+            for (double v : values) {
+                max = Math.max(max, v);
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.log4j.Logger;
+
+/**
+ * Evaluates device locations against many geofences and reports when a
+ * device enters or exits a fence.
+ * <p>
+ * Fences are indexed in a grid of cells of a fixed size in degrees. A
+ * device enters a fence only when its location is definitely inside, which
+ * means the location is within the bounds of the fence, so only the fences
+ * of the cell holding the location are tested. A device exits a fence only
+ * when its location is definitely outside. A location that is possibly
+ * inside, because its accuracy circle crosses the boundary, keeps the
+ * device in or out of the fence as before.
+ * <p>
+ * The engine is a {@link LocationSink}, so it can be fed by the refresh
+ * path of {@link Sosumi} or {@link SosumiClientManager}. Transitions are
+ * queued and delivered to the listeners by at most one listener executor
+ * task at a time, which keeps them in order.
+ *
+ * @author tomasca
+ */
+public class GeofenceEngine implements LocationSink {
+
+    private static final Logger LOG = Logger.getLogger(GeofenceEngine.class);
+    private static final int MAX_CELLS_PER_FENCE = 1024;
+    private static final Geofence[] NONE = new Geofence[0];
+    private final double cellDegrees;
+    private final ConcurrentMap<String, Geofence> fences = new ConcurrentHashMap<String, Geofence>();
+    private final ConcurrentMap<Long, Geofence[]> cells = new ConcurrentHashMap<Long, Geofence[]>();
+    // fences spanning too many cells, tested for every location
+    private volatile Geofence[] large = NONE;
+    private final ConcurrentMap<String, DeviceState> states = new ConcurrentHashMap<String, DeviceState>();
+    private final List<GeofenceListener> listeners = new CopyOnWriteArrayList<GeofenceListener>();
+    private final Queue<Runnable> events = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Runnable delivery = this::deliver;
+    private volatile Executor listenerExecutor = Sosumi.sharedListenerExecutor();
+
+    /**
+     * Create an engine with cells of 0.01 degrees, about a kilometer.
+     */
+    public GeofenceEngine() {
+        this(0.01);
+    }
+
+    /**
+     * @param cellDegrees size of the index cells in degrees. Cells somewhat
+     * larger than the typical fence work best.
+     */
+    public GeofenceEngine(double cellDegrees) {
+        if (!(cellDegrees > 0)) {
+            throw new IllegalArgumentException("cellDegrees must be positive");
+        }
+        this.cellDegrees = cellDegrees;
+    }
+
+    public void addListener(GeofenceListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(GeofenceListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param listenerExecutor executor calling the {@link GeofenceListener}s.
+     * The default is the pool of daemon threads shared with the device
+     * listeners.
+     */
+    public void setListenerExecutor(Executor listenerExecutor) {
+        this.listenerExecutor = listenerExecutor;
+    }
+
+    /**
+     * Add a fence, replacing any fence with the same id. Devices inside a
+     * replaced fence are not inside the new one until they enter it.
+     *
+     * @param fence the fence
+     */
+    public synchronized void add(Geofence fence) {
+        remove(fence.getId());
+        fences.put(fence.getId(), fence);
+        if (cellCount(fence) > MAX_CELLS_PER_FENCE) {
+            large = append(large, fence);
+            return;
+        }
+        long[] columns = columns(fence);
+        for (long lat = cell(fence.minLatitude); lat <= cell(fence.maxLatitude); lat++) {
+            for (int range = 0; range < columns.length; range += 2) {
+                for (long lon = columns[range]; lon <= columns[range + 1]; lon++) {
+                    Long key = key(lat, lon);
+                    Geofence[] current = cells.get(key);
+                    cells.put(key, append(current != null ? current : NONE, fence));
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a fence. No exit is reported for devices inside it.
+     *
+     * @param id id of the fence
+     */
+    public synchronized void remove(String id) {
+        Geofence fence = fences.remove(id);
+        if (fence == null) {
+            return;
+        }
+        if (cellCount(fence) > MAX_CELLS_PER_FENCE) {
+            large = without(large, fence);
+            return;
+        }
+        long[] columns = columns(fence);
+        for (long lat = cell(fence.minLatitude); lat <= cell(fence.maxLatitude); lat++) {
+            for (int range = 0; range < columns.length; range += 2) {
+                for (long lon = columns[range]; lon <= columns[range + 1]; lon++) {
+                    Long key = key(lat, lon);
+                    Geofence[] remaining = without(cells.get(key), fence);
+                    if (remaining.length == 0) {
+                        cells.remove(key);
+                    } else {
+                        cells.put(key, remaining);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of fences
+     */
+    public int size() {
+        return fences.size();
+    }
+
+    @Override
+    public void append(String deviceId, DeviceLocation location) {
+        evaluate(deviceId, location.getLatitude(), location.getLongitude(), location.getHorizontalAccuracy(), location.getTimestamp());
+    }
+
+    /**
+     * Evaluate a location of a device and report its transitions. Locations
+     * that are not newer than the last one evaluated for the device are
+     * ignored.
+     *
+     * @param deviceId FMIP id of the device
+     * @param latitude latitude of the location
+     * @param longitude longitude of the location
+     * @param accuracyMeters horizontal accuracy of the location
+     * @param timestamp timestamp of the location
+     */
+    public void evaluate(String deviceId, double latitude, double longitude, double accuracyMeters, long timestamp) {
+        DeviceState state = states.get(deviceId);
+        if (state == null) {
+            state = states.computeIfAbsent(deviceId, id -> new DeviceState());
+        }
+        synchronized (state) {
+            if (timestamp <= state.lastTimestamp) {
+                return;
+            }
+            state.lastTimestamp = timestamp;
+            Iterator<Geofence> it = state.inside.iterator();
+            while (it.hasNext()) {
+                Geofence fence = it.next();
+                if (fences.get(fence.getId()) != fence) {
+                    it.remove();
+                } else if (fence.test(latitude, longitude, accuracyMeters) == Geofence.Containment.OUTSIDE) {
+                    it.remove();
+                    fire(deviceId, fence, false, timestamp);
+                }
+            }
+            Geofence[] candidates = cells.get(key(cell(latitude), cell(Geofence.wrap(longitude))));
+            if (candidates != null) {
+                enter(state, candidates, deviceId, latitude, longitude, accuracyMeters, timestamp);
+            }
+            enter(state, large, deviceId, latitude, longitude, accuracyMeters, timestamp);
+        }
+    }
+
+    /**
+     * @param deviceId FMIP id of the device
+     * @return ids of the fences the device is inside
+     */
+    public Set<String> getFences(String deviceId) {
+        Set<String> ids = new HashSet<String>();
+        DeviceState state = states.get(deviceId);
+        if (state != null) {
+            synchronized (state) {
+                for (Geofence fence : state.inside) {
+                    if (fences.get(fence.getId()) == fence) {
+                        ids.add(fence.getId());
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Forget a device, without reporting any exits.
+     *
+     * @param deviceId FMIP id of the device
+     */
+    public void removeDevice(String deviceId) {
+        states.remove(deviceId);
+    }
+
+    private void enter(DeviceState state, Geofence[] candidates, String deviceId, double latitude, double longitude, double accuracyMeters, long timestamp) {
+        for (Geofence fence : candidates) {
+            if (fence.containsBounds(latitude, longitude)
+                    && !state.inside.contains(fence)
+                    && fence.test(latitude, longitude, accuracyMeters) == Geofence.Containment.INSIDE) {
+                state.inside.add(fence);
+                fire(deviceId, fence, true, timestamp);
+            }
+        }
+    }
+
+    /**
+     * Queue a transition, called with the state of the device locked so the
+     * transitions of a device are queued in order.
+     */
+    private void fire(final String deviceId, final Geofence fence, final boolean entered, final long timestamp) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        events.add(() -> {
+            for (GeofenceListener listener : listeners) {
+                try {
+                    listener.transition(deviceId, fence, entered, timestamp);
+                } catch (RuntimeException ex) {
+                    LOG.warn("Geofence listener failed", ex);
+                }
+            }
+        });
+        drain();
+    }
+
+    private void drain() {
+        if (!events.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                listenerExecutor.execute(delivery);
+            } catch (RejectedExecutionException ex) {
+                draining.set(false);
+                LOG.warn("Failed to deliver geofence transitions", ex);
+            }
+        }
+    }
+
+    private void deliver() {
+        Runnable event;
+        while ((event = events.poll()) != null) {
+            event.run();
+        }
+        draining.set(false);
+        drain();
+    }
+
+    private long cell(double degrees) {
+        return (long) Math.floor(degrees / cellDegrees);
+    }
+
+    /**
+     * The cell columns covered by a fence, as pairs of first and last
+     * column. A fence crossing the antimeridian covers two ranges, one on
+     * each side of it.
+     */
+    private long[] columns(Geofence fence) {
+        double span = fence.maxLongitude - fence.minLongitude;
+        if (span >= 360.0) {
+            return new long[]{cell(-180.0), cell(180.0)};
+        }
+        double west = Geofence.wrap(fence.minLongitude);
+        double east = west + span;
+        if (east >= 180.0) {
+            return new long[]{cell(west), cell(180.0), cell(-180.0), cell(east - 360.0)};
+        }
+        return new long[]{cell(west), cell(east)};
+    }
+
+    private long cellCount(Geofence fence) {
+        try {
+            long rows = Math.addExact(Math.subtractExact(cell(fence.maxLatitude), cell(fence.minLatitude)), 1L);
+            long columns = 0;
+            long[] ranges = columns(fence);
+            for (int range = 0; range < ranges.length; range += 2) {
+                columns = Math.addExact(columns, Math.addExact(Math.subtractExact(ranges[range + 1], ranges[range]), 1L));
+            }
+            return Math.multiplyExact(rows, columns);
+        } catch (ArithmeticException ex) {
+            // more cells than can be counted, so the fence is large
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static Long key(long lat, long lon) {
+        return (lat << 32) ^ (lon & 0xffffffffL);
+    }
+
+    private static Geofence[] append(Geofence[] fences, Geofence fence) {
+        Geofence[] result = Arrays.copyOf(fences, fences.length + 1);
+        result[fences.length] = fence;
+        return result;
+    }
+
+    private static Geofence[] without(Geofence[] fences, Geofence fence) {
+        if (fences == null) {
+            return NONE;
+        }
+        Geofence[] result = new Geofence[fences.length];
+        int n = 0;
+        for (Geofence f : fences) {
+            if (f != fence) {
+                result[n++] = f;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * The fences a device is inside. Fences removed from the engine are
+     * dropped lazily.
+     */
+    private static final class DeviceState {
+
+        private final Set<Geofence> inside = new HashSet<Geofence>();
+        private long lastTimestamp = Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * Receives the geofence transitions of devices.
+ *
+ * @see GeofenceEngine#addListener(GeofenceListener)
+ * @author tomasca
+ */
+public interface GeofenceListener {
+
+    /**
+     * Called on the listener executor of the engine, one transition at a
+     * time and in order per device.
+     *
+     * @param deviceId FMIP id of the device
+     * @param fence the fence
+     * @param entered true if the device entered the fence, false if it exited
+     * @param timestamp timestamp of the location causing the transition
+     */
+    void transition(String deviceId, Geofence fence, boolean entered, long timestamp);
+}
@@ -0,0 +1,328 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Polls many accounts at a steady cadence each, from one timer thread and a
+ * bounded pool of workers calling {@link Sosumi#refresh(DeviceFilter)}.
+ * <p>
+ * Polls are kept in a hashed timing wheel: an array of buckets, one per
+ * tick, each a linked list of the polls due in that tick of a turn of the
+ * wheel. Adding, rescheduling and cancelling a poll is O(1), and each tick
+ * only visits one bucket. The first poll of an account is placed at an
+ * offset within its interval taken from a low-discrepancy sequence, so the
+ * polls of accounts with the same interval are spread evenly over it
+ * instead of arriving at the partition hosts in bursts.
+ * <p>
+ * A poll runs at a fixed rate. If the previous poll of an account is still
+ * running, or all workers are busy and the queue is full, the poll is
+ * skipped rather than queued up behind a slow partition.
+ *
+ * @author tomasca
+ */
+public class HashedWheelPollScheduler implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(HashedWheelPollScheduler.class);
+    private static final double GOLDEN_RATIO_FRACTION = 0.6180339887498949;
+    private final long tickNanos;
+    private final Poll[] buckets;
+    private final int mask;
+    private final ThreadPoolExecutor workers;
+    private final Thread timer;
+    private final long startTime = System.nanoTime();
+    // ticks processed so far, guarded by this
+    private long tick;
+    private double nextOffset;
+    private volatile boolean closed;
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * Create a scheduler with a tick of 100 milliseconds, 512 buckets and 16
+     * workers.
+     */
+    public HashedWheelPollScheduler() {
+        this(100L, 512, 16, 1024);
+    }
+
+    /**
+     * @param tickMillis resolution of the wheel. Polls run up to one tick
+     * late.
+     * @param wheelSize number of buckets, rounded up to a power of two. A
+     * turn of the wheel should cover the common intervals.
+     * @param workerThreads maximum number of polls running at a time
+     * @param queueCapacity maximum number of due polls waiting for a worker
+     */
+    public HashedWheelPollScheduler(long tickMillis, int wheelSize, int workerThreads, int queueCapacity) {
+        if (tickMillis < 1 || wheelSize < 1 || workerThreads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("tickMillis, wheelSize, workerThreads and queueCapacity must be positive");
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.min(wheelSize, 1 << 30));
+        this.buckets = new Poll[size < wheelSize ? size << 1 : size];
+        this.mask = buckets.length - 1;
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new DaemonThreadFactory("sosumi-poll"));
+        this.workers.allowCoreThreadTimeOut(true);
+        this.timer = new DaemonThreadFactory("sosumi-poll-timer").newThread(this::runTimer);
+        this.timer.start();
+    }
+
+    /**
+     * Refresh all devices of an account at a fixed interval.
+     *
+     * @param account the account
+     * @param intervalMillis time between polls
+     * @return the poll, to be cancelled when done
+     */
+    public Poll schedule(Sosumi account, long intervalMillis) {
+        return schedule(account, DeviceFilter.ALL, intervalMillis);
+    }
+
+    /**
+     * Refresh some devices of an account at a fixed interval.
+     *
+     * @param account the account
+     * @param filter selects the devices to refresh
+     * @param intervalMillis time between polls
+     * @return the poll, to be cancelled when done
+     */
+    public Poll schedule(final Sosumi account, final DeviceFilter filter, long intervalMillis) {
+        return schedule(() -> {
+            try {
+                account.refresh(filter);
+            } catch (SosumiException ex) {
+                LOG.debug("Scheduled refresh of " + account.getUsername() + " failed", ex);
+            }
+        }, intervalMillis);
+    }
+
+    Poll schedule(Runnable task, long intervalMillis) {
+        if (closed) {
+            throw new IllegalStateException("Poll scheduler is closed");
+        }
+        Poll poll = new Poll(task, TimeUnit.MILLISECONDS.toNanos(checkInterval(intervalMillis)));
+        synchronized (this) {
+            long offset = (long) (nextOffset * poll.intervalNanos);
+            nextOffset = (nextOffset + GOLDEN_RATIO_FRACTION) % 1.0;
+            poll.deadline = System.nanoTime() - startTime + offset;
+            insert(poll);
+        }
+        return poll;
+    }
+
+    /**
+     * @return number of polls handed to the workers
+     */
+    public long getPollCount() {
+        return polls.get();
+    }
+
+    /**
+     * @return number of polls skipped because the previous poll of the
+     * account was still running or the workers were saturated
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * Stop polling. Polls already running are completed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        timer.interrupt();
+        workers.shutdown();
+    }
+
+    private static long checkInterval(long intervalMillis) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("intervalMillis must be positive");
+        }
+        return intervalMillis;
+    }
+
+    /**
+     * Move a deadline that has passed, such as after a long pause of the
+     * timer, forward by whole intervals instead of running the missed polls
+     * in a burst.
+     */
+    private static long next(long deadline, long intervalNanos, long now) {
+        if (deadline >= now) {
+            return deadline;
+        }
+        return deadline + ((now - deadline) / intervalNanos + 1) * intervalNanos;
+    }
+
+    /**
+     * Put a poll in the bucket of its deadline. Called with the lock held.
+     */
+    private void insert(Poll poll) {
+        long due = Math.max(poll.deadline / tickNanos, tick);
+        poll.rounds = (due - tick) / buckets.length;
+        int index = (int) (due & mask);
+        poll.bucket = index;
+        poll.prev = null;
+        poll.next = buckets[index];
+        if (poll.next != null) {
+            poll.next.prev = poll;
+        }
+        buckets[index] = poll;
+    }
+
+    /**
+     * Take a poll out of its bucket. Called with the lock held.
+     */
+    private void unlink(Poll poll) {
+        if (poll.bucket < 0) {
+            return;
+        }
+        if (poll.prev != null) {
+            poll.prev.next = poll.next;
+        } else {
+            buckets[poll.bucket] = poll.next;
+        }
+        if (poll.next != null) {
+            poll.next.prev = poll.prev;
+        }
+        poll.prev = null;
+        poll.next = null;
+        poll.bucket = -1;
+    }
+
+    private void runTimer() {
+        List<Poll> due = new ArrayList<Poll>();
+        while (!closed) {
+            long sleep;
+            synchronized (this) {
+                sleep = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+            }
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    if (closed) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            synchronized (this) {
+                Poll poll = buckets[(int) (tick & mask)];
+                while (poll != null) {
+                    Poll next = poll.next;
+                    if (poll.rounds <= 0) {
+                        unlink(poll);
+                        due.add(poll);
+                    } else {
+                        poll.rounds--;
+                    }
+                    poll = next;
+                }
+                tick++;
+                long now = System.nanoTime() - startTime;
+                for (Poll p : due) {
+                    // fixed rate, so that the spread of the polls is kept
+                    p.deadline = next(p.deadline + p.intervalNanos, p.intervalNanos, now);
+                    insert(p);
+                }
+            }
+            for (Poll poll : due) {
+                dispatch(poll);
+            }
+            due.clear();
+        }
+    }
+
+    private void dispatch(final Poll poll) {
+        if (!poll.running.compareAndSet(false, true)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    if (!poll.cancelled) {
+                        poll.task.run();
+                    }
+                } catch (RuntimeException ex) {
+                    LOG.warn("Scheduled poll failed", ex);
+                } finally {
+                    poll.running.set(false);
+                }
+            });
+            polls.incrementAndGet();
+        } catch (RejectedExecutionException ex) {
+            poll.running.set(false);
+            skipped.incrementAndGet();
+        }
+    }
+
+    /**
+     * A poll scheduled on the wheel. The links and the deadline are guarded
+     * by the scheduler.
+     */
+    public final class Poll implements Subscription {
+
+        private final Runnable task;
+        private final AtomicBoolean running = new AtomicBoolean();
+        private volatile long intervalNanos;
+        private volatile boolean cancelled;
+        // nanos since the start of the scheduler
+        private long deadline;
+        private long rounds;
+        private int bucket = -1;
+        private Poll prev;
+        private Poll next;
+
+        private Poll(Runnable task, long intervalNanos) {
+            this.task = task;
+            this.intervalNanos = intervalNanos;
+        }
+
+        /**
+         * Change the interval. The next poll is moved to one new interval
+         * after the previous one.
+         *
+         * @param intervalMillis time between polls
+         */
+        public void setInterval(long intervalMillis) {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(checkInterval(intervalMillis));
+            synchronized (HashedWheelPollScheduler.this) {
+                if (cancelled) {
+                    return;
+                }
+                unlink(this);
+                deadline = next(deadline + nanos - intervalNanos, nanos, System.nanoTime() - startTime);
+                intervalNanos = nanos;
+                insert(this);
+            }
+        }
+
+        public long getInterval() {
+            return TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (HashedWheelPollScheduler.this) {
+                cancelled = true;
+                unlink(this);
+            }
+        }
+    }
+}
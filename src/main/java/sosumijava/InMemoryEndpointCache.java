@@ -0,0 +1,43 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Endpoint cache living as long as the process.
+ *
+ * @author tomasca
+ */
+public class InMemoryEndpointCache implements EndpointCache {
+
+    private final ConcurrentMap<String, AccountEndpoint> endpoints = new ConcurrentHashMap<String, AccountEndpoint>();
+
+    @Override
+    public AccountEndpoint get(String username) {
+        return endpoints.get(username);
+    }
+
+    @Override
+    public void put(String username, AccountEndpoint endpoint) {
+        endpoints.put(username, endpoint);
+    }
+
+    @Override
+    public void remove(String username) {
+        endpoints.remove(username);
+    }
+
+    public int size() {
+        return endpoints.size();
+    }
+
+    Set<Map.Entry<String, AccountEndpoint>> entries() {
+        return endpoints.entrySet();
+    }
+}
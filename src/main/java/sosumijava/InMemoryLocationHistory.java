@@ -0,0 +1,239 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Recent location history kept in memory. Each device has a ring buffer of
+ * a fixed capacity, stored as one primitive array per field, so a sample
+ * costs 29 bytes and no object. When a ring is full the oldest sample is
+ * overwritten.
+ * <p>
+ * Samples of a device are kept in timestamp order, and locations that are
+ * not newer than the last one stored are ignored. Queries hand the samples
+ * to a {@link LocationVisitor} and allocate nothing. A visitor must not
+ * append to the history it is visiting.
+ *
+ * @author tomasca
+ */
+public class InMemoryLocationHistory implements LocationSink {
+
+    private final int capacity;
+    private final ConcurrentMap<String, Ring> rings = new ConcurrentHashMap<String, Ring>();
+
+    /**
+     * @param capacity number of samples kept per device
+     */
+    public InMemoryLocationHistory(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void append(String deviceId, DeviceLocation location) {
+        append(deviceId, location.getTimestamp(), location.getLatitude(), location.getLongitude(),
+                location.getHorizontalAccuracy(), location.isLocationFinished());
+    }
+
+    /**
+     * @return true if the sample was stored, false if it was not newer than
+     * the last one of the device
+     */
+    public boolean append(String deviceId, long timestamp, double latitude, double longitude, float horizontalAccuracy, boolean locationFinished) {
+        Ring ring = rings.get(deviceId);
+        if (ring == null) {
+            ring = rings.computeIfAbsent(deviceId, id -> new Ring(capacity));
+        }
+        return ring.append(timestamp, latitude, longitude, horizontalAccuracy, locationFinished);
+    }
+
+    /**
+     * Visit the latest samples of a device, oldest first.
+     *
+     * @param deviceId FMIP id of the device
+     * @param n the maximum number of samples to visit
+     * @param visitor receives the samples
+     * @return number of samples visited
+     */
+    public int last(String deviceId, int n, LocationVisitor visitor) {
+        Ring ring = rings.get(deviceId);
+        return ring != null ? ring.last(n, visitor) : 0;
+    }
+
+    /**
+     * Visit the samples of a device from a point in time, oldest first.
+     *
+     * @param deviceId FMIP id of the device
+     * @param fromMillis first timestamp to include
+     * @param visitor receives the samples
+     * @return number of samples visited
+     */
+    public int since(String deviceId, long fromMillis, LocationVisitor visitor) {
+        Ring ring = rings.get(deviceId);
+        return ring != null ? ring.since(fromMillis, visitor) : 0;
+    }
+
+    /**
+     * Visit the sample of a device closest in time to a timestamp. Of two
+     * samples equally close, the older one is visited.
+     *
+     * @param deviceId FMIP id of the device
+     * @param timestamp the time to look for
+     * @param visitor receives the sample
+     * @return true if the device has a sample
+     */
+    public boolean nearest(String deviceId, long timestamp, LocationVisitor visitor) {
+        Ring ring = rings.get(deviceId);
+        return ring != null && ring.nearest(timestamp, visitor);
+    }
+
+    /**
+     * @param deviceId FMIP id of the device
+     * @return number of samples kept for the device
+     */
+    public int size(String deviceId) {
+        Ring ring = rings.get(deviceId);
+        return ring != null ? ring.size() : 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param deviceId FMIP id of the device
+     */
+    public void remove(String deviceId) {
+        rings.remove(deviceId);
+    }
+
+    /**
+     * The samples of one device. Index 0 of the queries is the oldest
+     * sample, stored at {@code start}.
+     */
+    private static final class Ring {
+
+        private final long[] timestamps;
+        private final double[] latitudes;
+        private final double[] longitudes;
+        private final float[] accuracies;
+        private final boolean[] finished;
+        private final StampedLock lock = new StampedLock();
+        private int start;
+        private int size;
+
+        Ring(int capacity) {
+            timestamps = new long[capacity];
+            latitudes = new double[capacity];
+            longitudes = new double[capacity];
+            accuracies = new float[capacity];
+            finished = new boolean[capacity];
+        }
+
+        boolean append(long timestamp, double latitude, double longitude, float accuracy, boolean locationFinished) {
+            long stamp = lock.writeLock();
+            try {
+                if (size > 0 && timestamp <= timestamps[slot(size - 1)]) {
+                    return false;
+                }
+                int slot;
+                if (size < timestamps.length) {
+                    slot = slot(size);
+                    size++;
+                } else {
+                    slot = start;
+                    start = slot(1);
+                }
+                timestamps[slot] = timestamp;
+                latitudes[slot] = latitude;
+                longitudes[slot] = longitude;
+                accuracies[slot] = accuracy;
+                finished[slot] = locationFinished;
+                return true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int last(int n, LocationVisitor visitor) {
+            long stamp = lock.readLock();
+            try {
+                int count = Math.min(Math.max(n, 0), size);
+                visit(size - count, size, visitor);
+                return count;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        int since(long fromMillis, LocationVisitor visitor) {
+            long stamp = lock.readLock();
+            try {
+                int from = firstAtOrAfter(fromMillis);
+                visit(from, size, visitor);
+                return size - from;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        boolean nearest(long timestamp, LocationVisitor visitor) {
+            long stamp = lock.readLock();
+            try {
+                if (size == 0) {
+                    return false;
+                }
+                int index = firstAtOrAfter(timestamp);
+                if (index == size || (index > 0 && timestamp - timestamps[slot(index - 1)] <= timestamps[slot(index)] - timestamp)) {
+                    index--;
+                }
+                visit(index, index + 1, visitor);
+                return true;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        int size() {
+            long stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private void visit(int from, int to, LocationVisitor visitor) {
+            for (int i = from; i < to; i++) {
+                int slot = slot(i);
+                visitor.visit(timestamps[slot], latitudes[slot], longitudes[slot], accuracies[slot], finished[slot]);
+            }
+        }
+
+        private int firstAtOrAfter(long timestamp) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (timestamps[slot(mid)] < timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private int slot(int index) {
+            int slot = start + index;
+            return slot < timestamps.length ? slot : slot - timestamps.length;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics kept in memory and published as an MXBean. Use
+ * {@link #register(String)} to make them visible in JConsole or any other
+ * JMX client.
+ *
+ * @author tomasca
+ */
+public class JmxSosumiMetrics implements SosumiMetrics, JmxSosumiMetricsMXBean {
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+    private final LatencyHistogram[] calls = new LatencyHistogram[ApiFunction.values().length];
+    private final AtomicLong redirects = new AtomicLong();
+    private final AtomicLong errorResponses = new AtomicLong();
+    private final AtomicLong failedCalls = new AtomicLong();
+    private final LatencyHistogram locates = new LatencyHistogram();
+    private final AtomicLong failedLocates = new AtomicLong();
+    private final AtomicLong locatePolls = new AtomicLong();
+    private final LatencyHistogram leaseWaits = new LatencyHistogram();
+    private volatile int leased;
+    private volatile int pending;
+    private volatile int available;
+    private volatile int max;
+    private ObjectName registeredName;
+
+    public JmxSosumiMetrics() {
+        for (int i = 0; i < calls.length; i++) {
+            calls[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Register with the platform MBean server as
+     * {@code sosumijava:type=Metrics,name=<name>}.
+     *
+     * @param name distinguishes several clients in one process
+     * @throws JMException if the registration failed
+     */
+    public synchronized void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("sosumijava:type=Metrics,name=" + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+        registeredName = objectName;
+    }
+
+    /**
+     * Remove the registration made by {@link #register(String)}, if any.
+     *
+     * @throws JMException if the registration could not be removed
+     */
+    public synchronized void unregister() throws JMException {
+        if (registeredName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            registeredName = null;
+        }
+    }
+
+    /**
+     * @param function an API function
+     * @return the latencies of the calls to the function
+     */
+    public LatencyHistogram getLatency(ApiFunction function) {
+        return calls[function.ordinal()];
+    }
+
+    @Override
+    public void apiCall(ApiFunction function, int status, long nanos) {
+        calls[function.ordinal()].record(nanos);
+        if (status == 330) {
+            redirects.incrementAndGet();
+        } else if (status == 0) {
+            failedCalls.incrementAndGet();
+        } else if (status != 200) {
+            errorResponses.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void locate(int polls, long nanos, boolean located) {
+        locates.record(nanos);
+        locatePolls.addAndGet(polls);
+        if (!located) {
+            failedLocates.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void connectionLeased(long waitNanos) {
+        leaseWaits.record(waitNanos);
+    }
+
+    @Override
+    public void poolStats(int leased, int pending, int available, int max) {
+        this.leased = leased;
+        this.pending = pending;
+        this.available = available;
+        this.max = max;
+    }
+
+    @Override
+    public long getInitClientCalls() {
+        return getLatency(ApiFunction.INIT_CLIENT).getCount();
+    }
+
+    @Override
+    public double getInitClientMeanMillis() {
+        return getLatency(ApiFunction.INIT_CLIENT).getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getInitClientP50Millis() {
+        return getLatency(ApiFunction.INIT_CLIENT).getPercentile(50.0) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getInitClientP99Millis() {
+        return getLatency(ApiFunction.INIT_CLIENT).getPercentile(99.0) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getInitClientMaxMillis() {
+        return getLatency(ApiFunction.INIT_CLIENT).getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getSendMessageCalls() {
+        return getLatency(ApiFunction.SEND_MESSAGE).getCount();
+    }
+
+    @Override
+    public double getSendMessageMeanMillis() {
+        return getLatency(ApiFunction.SEND_MESSAGE).getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getSendMessageP50Millis() {
+        return getLatency(ApiFunction.SEND_MESSAGE).getPercentile(50.0) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getSendMessageP99Millis() {
+        return getLatency(ApiFunction.SEND_MESSAGE).getPercentile(99.0) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getSendMessageMaxMillis() {
+        return getLatency(ApiFunction.SEND_MESSAGE).getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getRedirects() {
+        return redirects.get();
+    }
+
+    @Override
+    public long getErrorResponses() {
+        return errorResponses.get();
+    }
+
+    @Override
+    public long getFailedCalls() {
+        return failedCalls.get();
+    }
+
+    @Override
+    public long getLocates() {
+        return locates.getCount();
+    }
+
+    @Override
+    public long getFailedLocates() {
+        return failedLocates.get();
+    }
+
+    @Override
+    public double getMeanPollsPerLocate() {
+        long n = locates.getCount();
+        return n > 0 ? (double) locatePolls.get() / n : 0.0;
+    }
+
+    @Override
+    public double getLocateMeanMillis() {
+        return locates.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getLocateP99Millis() {
+        return locates.getPercentile(99.0) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getConnectionLeases() {
+        return leaseWaits.getCount();
+    }
+
+    @Override
+    public double getLeaseWaitMeanMillis() {
+        return leaseWaits.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getLeaseWaitP99Millis() {
+        return leaseWaits.getPercentile(99.0) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getLeaseWaitMaxMillis() {
+        return leaseWaits.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public int getLeasedConnections() {
+        return leased;
+    }
+
+    @Override
+    public int getPendingConnections() {
+        return pending;
+    }
+
+    @Override
+    public int getAvailableConnections() {
+        return available;
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return max;
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : calls) {
+            histogram.reset();
+        }
+        redirects.set(0L);
+        errorResponses.set(0L);
+        failedCalls.set(0L);
+        locates.reset();
+        failedLocates.set(0L);
+        locatePolls.set(0L);
+        leaseWaits.reset();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * Attributes of {@link JmxSosumiMetrics}. Durations are in milliseconds.
+ *
+ * @author tomasca
+ */
+public interface JmxSosumiMetricsMXBean {
+
+    long getInitClientCalls();
+
+    double getInitClientMeanMillis();
+
+    double getInitClientP50Millis();
+
+    double getInitClientP99Millis();
+
+    double getInitClientMaxMillis();
+
+    long getSendMessageCalls();
+
+    double getSendMessageMeanMillis();
+
+    double getSendMessageP50Millis();
+
+    double getSendMessageP99Millis();
+
+    double getSendMessageMaxMillis();
+
+    /**
+     * @return number of 330 responses
+     */
+    long getRedirects();
+
+    /**
+     * @return number of responses with a status other than 200 and 330
+     */
+    long getErrorResponses();
+
+    /**
+     * @return number of calls that got no response
+     */
+    long getFailedCalls();
+
+    long getLocates();
+
+    long getFailedLocates();
+
+    double getMeanPollsPerLocate();
+
+    double getLocateMeanMillis();
+
+    double getLocateP99Millis();
+
+    long getConnectionLeases();
+
+    double getLeaseWaitMeanMillis();
+
+    double getLeaseWaitP99Millis();
+
+    double getLeaseWaitMaxMillis();
+
+    int getLeasedConnections();
+
+    int getPendingConnections();
+
+    int getAvailableConnections();
+
+    int getMaxConnections();
+
+    void reset();
+}
@@ -0,0 +1,153 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.util.Arrays;
+import org.apache.http.Consts;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+
+/**
+ * Writes JSON request bodies as UTF-8 straight into a byte buffer that is
+ * reused by the calling thread. String values are escaped.
+ *
+ * The entity returned by {@link #toEntity()} is backed by the buffer, so it
+ * must be sent before the same thread starts writing the next body.
+ *
+ * @author tomasca
+ */
+final class JsonBodyWriter {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(Consts.ASCII);
+    private static final ThreadLocal<JsonBodyWriter> LOCAL = new ThreadLocal<JsonBodyWriter>() {
+        @Override
+        protected JsonBodyWriter initialValue() {
+            return new JsonBodyWriter();
+        }
+    };
+    private byte[] buf = new byte[1024];
+    private int len;
+
+    /**
+     * @return the empty writer of the calling thread
+     */
+    static JsonBodyWriter get() {
+        JsonBodyWriter w = LOCAL.get();
+        w.len = 0;
+        return w;
+    }
+
+    /**
+     * Append bytes that are already valid JSON.
+     */
+    JsonBodyWriter raw(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, len, bytes.length);
+        len += bytes.length;
+        return this;
+    }
+
+    /**
+     * Append an ASCII fragment that is already valid JSON.
+     */
+    JsonBodyWriter raw(String ascii) {
+        int n = ascii.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            buf[len++] = (byte) ascii.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Append a quoted and escaped string value, or null.
+     */
+    JsonBodyWriter string(String value) {
+        if (value == null) {
+            return raw("null");
+        }
+        int n = value.length();
+        ensure(n * 3 + 2);
+        buf[len++] = '"';
+        for (int i = 0; i < n; i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                ensure(n * 3 - i * 3 + 8);
+                buf[len++] = '\\';
+                buf[len++] = (byte) c;
+            } else if (c < 0x20) {
+                ensure(n * 3 - i * 3 + 8);
+                escapeControl(c);
+            } else if (c < 0x80) {
+                buf[len++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[len++] = (byte) (0xc0 | (c >> 6));
+                buf[len++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buf[len++] = (byte) (0xf0 | (cp >> 18));
+                buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[len++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                buf[len++] = '?';
+            } else {
+                buf[len++] = (byte) (0xe0 | (c >> 12));
+                buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[len++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        buf[len++] = '"';
+        return this;
+    }
+
+    int length() {
+        return len;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, len);
+    }
+
+    /**
+     * @return an entity backed by the buffer of this writer
+     */
+    HttpEntity toEntity() {
+        return new ByteArrayEntity(buf, 0, len);
+    }
+
+    private void escapeControl(char c) {
+        buf[len++] = '\\';
+        switch (c) {
+            case '\n':
+                buf[len++] = 'n';
+                break;
+            case '\r':
+                buf[len++] = 'r';
+                break;
+            case '\t':
+                buf[len++] = 't';
+                break;
+            case '\b':
+                buf[len++] = 'b';
+                break;
+            case '\f':
+                buf[len++] = 'f';
+                break;
+            default:
+                buf[len++] = 'u';
+                buf[len++] = '0';
+                buf[len++] = '0';
+                buf[len++] = HEX[c >> 4];
+                buf[len++] = HEX[c & 0xf];
+        }
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+    }
+}
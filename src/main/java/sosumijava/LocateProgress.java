@@ -0,0 +1,83 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * What a locate in progress has observed so far, for {@link PollingPolicy}.
+ *
+ * @author tomasca
+ */
+public final class LocateProgress {
+
+    private final long startedAt;
+    private int polls;
+    private int unchangedPolls;
+    private DeviceLocation previous;
+    private DeviceLocation current;
+
+    LocateProgress(long startedAt, DeviceLocation current) {
+        this.startedAt = startedAt;
+        this.current = current;
+    }
+
+    /**
+     * @return number of polls so far, 0 before the first one
+     */
+    public int getPolls() {
+        return polls;
+    }
+
+    /**
+     * @return number of consecutive polls, up to the latest, where the
+     * location neither got a new timestamp nor a new accuracy
+     */
+    public int getUnchangedPolls() {
+        return unchangedPolls;
+    }
+
+    /**
+     * @return milliseconds since the locate started
+     */
+    public long getElapsedMillis() {
+        return getElapsedNanos() / 1000000L;
+    }
+
+    long getElapsedNanos() {
+        return System.nanoTime() - startedAt;
+    }
+
+    /**
+     * @return the location seen by the poll before the latest, or null
+     */
+    public DeviceLocation getPrevious() {
+        return previous;
+    }
+
+    /**
+     * @return the latest location, or null if the device has not reported
+     * one
+     */
+    public DeviceLocation getCurrent() {
+        return current;
+    }
+
+    void update(DeviceLocation location) {
+        polls++;
+        previous = current;
+        current = location;
+        if (location == null || (previous != null
+                && previous.getTimestamp() == location.getTimestamp()
+                && previous.getHorizontalAccuracy() == location.getHorizontalAccuracy())) {
+            unchangedPolls++;
+        } else {
+            unchangedPolls = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LocateProgress{" + "polls=" + polls + ", unchangedPolls=" + unchangedPolls + ", current=" + current + '}';
+    }
+}
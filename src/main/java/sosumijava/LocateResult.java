@@ -0,0 +1,77 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * Outcome of locating one device of a
+ * {@link Sosumi#locateAll(java.util.Collection, Integer)}.
+ *
+ * @author tomasca
+ */
+public final class LocateResult {
+
+    /**
+     * How the locate of a device ended.
+     */
+    public enum Status {
+
+        /**
+         * The device reported a location accepted by the polling policy.
+         */
+        LOCATED,
+        /**
+         * The device did not report an accepted location in time.
+         */
+        TIMED_OUT,
+        /**
+         * The device is unknown, or the FMIP service could not be reached.
+         */
+        FAILED
+    }
+
+    private final String deviceName;
+    private final Status status;
+    private final DeviceLocation location;
+    private final SosumiException error;
+
+    LocateResult(String deviceName, Status status, DeviceLocation location, SosumiException error) {
+        this.deviceName = deviceName;
+        this.status = status;
+        this.location = location;
+        this.error = error;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isLocated() {
+        return status == Status.LOCATED;
+    }
+
+    /**
+     * @return the accepted location if the device was located, otherwise the
+     * last location it reported, or null
+     */
+    public DeviceLocation getLocation() {
+        return location;
+    }
+
+    /**
+     * @return the reason the device was not located, or null if it was
+     */
+    public SosumiException getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "LocateResult{" + "deviceName=" + deviceName + ", status=" + status + ", location=" + location + ", error=" + error + '}';
+    }
+}
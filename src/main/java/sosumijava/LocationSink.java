@@ -0,0 +1,25 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * Receives every new location reported by the devices of an account.
+ * Called on the listener executor after each refresh, one refresh at a
+ * time, so locations arrive in order. It may be shared by several accounts
+ * and must then be thread safe.
+ *
+ * @see Sosumi#setLocationSink(LocationSink)
+ * @author tomasca
+ */
+public interface LocationSink {
+
+    /**
+     * Called once per device and location timestamp.
+     *
+     * @param deviceId FMIP id of the device
+     * @param location the new location
+     */
+    void append(String deviceId, DeviceLocation location);
+}
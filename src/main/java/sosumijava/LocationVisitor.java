@@ -0,0 +1,16 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * Receives the records of a location history scan as primitives, so that
+ * scanning allocates nothing per record.
+ *
+ * @author tomasca
+ */
+public interface LocationVisitor {
+
+    void visit(long timestamp, double latitude, double longitude, float horizontalAccuracy, boolean locationFinished);
+}
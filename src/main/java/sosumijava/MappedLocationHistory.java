@@ -0,0 +1,539 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.http.Consts;
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only location history kept in memory-mapped segment files, one
+ * directory per device. Every location is a fixed-width record of 32 bytes:
+ * <pre>
+ *  0 timestamp (long)
+ *  8 latitude (double)
+ * 16 longitude (double)
+ * 24 horizontal accuracy (float)
+ * 28 flags (byte, bit 0 = location finished)
+ * 29 reserved (2 bytes)
+ * 31 commit marker (byte)
+ * </pre>
+ * The commit marker is written last, so a record torn by a crash is
+ * recognized and cleared when the history is opened again. A segment holds
+ * a fixed number of records; a new segment is started when it is full.
+ * <p>
+ * Records of a device are kept in timestamp order, and locations that are
+ * not newer than the last one stored are ignored. Scans read the mapped
+ * segments in place.
+ * <p>
+ * At most {@link #setMaxMappedSegments(int)} segments of all devices are
+ * mapped at a time. The least recently used mapping is forced to disk and
+ * dropped when another segment is mapped, and the segment is mapped again
+ * when next read. A dropped mapping is unmapped by the garbage collector
+ * once no scan holds it.
+ *
+ * @author tomasca
+ */
+public class MappedLocationHistory implements LocationSink, Closeable {
+
+    private static final Logger LOG = Logger.getLogger(MappedLocationHistory.class);
+    static final int RECORD_SIZE = 32;
+    private static final int LATITUDE = 8;
+    private static final int LONGITUDE = 16;
+    private static final int ACCURACY = 24;
+    private static final int FLAGS = 28;
+    private static final int COMMIT = 31;
+    private static final byte COMMITTED = (byte) 0xC5;
+    private static final byte FINISHED = 1;
+    private static final String SUFFIX = ".seg";
+    private final File directory;
+    private final int recordsPerSegment;
+    private final ConcurrentMap<String, DeviceLog> logs = new ConcurrentHashMap<String, DeviceLog>();
+    // the mapped segments, least recently used first
+    private final LinkedHashMap<Segment, Boolean> mapped = new LinkedHashMap<Segment, Boolean>(16, 0.75f, true);
+    private volatile int maxSegments;
+    private volatile int maxMappedSegments = 256;
+    private volatile boolean closed;
+
+    /**
+     * Open a history with segments of 32768 records (1 MiB).
+     *
+     * @param directory directory holding the history. Created if missing.
+     * @throws IOException if the directory could not be created
+     */
+    public MappedLocationHistory(File directory) throws IOException {
+        this(directory, 32768);
+    }
+
+    /**
+     * @param directory directory holding the history. Created if missing.
+     * @param recordsPerSegment number of records in each segment file
+     * @throws IOException if the directory could not be created
+     */
+    public MappedLocationHistory(File directory, int recordsPerSegment) throws IOException {
+        if (recordsPerSegment < 1) {
+            throw new IllegalArgumentException("recordsPerSegment must be at least 1");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        this.directory = directory;
+        this.recordsPerSegment = recordsPerSegment;
+    }
+
+    /**
+     * @param maxSegments the number of segments kept per device. The oldest
+     * segment is deleted when a new one would exceed it. 0 keeps all.
+     */
+    public void setMaxSegments(int maxSegments) {
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * @param maxMappedSegments the number of segments of all devices mapped
+     * at a time, 256 by default. Every mapping takes address space and
+     * counts against the limit of mappings of the process.
+     */
+    public void setMaxMappedSegments(int maxMappedSegments) {
+        if (maxMappedSegments < 1) {
+            throw new IllegalArgumentException("maxMappedSegments must be at least 1");
+        }
+        this.maxMappedSegments = maxMappedSegments;
+        trimMappings();
+    }
+
+    /**
+     * Store a location, unless it is not newer than the last location stored
+     * for the device.
+     *
+     * @param deviceId FMIP id of the device
+     * @param location the location
+     * @throws UncheckedIOException if a segment could not be created
+     */
+    @Override
+    public void append(String deviceId, DeviceLocation location) {
+        append(deviceId, location.getTimestamp(), location.getLatitude(), location.getLongitude(),
+                location.getHorizontalAccuracy(), location.isLocationFinished());
+    }
+
+    /**
+     * @return true if the record was stored, false if it was not newer than
+     * the last one of the device
+     * @throws UncheckedIOException if a segment could not be created
+     */
+    public boolean append(String deviceId, long timestamp, double latitude, double longitude, float horizontalAccuracy, boolean locationFinished) {
+        try {
+            return log(deviceId, true).append(timestamp, latitude, longitude, horizontalAccuracy, locationFinished);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to append location of " + deviceId, ex);
+        }
+    }
+
+    /**
+     * Visit the records of a device with timestamps in a range, oldest first.
+     *
+     * @param deviceId FMIP id of the device
+     * @param fromMillis first timestamp to include
+     * @param toMillis last timestamp to include
+     * @param visitor receives the records
+     * @return number of records visited
+     * @throws IOException if the history of the device could not be opened
+     */
+    public int scan(String deviceId, long fromMillis, long toMillis, LocationVisitor visitor) throws IOException {
+        DeviceLog log = log(deviceId, false);
+        return log != null ? log.scan(fromMillis, toMillis, visitor) : 0;
+    }
+
+    /**
+     * @param deviceId FMIP id of the device
+     * @return number of records stored for the device
+     * @throws IOException if the history of the device could not be opened
+     */
+    public long size(String deviceId) throws IOException {
+        DeviceLog log = log(deviceId, false);
+        return log != null ? log.size() : 0;
+    }
+
+    /**
+     * Write the records appended so far to the storage device.
+     */
+    public void flush() {
+        for (DeviceLog log : logs.values()) {
+            log.force();
+        }
+    }
+
+    /**
+     * Flush the history and drop every mapping. The history can not be used
+     * after it is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        flush();
+        logs.clear();
+        synchronized (mapped) {
+            for (Segment segment : mapped.keySet()) {
+                segment.release();
+            }
+            mapped.clear();
+        }
+    }
+
+    int getMappedCount() {
+        synchronized (mapped) {
+            return mapped.size();
+        }
+    }
+
+    private DeviceLog log(String deviceId, boolean create) throws IOException {
+        if (closed) {
+            throw new IOException("History is closed");
+        }
+        DeviceLog log = logs.get(deviceId);
+        if (log != null) {
+            return log;
+        }
+        File dir = new File(directory, Base64.getUrlEncoder().withoutPadding().encodeToString(deviceId.getBytes(Consts.UTF_8)));
+        if (!create && !dir.isDirectory()) {
+            return null;
+        }
+        synchronized (logs) {
+            log = logs.get(deviceId);
+            if (log == null) {
+                log = new DeviceLog(dir);
+                logs.put(deviceId, log);
+            }
+            return log;
+        }
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Mark a segment as most recently used, dropping the least recently used
+     * mappings over the maximum.
+     */
+    private void touch(Segment segment) {
+        synchronized (mapped) {
+            if (mapped.put(segment, Boolean.TRUE) != null) {
+                return;
+            }
+        }
+        trimMappings();
+    }
+
+    private void trimMappings() {
+        List<Segment> dropped = new ArrayList<Segment>();
+        synchronized (mapped) {
+            Iterator<Segment> it = mapped.keySet().iterator();
+            while (mapped.size() - dropped.size() > maxMappedSegments && it.hasNext()) {
+                dropped.add(it.next());
+                it.remove();
+            }
+        }
+        for (Segment segment : dropped) {
+            segment.release();
+        }
+    }
+
+    private void forget(Segment segment) {
+        synchronized (mapped) {
+            mapped.remove(segment);
+        }
+        segment.release();
+    }
+
+    /**
+     * The sequence number of a segment file, or -1 if the name is not one of
+     * a segment.
+     */
+    static long sequence(String name) {
+        if (!name.endsWith(SUFFIX) || name.length() == SUFFIX.length()) {
+            return -1L;
+        }
+        String digits = name.substring(0, name.length() - SUFFIX.length());
+        for (int i = 0; i < digits.length(); i++) {
+            if (digits.charAt(i) < '0' || digits.charAt(i) > '9') {
+                return -1L;
+            }
+        }
+        try {
+            return Long.parseLong(digits);
+        } catch (NumberFormatException ex) {
+            return -1L;
+        }
+    }
+
+    /**
+     * One segment file, mapped while it is in use. Records below
+     * {@code count} are committed and never change, so they are read without
+     * locking.
+     */
+    private final class Segment {
+
+        final File file;
+        final long sequence;
+        final int capacity;
+        volatile int count;
+        // timestamps of the first and last records, valid when count > 0
+        volatile long firstTimestamp;
+        volatile long lastTimestamp;
+        private MappedByteBuffer buffer;
+        private boolean deleted;
+
+        Segment(File file, long sequence, int capacity) {
+            this.file = file;
+            this.sequence = sequence;
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return the mapping of the segment, mapped again if it was dropped,
+         * or null if the segment has been deleted
+         */
+        MappedByteBuffer buffer() throws IOException {
+            MappedByteBuffer b;
+            synchronized (this) {
+                if (deleted) {
+                    return null;
+                }
+                b = buffer;
+                if (b == null) {
+                    b = map(file, capacity * RECORD_SIZE);
+                    buffer = b;
+                }
+            }
+            touch(this);
+            return b;
+        }
+
+        /**
+         * Force the mapping to disk and drop it. Scans still holding it keep
+         * reading it until they finish.
+         */
+        synchronized void release() {
+            if (buffer != null) {
+                buffer.force();
+                buffer = null;
+            }
+        }
+
+        void delete() {
+            synchronized (this) {
+                deleted = true;
+            }
+            forget(this);
+            if (!file.delete()) {
+                LOG.warn("Failed to delete " + file);
+            }
+        }
+
+        synchronized void force() {
+            if (buffer != null) {
+                buffer.force();
+            }
+        }
+
+        /**
+         * Find the committed records of a segment opened from disk, and clear
+         * a record torn by a crash. Committed records are a prefix of the
+         * segment.
+         */
+        void recover() throws IOException {
+            MappedByteBuffer buffer = buffer();
+            int low = 0;
+            int high = capacity;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (buffer.get(mid * RECORD_SIZE + COMMIT) == COMMITTED) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (low < capacity) {
+                int offset = low * RECORD_SIZE;
+                boolean torn = false;
+                for (int i = 0; i < RECORD_SIZE; i++) {
+                    torn |= buffer.get(offset + i) != 0;
+                    buffer.put(offset + i, (byte) 0);
+                }
+                if (torn) {
+                    LOG.warn("Truncated partial record " + low + " of " + file);
+                }
+            }
+            if (low > 0) {
+                firstTimestamp = buffer.getLong(0);
+                lastTimestamp = buffer.getLong((low - 1) * RECORD_SIZE);
+            }
+            count = low;
+        }
+    }
+
+    /**
+     * The segments of one device, oldest first.
+     */
+    private final class DeviceLog {
+
+        private final File dir;
+        private volatile Segment[] segments;
+        private long lastSequence;
+        private long lastTimestamp = Long.MIN_VALUE;
+
+        DeviceLog(File dir) throws IOException {
+            this.dir = dir;
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            List<Segment> list = new ArrayList<Segment>();
+            for (File file : dir.listFiles()) {
+                long sequence = sequence(file.getName());
+                if (sequence < 0) {
+                    if (file.getName().endsWith(SUFFIX)) {
+                        LOG.warn("Ignoring " + file + ", not a segment");
+                    }
+                    continue;
+                }
+                int capacity = (int) (file.length() / RECORD_SIZE);
+                if (capacity == 0) {
+                    file.delete();
+                    continue;
+                }
+                list.add(new Segment(file, sequence, capacity));
+            }
+            list.sort(Comparator.comparingLong(segment -> segment.sequence));
+            for (Segment segment : list) {
+                segment.recover();
+                lastSequence = segment.sequence;
+                if (segment.count > 0) {
+                    lastTimestamp = segment.lastTimestamp;
+                }
+            }
+            this.segments = list.toArray(new Segment[list.size()]);
+        }
+
+        synchronized boolean append(long timestamp, double latitude, double longitude, float accuracy, boolean finished) throws IOException {
+            if (timestamp <= lastTimestamp) {
+                return false;
+            }
+            Segment[] current = segments;
+            Segment segment = current.length > 0 ? current[current.length - 1] : null;
+            if (segment == null || segment.count == segment.capacity) {
+                segment = rollOver(current);
+            }
+            int offset = segment.count * RECORD_SIZE;
+            MappedByteBuffer buffer = segment.buffer();
+            buffer.putLong(offset, timestamp);
+            buffer.putDouble(offset + LATITUDE, latitude);
+            buffer.putDouble(offset + LONGITUDE, longitude);
+            buffer.putFloat(offset + ACCURACY, accuracy);
+            buffer.put(offset + FLAGS, finished ? FINISHED : 0);
+            buffer.put(offset + COMMIT, COMMITTED);
+            if (segment.count == 0) {
+                segment.firstTimestamp = timestamp;
+            }
+            segment.lastTimestamp = timestamp;
+            segment.count++;
+            lastTimestamp = timestamp;
+            return true;
+        }
+
+        private Segment rollOver(Segment[] current) throws IOException {
+            lastSequence++;
+            File file = new File(dir, String.format("%020d%s", lastSequence, SUFFIX));
+            Segment segment = new Segment(file, lastSequence, recordsPerSegment);
+            int keep = maxSegments > 0 ? Math.min(current.length, maxSegments - 1) : current.length;
+            Segment[] next = new Segment[keep + 1];
+            System.arraycopy(current, current.length - keep, next, 0, keep);
+            next[keep] = segment;
+            segments = next;
+            for (int i = 0; i < current.length - keep; i++) {
+                current[i].delete();
+            }
+            return segment;
+        }
+
+        int scan(long fromMillis, long toMillis, LocationVisitor visitor) throws IOException {
+            int visited = 0;
+            for (Segment segment : segments) {
+                int count = segment.count;
+                if (count == 0 || segment.lastTimestamp < fromMillis) {
+                    continue;
+                }
+                if (segment.firstTimestamp > toMillis) {
+                    break;
+                }
+                MappedByteBuffer buffer = segment.buffer();
+                if (buffer == null) {
+                    // deleted by a roll over since the scan started
+                    continue;
+                }
+                for (int i = firstAtOrAfter(buffer, count, fromMillis); i < count; i++) {
+                    int offset = i * RECORD_SIZE;
+                    long timestamp = buffer.getLong(offset);
+                    if (timestamp > toMillis) {
+                        return visited;
+                    }
+                    visitor.visit(timestamp, buffer.getDouble(offset + LATITUDE), buffer.getDouble(offset + LONGITUDE),
+                            buffer.getFloat(offset + ACCURACY), (buffer.get(offset + FLAGS) & FINISHED) != 0);
+                    visited++;
+                }
+            }
+            return visited;
+        }
+
+        private int firstAtOrAfter(MappedByteBuffer buffer, int count, long timestamp) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (buffer.getLong(mid * RECORD_SIZE) < timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        long size() {
+            long size = 0;
+            for (Segment segment : segments) {
+                size += segment.count;
+            }
+            return size;
+        }
+
+        void force() {
+            for (Segment segment : segments) {
+                segment.force();
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Sends messages to many devices, possibly on many accounts, concurrently.
+ * Messages are sent with {@link Sosumi#sendMessageAsync}, so the batch
+ * holds no threads of its own; at most {@code parallelism} messages are in
+ * flight at a time, and the next one is started as one completes. A
+ * failing item does not stop the batch; every item gets its own result.
+ *
+ * @author tomasca
+ */
+public class MessageBatch {
+
+    private static final Logger LOG = Logger.getLogger(MessageBatch.class);
+
+    /**
+     * Send all messages and wait for the outcome.
+     *
+     * @param items messages to send
+     * @param parallelism maximum number of messages in flight
+     * @return one result per item, in the order of the items
+     * @throws SosumiException if interrupted while waiting
+     */
+    public List<MessageResult> send(List<MessageRequest> items, int parallelism) throws SosumiException {
+        CompletableFuture<List<MessageResult>> future = sendAsync(items, parallelism);
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            throw new SosumiException("Failed to send messages", ex.getCause());
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new SosumiException("Interrupted while sending messages", ex);
+        }
+    }
+
+    /**
+     * Send all messages without waiting.
+     *
+     * @param items messages to send
+     * @param parallelism maximum number of messages in flight
+     * @return a future completed with one result per item, in the order of
+     * the items, once every item has been attempted. Cancelling it stops
+     * items that have not yet been started.
+     */
+    public CompletableFuture<List<MessageResult>> sendAsync(List<MessageRequest> items, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        Window window = new Window(items.toArray(new MessageRequest[items.size()]), parallelism);
+        window.drain();
+        return window.done;
+    }
+
+    private static MessageResult result(MessageRequest item, Throwable t) {
+        if (t == null) {
+            return new MessageResult(item, null);
+        }
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (t instanceof SosumiException) {
+            LOG.debug("Failed to send " + item, t);
+            return new MessageResult(item, (SosumiException) t);
+        }
+        LOG.warn("Failed to send " + item, t);
+        return new MessageResult(item, new SosumiException("Failed to send message", t));
+    }
+
+    /**
+     * The messages of one batch and the permits for sending them. Items are
+     * started by whichever thread drains the window, in a loop rather than
+     * by recursion, since a send may complete on the thread starting it.
+     */
+    private static final class Window {
+
+        private final MessageRequest[] requests;
+        private final MessageResult[] results;
+        private final CompletableFuture<List<MessageResult>> done = new CompletableFuture<List<MessageResult>>();
+        private final AtomicInteger permits;
+        private final AtomicInteger remaining;
+        private final AtomicInteger draining = new AtomicInteger();
+        // next item to start, only touched by the draining thread
+        private int next;
+
+        Window(MessageRequest[] requests, int parallelism) {
+            this.requests = requests;
+            this.results = new MessageResult[requests.length];
+            this.permits = new AtomicInteger(parallelism);
+            this.remaining = new AtomicInteger(requests.length);
+            if (requests.length == 0) {
+                done.complete(Arrays.asList(results));
+            }
+        }
+
+        void drain() {
+            if (draining.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                while (next < requests.length && !done.isDone() && permits.get() > 0) {
+                    permits.decrementAndGet();
+                    start(next++);
+                }
+            } while (draining.decrementAndGet() != 0);
+        }
+
+        private void start(final int i) {
+            final MessageRequest item = requests[i];
+            CompletableFuture<Void> sent;
+            try {
+                sent = item.getAccount().sendMessageAsync(item.getDeviceName(), item.getText(), item.getSubject(), item.isSound());
+            } catch (RuntimeException ex) {
+                sent = new CompletableFuture<Void>();
+                sent.completeExceptionally(ex);
+            }
+            sent.whenComplete((v, t) -> {
+                results[i] = result(item, t);
+                if (remaining.decrementAndGet() == 0) {
+                    done.complete(Arrays.asList(results));
+                }
+                permits.incrementAndGet();
+                drain();
+            });
+        }
+    }
+}
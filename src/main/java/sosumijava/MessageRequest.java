@@ -0,0 +1,60 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * A message to send to one device, as an item of a {@link MessageBatch}.
+ *
+ * @author tomasca
+ */
+public final class MessageRequest {
+
+    private final Sosumi account;
+    private final String deviceName;
+    private final String text;
+    private final String subject;
+    private final boolean sound;
+
+    /**
+     *
+     * @param account the account the device belongs to
+     * @param deviceName the name of the device
+     * @param text message text
+     * @param subject message subject
+     * @param sound true to play a sound on the device
+     */
+    public MessageRequest(Sosumi account, String deviceName, String text, String subject, boolean sound) {
+        this.account = account;
+        this.deviceName = deviceName;
+        this.text = text;
+        this.subject = subject;
+        this.sound = sound;
+    }
+
+    public Sosumi getAccount() {
+        return account;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public boolean isSound() {
+        return sound;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageRequest{" + "deviceName=" + deviceName + ", subject=" + subject + ", sound=" + sound + '}';
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * Outcome of one item of a {@link MessageBatch}.
+ *
+ * @author tomasca
+ */
+public final class MessageResult {
+
+    private final MessageRequest request;
+    private final SosumiException error;
+
+    MessageResult(MessageRequest request, SosumiException error) {
+        this.request = request;
+        this.error = error;
+    }
+
+    public MessageRequest getRequest() {
+        return request;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * @return the reason the message could not be sent, or null if it was
+     * sent
+     */
+    public SosumiException getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageResult{" + "request=" + request + ", error=" + error + '}';
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.conn.NHttpClientConnectionManager;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Non-blocking connection manager reporting how long requests wait for a
+ * pooled connection.
+ *
+ * @author tomasca
+ */
+class MeteredNHttpConnectionManager implements NHttpClientConnectionManager {
+
+    private final NHttpClientConnectionManager delegate;
+    private volatile SosumiMetrics metrics = SosumiMetrics.NONE;
+
+    MeteredNHttpConnectionManager(NHttpClientConnectionManager delegate) {
+        this.delegate = delegate;
+    }
+
+    void setMetrics(SosumiMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Future<NHttpClientConnection> requestConnection(HttpRoute route, Object state, long connectTimeout, long leaseTimeout, TimeUnit tunit, final FutureCallback<NHttpClientConnection> callback) {
+        final SosumiMetrics m = metrics;
+        if (m == SosumiMetrics.NONE) {
+            return delegate.requestConnection(route, state, connectTimeout, leaseTimeout, tunit, callback);
+        }
+        final long start = System.nanoTime();
+        return delegate.requestConnection(route, state, connectTimeout, leaseTimeout, tunit, new FutureCallback<NHttpClientConnection>() {
+            @Override
+            public void completed(NHttpClientConnection result) {
+                m.connectionLeased(System.nanoTime() - start);
+                if (callback != null) {
+                    callback.completed(result);
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                if (callback != null) {
+                    callback.failed(ex);
+                }
+            }
+
+            @Override
+            public void cancelled() {
+                if (callback != null) {
+                    callback.cancelled();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void releaseConnection(NHttpClientConnection conn, Object newState, long validDuration, TimeUnit tunit) {
+        delegate.releaseConnection(conn, newState, validDuration, tunit);
+    }
+
+    @Override
+    public void startRoute(NHttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        delegate.startRoute(conn, route, context);
+    }
+
+    @Override
+    public void upgrade(NHttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        delegate.upgrade(conn, route, context);
+    }
+
+    @Override
+    public void routeComplete(NHttpClientConnection conn, HttpRoute route, HttpContext context) {
+        delegate.routeComplete(conn, route, context);
+    }
+
+    @Override
+    public boolean isRouteComplete(NHttpClientConnection conn) {
+        return delegate.isRouteComplete(conn);
+    }
+
+    @Override
+    public void closeIdleConnections(long idletime, TimeUnit tunit) {
+        delegate.closeIdleConnections(idletime, tunit);
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+        delegate.closeExpiredConnections();
+    }
+
+    @Override
+    public void execute(IOEventDispatch eventDispatch) throws IOException {
+        delegate.execute(eventDispatch);
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        delegate.shutdown();
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Protects the FMIP partitions from overload, keyed by the partition host
+ * learned from the 330 redirects. Share one guard between all accounts, as
+ * {@link SosumiClientManager#setPartitionGuard(PartitionGuard)} does.
+ * <p>
+ * Each partition has a concurrency limit that adapts to the observed
+ * latency. The limit grows while the latency stays within a tolerance of
+ * the lowest latency seen recently, and shrinks as the latency rises above
+ * it or when requests fail. Requests above the limit are rejected at once.
+ * <p>
+ * A 5xx response or a failed connection counts as a failure of the
+ * partition. The failed call is retried after an exponential backoff with
+ * jitter, honoring the Retry-After header of a 503. Only initClient calls
+ * are retried after other 5xx responses, since a message may already have
+ * been sent. After a number of consecutive failures the circuit of the
+ * partition opens and requests fail fast with a
+ * {@link PartitionUnavailableException}. When the circuit has been open for
+ * a while a single probe request is let through, and its outcome closes or
+ * opens the circuit again.
+ *
+ * @author tomasca
+ */
+public class PartitionGuard {
+
+    /**
+     * State of the circuit of a partition.
+     */
+    public enum State {
+
+        /**
+         * Requests are let through.
+         */
+        CLOSED,
+        /**
+         * Requests fail fast.
+         */
+        OPEN,
+        /**
+         * A single probe request is let through.
+         */
+        HALF_OPEN
+    }
+
+    private static final Logger LOG = Logger.getLogger(PartitionGuard.class);
+    // samples after which the lowest latency is measured anew
+    private static final int MIN_RTT_WINDOW = 500;
+    private static final double SMOOTHING = 0.2;
+    private static final double FAILURE_DECREASE = 0.9;
+    private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<String, Partition>();
+    private final List<PartitionListener> listeners = new CopyOnWriteArrayList<PartitionListener>();
+    private volatile int initialLimit = 20;
+    private volatile int minLimit = 1;
+    private volatile int maxLimit = 200;
+    private volatile double latencyTolerance = 2.0;
+    private volatile int maxRetries = 2;
+    private volatile long initialBackoffMillis = 100L;
+    private volatile long maxBackoffMillis = 10000L;
+    private volatile int failureThreshold = 5;
+    private volatile long openMillis = 30000L;
+
+    public void addListener(PartitionListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(PartitionListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param initial limit of a partition when it is first seen
+     * @param min the lowest the limit goes
+     * @param max the highest the limit goes
+     */
+    public void setConcurrencyLimit(int initial, int min, int max) {
+        if (min < 1 || initial < min || max < initial) {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= min <= initial <= max");
+        }
+        this.initialLimit = initial;
+        this.minLimit = min;
+        this.maxLimit = max;
+    }
+
+    /**
+     * @param tolerance how many times the lowest recent latency a request may
+     * take without the limit shrinking, at least 1
+     */
+    public void setLatencyTolerance(double tolerance) {
+        if (!(tolerance >= 1.0)) {
+            throw new IllegalArgumentException("tolerance must be at least 1");
+        }
+        this.latencyTolerance = tolerance;
+    }
+
+    /**
+     * @param maxRetries retries of a call failing with a 5xx response or a
+     * failed connection, 0 to never retry
+     * @param initialMillis backoff before the first retry
+     * @param maxMillis the longest backoff. A Retry-After longer than this
+     * is not waited for.
+     */
+    public void setRetries(int maxRetries, long initialMillis, long maxMillis) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialMillis;
+        this.maxBackoffMillis = maxMillis;
+    }
+
+    /**
+     * @param failureThreshold consecutive failures opening the circuit
+     * @param openMillis how long the circuit stays open before a probe
+     */
+    public void setCircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @param partition host and port of the partition
+     * @return state of the circuit, CLOSED for partitions not seen yet
+     */
+    public State getState(String partition) {
+        Partition p = partitions.get(partition);
+        return p != null ? p.getState() : State.CLOSED;
+    }
+
+    /**
+     * @param partition host and port of the partition
+     * @return current concurrency limit of the partition
+     */
+    public int getLimit(String partition) {
+        Partition p = partitions.get(partition);
+        return p != null ? p.getLimit() : initialLimit;
+    }
+
+    Partition partition(String name) {
+        Partition p = partitions.get(name);
+        if (p == null) {
+            p = partitions.computeIfAbsent(name, n -> new Partition(n, initialLimit));
+        }
+        return p;
+    }
+
+    private void fireState(String partition, State state) {
+        LOG.info("Circuit of partition " + partition + " is " + state);
+        for (PartitionListener listener : listeners) {
+            try {
+                listener.stateChanged(partition, state);
+            } catch (RuntimeException ex) {
+                LOG.warn("Partition listener failed", ex);
+            }
+        }
+    }
+
+    private void fireLimit(String partition, int limit) {
+        for (PartitionListener listener : listeners) {
+            try {
+                listener.limitChanged(partition, limit);
+            } catch (RuntimeException ex) {
+                LOG.warn("Partition listener failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Limit and circuit of one partition. Every {@link #acquire()} must be
+     * followed by exactly one of {@link #onSuccess(long)},
+     * {@link #onFailure()} or {@link #onIgnore()}. Listeners are called
+     * outside the lock.
+     */
+    final class Partition {
+
+        private final String name;
+        private double limit;
+        private int inFlight;
+        private long minRtt = Long.MAX_VALUE;
+        private int samples;
+        private State state = State.CLOSED;
+        private int consecutiveFailures;
+        private long openUntil;
+        private boolean probing;
+
+        Partition(String name, int limit) {
+            this.name = name;
+            this.limit = limit;
+        }
+
+        /**
+         * @return the start time of the request, to pass to onSuccess
+         * @throws PartitionUnavailableException if the request is rejected
+         */
+        long acquire() throws PartitionUnavailableException {
+            long now = System.nanoTime();
+            boolean halfOpened = false;
+            synchronized (this) {
+                if (state == State.OPEN) {
+                    if (now - openUntil < 0) {
+                        throw new PartitionUnavailableException("Circuit of partition " + name + " is open", name,
+                                TimeUnit.NANOSECONDS.toMillis(openUntil - now) + 1);
+                    }
+                    state = State.HALF_OPEN;
+                    halfOpened = true;
+                }
+                if (state == State.HALF_OPEN) {
+                    if (probing) {
+                        throw new PartitionUnavailableException("Partition " + name + " is being probed", name, 0L);
+                    }
+                    probing = true;
+                } else if (inFlight >= (int) limit) {
+                    throw new PartitionUnavailableException("Concurrency limit of partition " + name + " reached", name, 0L);
+                }
+                inFlight++;
+            }
+            if (halfOpened) {
+                fireState(name, State.HALF_OPEN);
+            }
+            return now;
+        }
+
+        void onSuccess(long startNanos) {
+            long rtt = Math.max(1L, System.nanoTime() - startNanos);
+            boolean closed = false;
+            int before;
+            int after;
+            synchronized (this) {
+                int load = inFlight--;
+                consecutiveFailures = 0;
+                if (state == State.HALF_OPEN) {
+                    state = State.CLOSED;
+                    probing = false;
+                    closed = true;
+                }
+                if (++samples > MIN_RTT_WINDOW) {
+                    samples = 0;
+                    minRtt = rtt;
+                } else if (rtt < minRtt) {
+                    minRtt = rtt;
+                }
+                before = (int) limit;
+                double gradient = Math.max(0.5, Math.min(1.0, latencyTolerance * minRtt / rtt));
+                // only grow when the limit is actually being used
+                double headroom = load * 2 >= limit ? Math.sqrt(limit) : 0.0;
+                setLimit(limit * (1 - SMOOTHING) + (limit * gradient + headroom) * SMOOTHING);
+                after = (int) limit;
+            }
+            if (closed) {
+                fireState(name, State.CLOSED);
+            }
+            if (after != before) {
+                fireLimit(name, after);
+            }
+        }
+
+        void onFailure() {
+            boolean opened = false;
+            int before;
+            int after;
+            synchronized (this) {
+                inFlight--;
+                consecutiveFailures++;
+                if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+                    state = State.OPEN;
+                    probing = false;
+                    openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(openMillis);
+                    opened = true;
+                }
+                before = (int) limit;
+                setLimit(limit * FAILURE_DECREASE);
+                after = (int) limit;
+            }
+            if (opened) {
+                fireState(name, State.OPEN);
+            }
+            if (after != before) {
+                fireLimit(name, after);
+            }
+        }
+
+        /**
+         * The request ended without telling anything about the partition,
+         * such as when it was cancelled.
+         */
+        synchronized void onIgnore() {
+            inFlight--;
+            if (state == State.HALF_OPEN) {
+                probing = false;
+            }
+        }
+
+        /**
+         * @param attempt number of retries made so far
+         * @param retryAfterMillis Retry-After of the response, or 0
+         * @return how long to wait before retrying, or -1 to not retry
+         */
+        long backoff(int attempt, long retryAfterMillis) {
+            long max = maxBackoffMillis;
+            if (attempt >= maxRetries || getState() != State.CLOSED || retryAfterMillis > max) {
+                return -1L;
+            }
+            long delay = Math.min(max, initialBackoffMillis << Math.min(attempt, 30));
+            // equal jitter keeps half the backoff and spreads the rest
+            delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            return Math.max(delay, retryAfterMillis);
+        }
+
+        synchronized State getState() {
+            return state;
+        }
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        private void setLimit(double newLimit) {
+            limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * Receives the status changes of the partitions watched by a
+ * {@link PartitionGuard}.
+ *
+ * @see PartitionGuard#addListener(PartitionListener)
+ * @author tomasca
+ */
+public interface PartitionListener {
+
+    /**
+     * Called when the circuit of a partition changes state, on the thread
+     * completing the request causing the change.
+     *
+     * @param partition host and port of the partition
+     * @param state the new state
+     */
+    void stateChanged(String partition, PartitionGuard.State state);
+
+    /**
+     * Called when the concurrency limit of a partition changes.
+     *
+     * @param partition host and port of the partition
+     * @param limit the new limit
+     */
+    void limitChanged(String partition, int limit);
+}
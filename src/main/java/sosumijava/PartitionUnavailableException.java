@@ -0,0 +1,40 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * Thrown without calling the FMIP service when a {@link PartitionGuard}
+ * rejects a request, because the circuit of the partition is open or the
+ * concurrency limit of the partition is reached.
+ *
+ * @author tomasca
+ */
+public class PartitionUnavailableException extends SosumiException {
+
+    private static final long serialVersionUID = 1L;
+    private final String partition;
+    private final long retryAfterMillis;
+
+    PartitionUnavailableException(String msg, String partition, long retryAfterMillis) {
+        super(msg);
+        this.partition = partition;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return host and port of the partition
+     */
+    public String getPartition() {
+        return partition;
+    }
+
+    /**
+     * @return how long the caller should wait before trying again, 0 if it
+     * may try again at once
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
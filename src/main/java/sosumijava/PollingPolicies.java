@@ -0,0 +1,109 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * Factory methods for common polling policies.
+ *
+ * @author tomasca
+ */
+public final class PollingPolicies {
+
+    private PollingPolicies() {
+    }
+
+    /**
+     * Poll at a fixed interval until the device reports a finished location.
+     *
+     * @param intervalMillis delay between polls
+     * @return the policy
+     */
+    public static PollingPolicy fixed(long intervalMillis) {
+        return new Backoff(intervalMillis, intervalMillis);
+    }
+
+    /**
+     * Poll soon while the location keeps changing and back off exponentially
+     * while it does not, until the device reports a finished location.
+     *
+     * @param initialMillis delay after a poll that saw the location change
+     * @param maxMillis the longest delay between polls
+     * @return the policy
+     */
+    public static PollingPolicy backoff(long initialMillis, long maxMillis) {
+        return new Backoff(initialMillis, maxMillis);
+    }
+
+    /**
+     * Accept a location as soon as it is accurate enough, even if the device
+     * is still refining it.
+     *
+     * @param meters the largest acceptable horizontal accuracy
+     * @param delegate policy deciding the delays, and accepting finished
+     * locations that are less accurate
+     * @return the policy
+     */
+    public static PollingPolicy accuracy(double meters, PollingPolicy delegate) {
+        return new Accuracy(meters, delegate);
+    }
+
+    private static final class Backoff implements PollingPolicy {
+
+        private final long initialMillis;
+        private final long maxMillis;
+
+        Backoff(long initialMillis, long maxMillis) {
+            if (initialMillis < 0 || maxMillis < initialMillis) {
+                throw new IllegalArgumentException("Invalid delays: " + initialMillis + ", " + maxMillis);
+            }
+            this.initialMillis = initialMillis;
+            this.maxMillis = maxMillis;
+        }
+
+        @Override
+        public boolean accept(DeviceLocation location) {
+            return location.isLocationFinished();
+        }
+
+        @Override
+        public long nextDelay(LocateProgress progress) {
+            int shift = Math.min(progress.getUnchangedPolls(), 30);
+            long delay = initialMillis << shift;
+            return delay < initialMillis || delay > maxMillis ? maxMillis : delay;
+        }
+
+        @Override
+        public String toString() {
+            return "Backoff{" + initialMillis + ".." + maxMillis + "ms}";
+        }
+    }
+
+    private static final class Accuracy implements PollingPolicy {
+
+        private final double meters;
+        private final PollingPolicy delegate;
+
+        Accuracy(double meters, PollingPolicy delegate) {
+            this.meters = meters;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean accept(DeviceLocation location) {
+            float accuracy = location.getHorizontalAccuracy();
+            return (accuracy > 0 && accuracy <= meters) || delegate.accept(location);
+        }
+
+        @Override
+        public long nextDelay(LocateProgress progress) {
+            return delegate.nextDelay(progress);
+        }
+
+        @Override
+        public String toString() {
+            return "Accuracy{" + meters + "m, " + delegate + '}';
+        }
+    }
+}
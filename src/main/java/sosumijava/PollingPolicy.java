@@ -0,0 +1,31 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * Decides when a locate is done and how long to wait before polling the
+ * FMIP service again. Policies are shared between locates, so any state must
+ * be kept in the {@link LocateProgress} passed in.
+ *
+ * @see PollingPolicies
+ * @author tomasca
+ */
+public interface PollingPolicy {
+
+    /**
+     * @param location the latest location of the device
+     * @return true to complete the locate with this location
+     */
+    boolean accept(DeviceLocation location);
+
+    /**
+     * Called when a locate starts on a device with a known location, and
+     * after every poll that did not complete it.
+     *
+     * @param progress the locate so far
+     * @return delay in milliseconds before the next poll
+     */
+    long nextDelay(LocateProgress progress);
+}
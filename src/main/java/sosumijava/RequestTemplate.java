@@ -0,0 +1,90 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.net.URL;
+import java.util.Arrays;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Everything about an API request that only depends on the account: the URL
+ * prefix for the current partition and scope, and the header sets including
+ * the encoded credentials, with and without Accept-Encoding. Immutable; a
+ * new template is derived when the endpoint of the account changes.
+ *
+ * @author tomasca
+ */
+final class RequestTemplate {
+
+    private final URL fmipHost;
+    private final String username;
+    private final AccountEndpoint endpoint;
+    private final Header[] headers;
+    private final Header[] compressedHeaders;
+    private final String urlPrefix;
+
+    RequestTemplate(URL fmipHost, String username, String password, AccountEndpoint endpoint) {
+        this(fmipHost, username, endpoint, new Header[]{
+            new BasicHeader("Accept-Language", "en-us"),
+            new BasicHeader("Content-Type", "application/json; charset=utf-8"),
+            new BasicHeader("X-Apple-Realm-Support", "1.0"),
+            new BasicHeader("X-Apple-Find-Api-Ver", "3.0"),
+            new BasicHeader("X-Apple-Authscheme", "UserIdGuest"),
+            new BasicHeader("User-agent", "FindMyiPhone/376 CFNetwork/672.0.8 Darwin/14.0.0"),
+            new BasicHeader("Authorization", "Basic " + Base64.encodeBase64String((username + ":" + password).getBytes(Consts.UTF_8)))
+        });
+    }
+
+    private RequestTemplate(URL fmipHost, String username, AccountEndpoint endpoint, Header[] headers) {
+        this.fmipHost = fmipHost;
+        this.username = username;
+        this.endpoint = endpoint;
+        this.headers = headers;
+        this.compressedHeaders = Arrays.copyOf(headers, headers.length + 1);
+        this.compressedHeaders[headers.length] = new BasicHeader("Accept-Encoding", ContentCoding.ACCEPTED);
+
+        URL baseUrl = endpoint.getPartition() != null ? endpoint.getPartition() : fmipHost;
+        StringBuilder url = new StringBuilder();
+        url.append(baseUrl.toExternalForm());
+        url.append("/fmipservice/device/");
+        url.append(endpoint.getScope() != null ? endpoint.getScope() : username);
+        url.append("/");
+        this.urlPrefix = url.toString();
+    }
+
+    AccountEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @param newEndpoint the endpoint learned from a redirect
+     * @return a template for the new endpoint, or this template if the
+     * endpoint did not change
+     */
+    RequestTemplate withEndpoint(AccountEndpoint newEndpoint) {
+        if (newEndpoint.equals(endpoint)) {
+            return this;
+        }
+        return new RequestTemplate(fmipHost, username, newEndpoint, headers);
+    }
+
+    /**
+     * @param urlFunction the API function
+     * @param body the request body
+     * @param acceptCompressed true to accept gzip and deflate responses
+     * @return the request
+     */
+    HttpPost newPost(String urlFunction, HttpEntity body, boolean acceptCompressed) {
+        HttpPost httppost = new HttpPost(urlPrefix + urlFunction);
+        httppost.setHeaders(acceptCompressed ? compressedHeaders : headers);
+        httppost.setEntity(body);
+        return httppost;
+    }
+}
@@ -4,24 +4,49 @@
  */
 package sosumijava;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
+import com.google.gson.JsonParseException;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import org.apache.commons.codec.binary.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import org.apache.http.Consts;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.ParseException;
-import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
 /**
@@ -31,17 +56,37 @@ import org.apache.log4j.Logger;
 public class Sosumi {
 
     private static final Logger LOG = Logger.getLogger(Sosumi.class);
-    private URL fmipHost;
-    private URL partition;
-    private String scope;
-    private CloseableHttpClient httpclient;
+    private final URL fmipHost;
+    private volatile RequestTemplate template;
+    private volatile EndpointCache endpointCache;
+    // an endpoint taken from the cache that has not answered yet, or null
+    private volatile AccountEndpoint cachedEndpoint;
+    private final SosumiTransport transport;
     private static final int MAX_REDIRECTS = 4;
-    private long locateRefreshInterval = 5000L;
-    private String password;
-    private String username;
-    private HashMap<String, DeviceInfo> devices;
+    private volatile PollingPolicy pollingPolicy = PollingPolicies.fixed(5000L);
+    private final String password;
+    private final String username;
+    private volatile DeviceSnapshot devices = DeviceSnapshot.EMPTY;
+    private final ScheduledExecutorService scheduler;
+    private final LocatePoller poller = new LocatePoller();
+    private final Tracker tracker = new Tracker();
+    private volatile long trackInterval = 10000L;
+    private volatile HashedWheelPollScheduler pollScheduler;
+    private volatile Executor listenerExecutor = SharedListenerExecutor.INSTANCE;
+    private volatile LocationSink locationSink;
+    private volatile SosumiMetrics metrics = SosumiMetrics.NONE;
+    private volatile PartitionGuard partitionGuard;
+    private volatile boolean compressResponses = true;
+    private volatile boolean compressRequests;
+    private volatile long lastAccess = System.currentTimeMillis();
+    private final Object refreshLock = new Object();
+    private final Publisher publisher = new Publisher();
+    // the refresh of all devices in flight, and the filtered ones, guarded by refreshLock
+    private RefreshCall allInFlight;
+    private final Map<DeviceFilter, RefreshCall> filteredInFlight = new HashMap<DeviceFilter, RefreshCall>();
     private static final String CLIENT_CONTEXT = "\"clientContext\":{\"appName\":\"FindMyiPhone\",\"appVersion\":\"3.0\",\"buildVersion\":\"376\",\"clientTimestamp\":0,\"deviceUDID\":null,\"inactiveTime\":1,\"osVersion\":\"7.0.3\",\"productType\":\"iPhone6,1\",\"fmly\":true}";
-    private static final String INIT_JSON_BODY = "{" + CLIENT_CONTEXT + "}";
+    private static final byte[] INIT_JSON_BODY = ("{" + CLIENT_CONTEXT + "}").getBytes(Consts.UTF_8);
+    private static final byte[] MESSAGE_JSON_PREFIX = ("{" + CLIENT_CONTEXT + ",\"device\":").getBytes(Consts.UTF_8);
 
     /**
      *
@@ -50,86 +95,251 @@ public class Sosumi {
      * @param password iCloud password
      */
     public Sosumi(String fmipHostUrl, String username, String password) throws MalformedURLException {
-        this.fmipHost = new URL(fmipHostUrl);
+        this(fmipHostUrl, username, password, SharedScheduler.INSTANCE);
+    }
+
+    /**
+     *
+     * @param fmipHostUrl Base URL where the Find My iPhone service is located. E.g https://fmipmobile.icloud.com
+     * @param username iCloud username (Apple ID)
+     * @param password iCloud password
+     * @param scheduler scheduler driving asynchronous locate polls. May be shared between instances.
+     */
+    public Sosumi(String fmipHostUrl, String username, String password, ScheduledExecutorService scheduler) throws MalformedURLException {
+        this(fmipHostUrl, username, password, new BlockingTransport(HttpClients.custom().disableContentCompression().build()), scheduler);
+    }
+
+    /**
+     *
+     * @param fmipHostUrl Base URL where the Find My iPhone service is located. E.g https://fmipmobile.icloud.com
+     * @param username iCloud username (Apple ID)
+     * @param password iCloud password
+     * @param transport transport executing the API calls. May be shared between instances.
+     * @param scheduler scheduler driving asynchronous locate polls. May be shared between instances.
+     */
+    public Sosumi(String fmipHostUrl, String username, String password, SosumiTransport transport, ScheduledExecutorService scheduler) throws MalformedURLException {
+        this(new URL(fmipHostUrl), username, password, transport, scheduler, AccountEndpoint.UNKNOWN);
+    }
+
+    Sosumi(URL fmipHost, String username, String password, SosumiTransport transport, ScheduledExecutorService scheduler, AccountEndpoint endpoint) {
+        this.fmipHost = fmipHost;
         this.username = username;
         this.password = password;
-        devices = new HashMap<String, DeviceInfo>();
-        httpclient = HttpClients.createDefault();
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.template = new RequestTemplate(fmipHost, username, password, endpoint);
     }
 
-    private void refresh() throws SosumiException {
-        CloseableHttpResponse resp = postApiCall("initClient", Sosumi.INIT_JSON_BODY);
-        int redirects = 0;
+    private DeviceSnapshot refresh() throws SosumiException {
+        return refresh(DeviceFilter.ALL);
+    }
 
-        while ((redirects < MAX_REDIRECTS) && resp.getStatusLine().getStatusCode() == 330) {
-            grabHeaders(resp);
-            LOG.debug("Following 330 redirect...");
-            resp = postApiCall("initClient", Sosumi.INIT_JSON_BODY);
-        }
+    /**
+     * Fetch the devices from the FMIP service. Only devices accepted by the
+     * filter are decoded; the others keep their previous state in the device
+     * snapshot. While all devices are being fetched, every caller shares that
+     * initClient request and its result; otherwise callers asking for the
+     * same selection share one. A fetch completing after a newer one has been
+     * merged leaves the snapshot as it is.
+     *
+     * @param filter selects the devices to decode
+     * @return the device snapshot after the refresh
+     * @throws SosumiException
+     */
+    public DeviceSnapshot refresh(DeviceFilter filter) throws SosumiException {
+        return await(refreshAsync(filter), "Interrupted while waiting for device refresh");
+    }
 
-        LOG.debug("Response: " + resp.getStatusLine());
+    /**
+     * Asynchronous variant of {@link #refresh(DeviceFilter)}.
+     *
+     * @param filter selects the devices to decode
+     * @return a future completed with the device snapshot after the refresh,
+     * or exceptionally with a SosumiException
+     */
+    public CompletableFuture<DeviceSnapshot> refreshAsync(final DeviceFilter filter) {
+        touch();
+        final RefreshCall call;
+        boolean leader = false;
+        synchronized (refreshLock) {
+            RefreshCall current = allInFlight != null ? allInFlight : filteredInFlight.get(filter);
+            if (current != null) {
+                call = current;
+            } else {
+                call = new RefreshCall(System.currentTimeMillis());
+                if (filter == DeviceFilter.ALL) {
+                    allInFlight = call;
+                } else {
+                    filteredInFlight.put(filter, call);
+                }
+                leader = true;
+            }
+        }
+        if (leader) {
+            fetchDevices(filter, 0).whenComplete((fetched, t) -> {
+                DeviceSnapshot result = null;
+                synchronized (refreshLock) {
+                    if (filter == DeviceFilter.ALL) {
+                        allInFlight = null;
+                    } else {
+                        filteredInFlight.remove(filter);
+                    }
+                    if (t == null) {
+                        // devices fetched by a call started later are kept, so the result holds
+                        // each device fetched or a newer one
+                        result = devices.merge(fetched, filter, call.startedAt);
+                        if (result != devices) {
+                            // queued under the lock, so snapshots are published in the order they were merged
+                            publisher.offer(devices, result, fetched);
+                            this.devices = result;
+                        }
+                    }
+                }
+                publisher.drain();
+                if (t == null) {
+                    call.complete(result);
+                } else {
+                    call.completeExceptionally(unwrap(t));
+                }
+            });
+        }
+        // callers get their own stage, so that cancelling it does not affect others sharing the call
+        return call.thenApply(snapshot -> snapshot);
+    }
 
-        if (resp.getStatusLine().getStatusCode() == 200) {
-            try {
-                String data = EntityUtils.toString(resp.getEntity());
-                LOG.debug(data);
-                JsonElement json = new JsonParser().parse(data);
+    /**
+     * Pass the locations with a new timestamp to the location sink. Devices
+     * not merged, since a call started later fetched them, are skipped.
+     */
+    private void appendLocations(DeviceSnapshot before, DeviceSnapshot after, List<DeviceInfo> fetched) {
+        LocationSink sink = locationSink;
+        if (sink == null) {
+            return;
+        }
+        for (DeviceInfo di : fetched) {
+            if (!di.hasLocation() || di.getDeviceId() == null || after.getById(di.getDeviceId()) != di) {
+                continue;
+            }
+            DeviceInfo old = before.getById(di.getDeviceId());
+            if (old == null || !old.hasLocation() || old.getLocationTimestamp() != di.getLocationTimestamp()) {
+                try {
+                    sink.append(di.getDeviceId(), di.getDeviceLocation());
+                } catch (RuntimeException ex) {
+                    LOG.warn("Failed to store location of " + di.getDeviceName(), ex);
+                }
+            }
+        }
+    }
 
-                JsonArray jsonArray = json.getAsJsonObject().get("content").getAsJsonArray();
-                HashMap<String, DeviceInfo> tmpDevices = new HashMap<String, DeviceInfo>();
-                for (int i = 0; i < jsonArray.size(); i++) {
-                    DeviceInfo di = DeviceInfo.fromJson(jsonArray.get(i).toString());
-                    tmpDevices.put(di.getDeviceName(), di);
-                    LOG.debug(di);
+    /**
+     * Call initClient, following 330 redirects. A call failing against an
+     * endpoint from the cache that has not answered yet, which may be stale,
+     * is retried once against the FMIP host.
+     */
+    private CompletableFuture<List<DeviceInfo>> fetchDevices(final DeviceFilter filter, final int redirects) {
+        final AccountEndpoint endpoint = template.getEndpoint();
+        return postApiCallAsync(ApiFunction.INIT_CLIENT, new ByteArrayEntity(INIT_JSON_BODY), new DeviceListHandler(filter)).handle((result, t) -> {
+            if (t != null) {
+                Throwable cause = unwrap(t);
+                if (endpoint.equals(cachedEndpoint) && endpoint.getPartition() != null && isEndpointFailure(cause)) {
+                    LOG.info("Call to " + endpoint.getPartition().getAuthority() + " failed, asking the FMIP host for the partition of " + username);
+                    resetEndpoint(endpoint);
+                    return fetchDevices(filter, redirects);
                 }
-                this.devices = tmpDevices;
+                return Sosumi.<List<DeviceInfo>>failed(cause);
+            }
+            if (result != null) {
+                cachedEndpoint = null;
+                return CompletableFuture.completedFuture(result);
+            }
+            if (redirects >= MAX_REDIRECTS) {
+                LOG.warn("No successful response received");
+                return Sosumi.<List<DeviceInfo>>failed(new SosumiException("Did not receive a successful respose from FMIP service"));
+            }
+            LOG.debug("Following 330 redirect...");
+            return fetchDevices(filter, redirects + 1);
+        }).thenCompose(next -> next);
+    }
+
+    /**
+     * Whether a failed call may be caused by a stale endpoint: the partition
+     * could not be reached, failed or rejected the credentials. A partition
+     * reporting itself unavailable is waited for instead.
+     */
+    private static boolean isEndpointFailure(Throwable t) {
+        if (t instanceof PartitionUnavailableException) {
+            return false;
+        }
+        Throwable cause = t instanceof SosumiException && t.getCause() != null ? t.getCause() : t;
+        if (cause instanceof HttpResponseException) {
+            int status = ((HttpResponseException) cause).getStatusCode();
+            return status == 401 || status >= 500;
+        }
+        return cause instanceof IOException && !(cause instanceof ClientProtocolException);
+    }
 
-            } catch (IOException ex) {
-                throw new SosumiException("Failed to read response payload", ex);
-            } catch (ParseException ex) {
-                throw new SosumiException("Failed to parse response payload", ex);
+    /**
+     * Forget an endpoint that failed, unless a newer one has been learned
+     * meanwhile, so that the next call goes to the FMIP host.
+     */
+    private void resetEndpoint(AccountEndpoint failed) {
+        cachedEndpoint = null;
+        EndpointCache cache = this.endpointCache;
+        if (cache != null && failed.equals(cache.get(username))) {
+            cache.remove(username);
+        }
+        synchronized (refreshLock) {
+            if (template.getEndpoint().equals(failed)) {
+                this.template = template.withEndpoint(AccountEndpoint.UNKNOWN);
             }
-        } else {
-            LOG.warn("No successful response received");
-            throw new SosumiException("Did not receive a successful respose from FMIP service");
         }
     }
 
     public void sendMessage(String deviceName, String text, String subject, boolean sound) throws SosumiException {
-        DeviceInfo di = devices.get(deviceName);
+        touch();
+        DeviceInfo di = devices.getByName(deviceName);
         if (di == null) {
-            refresh();
-            di = devices.get(deviceName);
+            di = refresh().getByName(deviceName);
             if (di == null) {
                 throw new SosumiException("Unknown device: " + deviceName);
             }
         }
 
-        String json = "{" + CLIENT_CONTEXT
-                + ",\"device\":\"" + di.getDeviceId() + "\""
-                + ",\"emailUpdates\":null"
-                + ",\"sound\":\"" + sound + "\""
-                + ",\"subject\":\"" + subject + "\""
-                + ",\"text\":\"" + text + "\""
-                + ",\"userText\":\"true\""
-                + "}";
-
-        CloseableHttpResponse resp = postApiCall("sendMessage", json);
-        LOG.debug("Response: " + resp.getStatusLine());
-        if (resp.getStatusLine().getStatusCode() == 200) {
-            try {
-                String data = EntityUtils.toString(resp.getEntity());
-                LOG.debug(data);
+        postApiCall(ApiFunction.SEND_MESSAGE, writeMessage(di, text, subject, sound).toEntity(), new MessageHandler());
+    }
 
-            } catch (IOException ex) {
-                throw new SosumiException("Failed to read response payload", ex);
-            } catch (ParseException ex) {
-                throw new SosumiException("Failed to parse response payload", ex);
+    /**
+     * Asynchronous variant of
+     * {@link #sendMessage(String, String, String, boolean)}.
+     *
+     * @return a future completed when the message has been accepted by the
+     * FMIP service, or exceptionally with a SosumiException
+     */
+    public CompletableFuture<Void> sendMessageAsync(final String deviceName, final String text, final String subject, final boolean sound) {
+        touch();
+        DeviceInfo known = devices.getByName(deviceName);
+        CompletableFuture<DeviceInfo> device = known != null
+                ? CompletableFuture.completedFuture(known)
+                : refreshAsync(DeviceFilter.ALL).thenApply(snapshot -> snapshot.getByName(deviceName));
+        return device.thenCompose(di -> {
+            if (di == null) {
+                return failed(new SosumiException("Unknown device: " + deviceName));
             }
-        } else {
-            LOG.warn("No successful response received");
-            throw new SosumiException("Did not receive a successful respose from FMIP service");
-        }
+            // the body must outlive the thread-local buffer of this thread
+            byte[] body = writeMessage(di, text, subject, sound).toByteArray();
+            return postApiCallAsync(ApiFunction.SEND_MESSAGE, new ByteArrayEntity(body), new MessageHandler());
+        });
+    }
+
+    static JsonBodyWriter writeMessage(DeviceInfo di, String text, String subject, boolean sound) {
+        return JsonBodyWriter.get()
+                .raw(MESSAGE_JSON_PREFIX).string(di.getDeviceId())
+                .raw(",\"emailUpdates\":null")
+                .raw(",\"sound\":").string(String.valueOf(sound))
+                .raw(",\"subject\":").string(subject)
+                .raw(",\"text\":").string(text)
+                .raw(",\"userText\":\"true\"")
+                .raw("}");
     }
 
     /**
@@ -140,93 +350,647 @@ public class Sosumi {
      * @return the device location
      * @throws SosumiException
      */
-    @SuppressWarnings("SleepWhileInLoop")
     public DeviceLocation locateDevice(String deviceName, Integer timeout) throws SosumiException {
+        return locateDevice(deviceName, timeout, pollingPolicy);
+    }
+
+    /**
+     * Get the location of a device, polling as decided by a policy
+     *
+     * @param deviceName the name of the device to locate
+     * @param timeout timeout in seconds
+     * @param policy decides when to poll and which location to accept
+     * @return the device location
+     * @throws SosumiException
+     */
+    public DeviceLocation locateDevice(String deviceName, Integer timeout, PollingPolicy policy) throws SosumiException {
+        return await(locateDeviceAsync(deviceName, timeout, policy), "Interrupted while locating device");
+    }
+
+    /**
+     * Get the location of a device without blocking the calling thread. The
+     * polling is driven by the scheduler of this instance, so no thread is
+     * held while waiting for the device to report a finished location.
+     * Cancelling the returned future stops the polling.
+     *
+     * @param deviceName the name of the device to locate
+     * @param timeout timeout in seconds
+     * @return a future completed with the device location, or exceptionally
+     * with a SosumiException if the device could not be located in time
+     */
+    public CompletableFuture<DeviceLocation> locateDeviceAsync(String deviceName, Integer timeout) {
+        return locateDeviceAsync(deviceName, timeout, pollingPolicy);
+    }
+
+    /**
+     * Get the location of a device without blocking the calling thread,
+     * polling as decided by a policy.
+     *
+     * @param deviceName the name of the device to locate
+     * @param timeout timeout in seconds
+     * @param policy decides when to poll and which location to accept
+     * @return a future completed with the device location, or exceptionally
+     * with a SosumiException if the device could not be located in time
+     * @see PollingPolicies
+     */
+    public CompletableFuture<DeviceLocation> locateDeviceAsync(String deviceName, Integer timeout, PollingPolicy policy) {
         if (timeout == null) {
             timeout = 120;
         }
-        if (devices.get(deviceName) == null) {
-            refresh();
+        final int timeoutSeconds = timeout;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        final CompletableFuture<DeviceLocation> result = startLocate(deviceName, policy, null, deadline).result;
+        if (result.isDone()) {
+            return result;
         }
+        final ScheduledFuture<?> timeoutTask = scheduler.schedule(() -> {
+            result.completeExceptionally(new SosumiException("Failed to locate device. Request timed out (" + timeoutSeconds + "s)"));
+        }, timeoutSeconds, TimeUnit.SECONDS);
+        result.whenComplete((loc, t) -> timeoutTask.cancel(false));
+        return result;
+    }
+
+    /**
+     * Locate every device on the account. See
+     * {@link #locateAllAsync(Collection, Integer, PollingPolicy, Consumer)}.
+     *
+     * @param timeout timeout in seconds
+     * @return one result per device, also for devices that timed out
+     * @throws SosumiException if the devices could not be listed
+     */
+    public List<LocateResult> locateAll(Integer timeout) throws SosumiException {
+        return locateAll(null, timeout);
+    }
 
-        long timeoutMillis = timeout * 1000L;
-        long start = System.currentTimeMillis();
-        while (!devices.get(deviceName).isLocationFinished()) {
-            if ((System.currentTimeMillis() - start) > timeoutMillis) {
-                throw new SosumiException("Failed to locate device. Request timed out (" + timeout + "s)");
+    /**
+     * Locate some devices on the account. See
+     * {@link #locateAllAsync(Collection, Integer, PollingPolicy, Consumer)}.
+     *
+     * @param deviceNames names of the devices to locate, or null for all
+     * @param timeout timeout in seconds
+     * @return one result per device, also for devices that timed out
+     * @throws SosumiException if the devices could not be listed
+     */
+    public List<LocateResult> locateAll(Collection<String> deviceNames, Integer timeout) throws SosumiException {
+        return await(locateAllAsync(deviceNames, timeout, pollingPolicy, null), "Interrupted while locating devices");
+    }
+
+    /**
+     * Locate many devices on the account with a single polling loop. Each
+     * poll is one initClient call checked for every device still being
+     * located, so a sweep of the whole account costs no more calls than
+     * locating one device. A device that has not been located when the
+     * timeout expires gets a TIMED_OUT result with the last location it
+     * reported, instead of failing the sweep.
+     *
+     * @param deviceNames names of the devices to locate, or null for all the
+     * devices on the account
+     * @param timeout timeout in seconds
+     * @param policy decides when to poll and which location to accept
+     * @param listener called with the result of each device as soon as it
+     * is known, on the thread completing it, or null
+     * @return a future completed with one result per device name, in the
+     * order of the names given or of the service, or exceptionally with a
+     * SosumiException if the devices could not be listed. Cancelling it
+     * stops the polling.
+     */
+    public CompletableFuture<List<LocateResult>> locateAllAsync(Collection<String> deviceNames, Integer timeout, final PollingPolicy policy, final Consumer<LocateResult> listener) {
+        final int timeoutSeconds = timeout != null ? timeout : 120;
+        final long timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        final long started = System.nanoTime();
+        if (deviceNames != null) {
+            return new LocateSweep(new ArrayList<String>(deviceNames), policy, listener).start(timeoutNanos, timeoutSeconds);
+        }
+        DeviceSnapshot known = devices;
+        CompletableFuture<DeviceSnapshot> listed = known.getListedAt() > 0
+                ? CompletableFuture.completedFuture(known)
+                : refreshAsync(DeviceFilter.ALL);
+        return listed.thenCompose(snapshot -> {
+            // devices are located by name, so devices sharing a name are located once
+            Set<String> names = new LinkedHashSet<String>(snapshot.size() * 2);
+            for (DeviceInfo di : snapshot.getDevices()) {
+                names.add(di.getDeviceName());
             }
+            return new LocateSweep(new ArrayList<String>(names), policy, listener).start(timeoutNanos - (System.nanoTime() - started), timeoutSeconds);
+        });
+    }
+
+    /**
+     * Start locating a device, unless its last known location is accepted
+     * by the policy already.
+     */
+    private PendingLocate startLocate(String deviceName, PollingPolicy policy, LocateSweep sweep, long deadline) {
+        final CompletableFuture<DeviceLocation> result = new CompletableFuture<DeviceLocation>();
+        DeviceInfo known = devices.getByName(deviceName);
+        DeviceLocation knownLocation = known != null ? known.getDeviceLocation() : null;
+        final PendingLocate locate = new PendingLocate(deviceName, result, policy, knownLocation, sweep, deadline);
+        final SosumiMetrics m = metrics;
+        if (knownLocation != null && policy.accept(knownLocation)) {
+            m.locate(0, 0L, true);
+            result.complete(knownLocation);
+            return locate;
+        }
+        result.whenComplete((loc, t) -> {
+            poller.remove(locate);
+            m.locate(locate.progress.getPolls(), locate.progress.getElapsedNanos(), t == null);
+        });
+        if (known != null) {
+            locate.scheduleNext();
+        }
+        poller.add(locate);
+        return locate;
+    }
+
+    /**
+     * Set the polling policy used by locates that are not given one. The
+     * default polls every 5 seconds until the device reports a finished
+     * location.
+     *
+     * @param pollingPolicy the policy
+     * @see PollingPolicies
+     */
+    public void setPollingPolicy(PollingPolicy pollingPolicy) {
+        this.pollingPolicy = pollingPolicy;
+    }
+
+    /**
+     * Follow a device. The device is polled every track interval while it
+     * has subscriptions, and the listener is called whenever its location
+     * timestamp, coordinates, battery level or battery status changed, also
+     * when the change is seen by another refresh of this account. Listeners
+     * are called on the listener executor, so a slow listener does not delay
+     * the polling.
+     *
+     * @param deviceName the name of the device to follow
+     * @param listener receives the changes
+     * @return the subscription, to be cancelled when done
+     */
+    public Subscription track(String deviceName, DeviceListener listener) {
+        Track track = new Track(deviceName, listener);
+        tracker.add(track);
+        return track;
+    }
+
+    /**
+     * @param trackInterval milliseconds between polls of tracked devices
+     */
+    public void setTrackInterval(long trackInterval) {
+        this.trackInterval = trackInterval;
+        tracker.intervalChanged();
+    }
+
+    /**
+     * Poll the tracked devices from a poll scheduler shared by many
+     * accounts, instead of from the scheduler of this instance. Applies to
+     * the subscriptions made after the call.
+     *
+     * @param pollScheduler the poll scheduler, or null to use the scheduler
+     * of this instance
+     */
+    public void setPollScheduler(HashedWheelPollScheduler pollScheduler) {
+        this.pollScheduler = pollScheduler;
+    }
+
+    /**
+     * @param listenerExecutor executor calling the {@link DeviceListener}s.
+     * The default is a shared pool of daemon threads.
+     */
+    public void setListenerExecutor(Executor listenerExecutor) {
+        this.listenerExecutor = listenerExecutor;
+    }
+
+    /**
+     * @param locationSink receives every new location of the devices of this
+     * account on the listener executor, or null for none
+     * @see MappedLocationHistory
+     */
+    public void setLocationSink(LocationSink locationSink) {
+        this.locationSink = locationSink;
+    }
+
+    /**
+     * @param metrics receives the measurements of this account
+     * @see JmxSosumiMetrics
+     */
+    public void setMetrics(SosumiMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Protect the partition of this account from overload. Without a guard
+     * failed calls are not retried.
+     *
+     * @param partitionGuard the guard, or null for none
+     */
+    public void setPartitionGuard(PartitionGuard partitionGuard) {
+        this.partitionGuard = partitionGuard;
+    }
+
+    /**
+     * Ask the FMIP service for gzip or deflate compressed responses. The
+     * responses are decompressed while they are parsed. Enabled by default;
+     * disable to trade bandwidth for CPU.
+     *
+     * @param compressResponses true to send Accept-Encoding
+     */
+    public void setCompressResponses(boolean compressResponses) {
+        this.compressResponses = compressResponses;
+    }
+
+    /**
+     * Compress request bodies of at least 256 bytes with gzip. Messages are
+     * compressed, while the smaller initClient body is sent as is. Disabled
+     * by default, since the FMIP service is not known to accept it.
+     *
+     * @param compressRequests true to compress request bodies
+     */
+    public void setCompressRequests(boolean compressRequests) {
+        this.compressRequests = compressRequests;
+    }
+
+    /**
+     * The last known devices of this account. This never calls the FMIP
+     * service; the snapshot is empty until the first refresh.
+     *
+     * @return an immutable snapshot of the devices
+     */
+    public DeviceSnapshot getDeviceSnapshot() {
+        return devices;
+    }
+
+    /**
+     * Get the devices, fetching them only if the last known ones are older
+     * than a limit. Concurrent callers share a single refresh.
+     *
+     * @param maxAgeMillis how old the devices may be
+     * @return snapshot in which no device is older than the limit
+     * @throws SosumiException
+     */
+    public DeviceSnapshot getDevices(long maxAgeMillis) throws SosumiException {
+        return await(getDevicesAsync(maxAgeMillis), "Interrupted while waiting for device refresh");
+    }
+
+    /**
+     * Asynchronous variant of {@link #getDevices(long)}.
+     *
+     * @param maxAgeMillis how old the devices may be
+     * @return a future completed with the snapshot, or exceptionally with a
+     * SosumiException
+     */
+    public CompletableFuture<DeviceSnapshot> getDevicesAsync(long maxAgeMillis) {
+        touch();
+        DeviceSnapshot current = devices;
+        // devices fetched by filtered refreshes since are newer than the listing
+        if (current.getListedAt() > 0 && System.currentTimeMillis() - current.getListedAt() <= maxAgeMillis) {
+            return CompletableFuture.completedFuture(current);
+        }
+        return refreshAsync(DeviceFilter.ALL);
+    }
+
+    /**
+     * Get a device, fetching it only if the last known state is older than a
+     * limit. Concurrent callers share a single refresh.
+     *
+     * @param deviceName name of the device
+     * @param maxAgeMillis how old the device may be
+     * @return the device, or null if the account has no such device
+     * @throws SosumiException
+     */
+    public DeviceInfo getDevice(String deviceName, long maxAgeMillis) throws SosumiException {
+        return await(getDeviceAsync(deviceName, maxAgeMillis), "Interrupted while waiting for device refresh");
+    }
+
+    /**
+     * Asynchronous variant of {@link #getDevice(String, long)}.
+     *
+     * @param deviceName name of the device
+     * @param maxAgeMillis how old the device may be
+     * @return a future completed with the device or null, or exceptionally
+     * with a SosumiException
+     */
+    public CompletableFuture<DeviceInfo> getDeviceAsync(final String deviceName, long maxAgeMillis) {
+        touch();
+        DeviceSnapshot current = devices;
+        DeviceInfo di = current.getByName(deviceName);
+        long now = System.currentTimeMillis();
+        if (di != null ? now - current.getFetchedAt(di.getDeviceId()) <= maxAgeMillis
+                : current.getListedAt() > 0 && now - current.getListedAt() <= maxAgeMillis) {
+            // a device missing from a fresh enough listing does not exist
+            return CompletableFuture.completedFuture(di);
+        }
+        return refreshAsync(di != null ? DeviceFilters.byName(deviceName) : DeviceFilter.ALL)
+                .thenApply(snapshot -> snapshot.getByName(deviceName));
+    }
+
+    /**
+     * Execute an API call. The response is always fully consumed and its
+     * connection released back to the pool, whatever the outcome of the
+     * handler.
+     */
+    private <T> T postApiCall(ApiFunction function, HttpEntity body, ResponseHandler<T> handler) throws SosumiException {
+        body = encode(body);
+        final PartitionGuard guard = partitionGuard;
+        if (guard == null) {
+            return callApi(function, body, handler);
+        }
+        for (int attempt = 0;; attempt++) {
+            PartitionGuard.Partition partition = guard.partition(partitionName());
+            long started = partition.acquire();
+            StatusRecorder<T> recorder = new StatusRecorder<T>(handler);
             try {
-                Thread.sleep(locateRefreshInterval);
-            } catch (InterruptedException ex) {
-                throw new RuntimeException(ex);
+                T value = callApi(function, body, recorder);
+                partition.onSuccess(started);
+                return value;
+            } catch (SosumiException ex) {
+                long delay = release(partition, started, function, recorder, ex.getCause(), attempt);
+                if (delay < 0) {
+                    throw ex;
+                }
+                LOG.debug("Retrying " + function.getPath() + " in " + delay + " ms");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new SosumiException("Interrupted while backing off", ie);
+                }
             }
-            refresh();
         }
+    }
+
+    /**
+     * Asynchronous variant of postApiCall. The future fails with a
+     * SosumiException.
+     */
+    private <T> CompletableFuture<T> postApiCallAsync(ApiFunction function, HttpEntity body, ResponseHandler<T> handler) {
+        body = encode(body);
+        final PartitionGuard guard = partitionGuard;
+        if (guard == null) {
+            return callApiAsync(function, body, handler);
+        }
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        guardedCallAsync(guard, function, body, handler, 0, result);
+        return result;
+    }
 
-        return devices.get(deviceName).getDeviceLocation();
+    private <T> void guardedCallAsync(PartitionGuard guard, ApiFunction function, HttpEntity body, ResponseHandler<T> handler, int attempt, CompletableFuture<T> result) {
+        if (result.isDone()) {
+            return;
+        }
+        final PartitionGuard.Partition partition = guard.partition(partitionName());
+        final long started;
+        try {
+            started = partition.acquire();
+        } catch (PartitionUnavailableException ex) {
+            result.completeExceptionally(ex);
+            return;
+        }
+        final StatusRecorder<T> recorder = new StatusRecorder<T>(handler);
+        final CompletableFuture<T> call = callApiAsync(function, body, recorder);
+        call.whenComplete((value, t) -> {
+            if (t == null) {
+                partition.onSuccess(started);
+                result.complete(value);
+                return;
+            }
+            Throwable ex = unwrap(t);
+            if (call.isCancelled()) {
+                partition.onIgnore();
+                result.completeExceptionally(ex);
+                return;
+            }
+            long delay = release(partition, started, function, recorder, ex.getCause(), attempt);
+            if (delay < 0) {
+                result.completeExceptionally(ex);
+                return;
+            }
+            LOG.debug("Retrying " + function.getPath() + " in " + delay + " ms");
+            try {
+                scheduler.schedule(() -> guardedCallAsync(guard, function, body, handler, attempt + 1, result), delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ree) {
+                result.completeExceptionally(ex);
+            }
+        });
+        result.whenComplete((value, t) -> {
+            if (result.isCancelled()) {
+                call.cancel(true);
+            }
+        });
     }
 
-    private CloseableHttpResponse postApiCall(String urlFunction, String jsonBody) throws SosumiException {
+    /**
+     * Compress a request body when enabled. Done once per call, so retries
+     * reuse the compressed body.
+     */
+    private HttpEntity encode(HttpEntity body) {
+        if (!compressRequests) {
+            return body;
+        }
+        try {
+            return ContentCoding.compress(body);
+        } catch (IOException ex) {
+            LOG.warn("Failed to compress request body, sending it as is", ex);
+            return body;
+        }
+    }
 
-        URL baseUrl = this.partition != null ? this.partition : getFmipHost();
+    /**
+     * Record the failed call with the partition.
+     *
+     * @return the backoff before retrying, or -1 to not retry
+     */
+    private static long release(PartitionGuard.Partition partition, long started, ApiFunction function, StatusRecorder<?> recorder, Throwable cause, int attempt) {
+        int status = recorder.status;
+        if (status < 500 && (status != 0 || !(cause instanceof IOException))) {
+            // the partition answered, or the response could not be parsed
+            partition.onSuccess(started);
+            return -1L;
+        }
+        partition.onFailure();
+        // a message may have been sent unless the partition said it was unavailable
+        if (function != ApiFunction.INIT_CLIENT && status != 503) {
+            return -1L;
+        }
+        return partition.backoff(attempt, recorder.retryAfterMillis);
+    }
 
-        StringBuilder url = new StringBuilder();
-        url.append(baseUrl.toExternalForm());
-        url.append("/fmipservice/device/");
-        url.append(this.scope != null ? this.scope : getUsername());
-        url.append("/");
-        url.append(urlFunction);
+    private String partitionName() {
+        URL partition = template.getEndpoint().getPartition();
+        return (partition != null ? partition : fmipHost).getAuthority();
+    }
 
-        HttpPost httppost = new HttpPost(url.toString());
+    private <T> T callApi(ApiFunction function, HttpEntity body, ResponseHandler<T> handler) throws SosumiException {
+        HttpPost httppost = template.newPost(function.getPath(), body, compressResponses);
 
-        httppost.addHeader("Accept-Language", "en-us");
-        httppost.addHeader("Content-Type", "application/json; charset=utf-8");
-        httppost.addHeader("X-Apple-Realm-Support", "1.0");
-        httppost.addHeader("X-Apple-Find-Api-Ver", "3.0");
-        httppost.addHeader("X-Apple-Authscheme", "UserIdGuest");
-        httppost.addHeader("User-agent", "FindMyiPhone/376 CFNetwork/672.0.8 Darwin/14.0.0");
-        httppost.addHeader("Authorization", "Basic " + getBasicAuthCredentials());
+        LOG.debug("Executing request " + httppost.getRequestLine());
 
-        HttpEntity entity;
+        final SosumiMetrics m = metrics;
+        final StatusRecorder<T> recorder = m != SosumiMetrics.NONE ? new StatusRecorder<T>(handler) : null;
+        final long start = recorder != null ? System.nanoTime() : 0L;
         try {
-            entity = new StringEntity(jsonBody);
-        } catch (UnsupportedEncodingException ex) {
-            throw new RuntimeException(ex);
+            return transport.execute(httppost, recorder != null ? recorder : handler);
+        } catch (IOException ex) {
+            throw toSosumiException(ex);
+        } catch (RuntimeException ex) {
+            throw toSosumiException(ex);
+        } finally {
+            if (recorder != null) {
+                m.apiCall(function, recorder.status, System.nanoTime() - start);
+            }
         }
-        httppost.setEntity(entity);
+    }
+
+    private <T> CompletableFuture<T> callApiAsync(ApiFunction function, HttpEntity body, ResponseHandler<T> handler) {
+        HttpPost httppost = template.newPost(function.getPath(), body, compressResponses);
 
         LOG.debug("Executing request " + httppost.getRequestLine());
 
+        final SosumiMetrics m = metrics;
+        final StatusRecorder<T> recorder = m != SosumiMetrics.NONE ? new StatusRecorder<T>(handler) : null;
+        final long start = recorder != null ? System.nanoTime() : 0L;
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        final CompletableFuture<T> call = transport.executeAsync(httppost, recorder != null ? recorder : handler);
+        call.whenComplete((value, t) -> {
+            if (recorder != null) {
+                m.apiCall(function, recorder.status, System.nanoTime() - start);
+            }
+            if (t == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(toSosumiException(unwrap(t)));
+            }
+        });
+        result.whenComplete((value, t) -> {
+            if (result.isCancelled()) {
+                call.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private static SosumiException toSosumiException(Throwable t) {
+        if (t instanceof SosumiException) {
+            return (SosumiException) t;
+        } else if (t instanceof HttpResponseException) {
+            LOG.warn("No successful response received");
+            return new SosumiException("Did not receive a successful respose from FMIP service", t);
+        } else if (t instanceof IOException) {
+            return new SosumiException("Failed to execute request", t);
+        } else if (t instanceof JsonParseException || t instanceof IllegalStateException) {
+            return new SosumiException("Failed to parse response payload", t);
+        }
+        return new SosumiException("Failed to execute request", t);
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> f = new CompletableFuture<T>();
+        f.completeExceptionally(t);
+        return f;
+    }
+
+    /**
+     * Wait for a future of this class, unwrapping its failure.
+     */
+    private static <T> T await(CompletableFuture<T> future, String interruptedMessage) throws SosumiException {
         try {
-            CloseableHttpResponse resp = httpclient.execute(httppost);
-            return resp;
-        } catch (IOException ioe) {
-            throw new SosumiException("Failed to execute request", ioe);
+            return future.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SosumiException) {
+                throw (SosumiException) ex.getCause();
+            }
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new SosumiException("Failed to execute request", ex.getCause());
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new SosumiException(interruptedMessage, ex);
         }
     }
 
-    private String getBasicAuthCredentials() {
-        String userAndPass = getUsername() + ":" + getPassword();
-        return Base64.encodeBase64String(userAndPass.getBytes());
+    private static void checkStatus(HttpResponse resp) throws HttpResponseException {
+        LOG.debug("Response: " + resp.getStatusLine());
+        if (resp.getStatusLine().getStatusCode() != 200) {
+            throw new HttpResponseException(resp.getStatusLine().getStatusCode(), resp.getStatusLine().getReasonPhrase());
+        }
     }
 
-    void setLocateRefreshInterval(long locateRefreshInterval) {
-        this.locateRefreshInterval = locateRefreshInterval;
+    /**
+     * Use a cache for the partition and scope of this account. If the cache
+     * holds an endpoint for the account it is used right away, and every
+     * endpoint later learned from a 330 response is written to the cache. If
+     * the partition of a cached endpoint fails before it has answered once,
+     * the endpoint is removed from the cache and the FMIP host is asked
+     * again.
+     *
+     * @param endpointCache the cache, or null to stop using one
+     */
+    public void setEndpointCache(EndpointCache endpointCache) {
+        this.endpointCache = endpointCache;
+        if (endpointCache != null) {
+            AccountEndpoint ep = endpointCache.get(username);
+            if (ep != null) {
+                this.template = template.withEndpoint(ep);
+                this.cachedEndpoint = ep;
+            }
+        }
     }
 
-    private String getUsername() {
+    String getUsername() {
         return username;
     }
 
-    private String getPassword() {
-        return password;
+    /**
+     * Stop the background work of this client when its manager drops it.
+     * Its tracks are cancelled, which stops their polls, and its locates in
+     * progress fail.
+     */
+    void shutdown() {
+        for (Track track : tracker.tracks) {
+            track.cancel();
+        }
+        poller.failAll(new SosumiException("Account " + username + " was removed"));
     }
 
-    private URL getFmipHost() {
-        return fmipHost;
+    boolean hasPassword(String password) {
+        return this.password.equals(password);
     }
 
-    private void grabHeaders(CloseableHttpResponse response) {
+    /**
+     * Record that the account is in use, for the idle eviction of
+     * {@link SosumiClientManager}.
+     */
+    void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    AccountEndpoint getEndpoint() {
+        return template.getEndpoint();
+    }
+
+    static ScheduledExecutorService sharedScheduler() {
+        return SharedScheduler.INSTANCE;
+    }
+
+    static Executor sharedListenerExecutor() {
+        return SharedListenerExecutor.INSTANCE;
+    }
+
+    void setLocateRefreshInterval(long locateRefreshInterval) {
+        this.pollingPolicy = PollingPolicies.fixed(locateRefreshInterval);
+    }
+
+    private void grabHeaders(HttpResponse response) {
+        URL partition = this.template.getEndpoint().getPartition();
+        String scope = this.template.getEndpoint().getScope();
         Header hostHdr = response.getFirstHeader("X-Apple-MMe-Host");
         if (hostHdr != null) {
             try {
@@ -235,9 +999,9 @@ public class Sosumi {
                 if (colon >= 0) {
                     String host = val.substring(0, colon);
                     int port = Integer.parseInt(val.substring(colon + 1));
-                    this.partition = new URL(fmipHost.getProtocol(), host, port, "/");
+                    partition = new URL(fmipHost.getProtocol(), host, port, "/");
                 } else {
-                    this.partition = new URL(fmipHost.getProtocol(), hostHdr.getValue(), "/");
+                    partition = new URL(fmipHost.getProtocol(), hostHdr.getValue(), "/");
                 }
             } catch (MalformedURLException ex) {
                 throw new RuntimeException(ex);
@@ -245,7 +1009,637 @@ public class Sosumi {
         }
         Header scopeHdr = response.getFirstHeader("X-Apple-MMe-Scope");
         if (scopeHdr != null) {
-            this.scope = scopeHdr.getValue();
+            scope = scopeHdr.getValue();
+        }
+        AccountEndpoint ep = new AccountEndpoint(partition, scope);
+        this.template = template.withEndpoint(ep);
+        EndpointCache cache = this.endpointCache;
+        if (cache != null) {
+            cache.put(username, ep);
+        }
+    }
+
+    /**
+     * Parses the device list of an initClient response. A 330 response
+     * updates the endpoint and yields null, telling the caller to retry.
+     */
+    private class DeviceListHandler implements ResponseHandler<List<DeviceInfo>> {
+
+        private final DeviceFilter filter;
+
+        DeviceListHandler(DeviceFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public List<DeviceInfo> handleResponse(HttpResponse resp) throws IOException {
+            if (resp.getStatusLine().getStatusCode() == 330) {
+                LOG.debug("Response: " + resp.getStatusLine());
+                grabHeaders(resp);
+                return null;
+            }
+            checkStatus(resp);
+            HttpEntity entity = resp.getEntity();
+            if (entity == null) {
+                throw new ClientProtocolException("Empty response payload");
+            }
+            Charset charset = ContentType.getOrDefault(entity).getCharset();
+            // decompressed as it is parsed, without buffering the payload
+            InputStream in = ContentCoding.decode(entity);
+            try {
+                List<DeviceInfo> devices = DeviceListParser.parse(new InputStreamReader(in, charset != null ? charset : Consts.UTF_8), filter, Sosumi.this.devices);
+                if (devices == null) {
+                    throw new JsonParseException("No devices in response payload");
+                }
+                return devices;
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Checks the status of a sendMessage response.
+     */
+    private static class MessageHandler implements ResponseHandler<Void> {
+
+        @Override
+        public Void handleResponse(HttpResponse resp) throws IOException {
+            checkStatus(resp);
+            return null;
+        }
+    }
+
+    /**
+     * Remembers the status of the response for the metrics and the
+     * partition guard.
+     */
+    private static class StatusRecorder<T> implements ResponseHandler<T> {
+
+        private final ResponseHandler<T> handler;
+        private volatile int status;
+        private volatile long retryAfterMillis;
+
+        StatusRecorder(ResponseHandler<T> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public T handleResponse(HttpResponse resp) throws IOException {
+            status = resp.getStatusLine().getStatusCode();
+            if (status == 503) {
+                retryAfterMillis = retryAfter(resp);
+            }
+            return handler.handleResponse(resp);
+        }
+    }
+
+    /**
+     * @return the Retry-After of a response in milliseconds, or 0 if it has
+     * none in seconds
+     */
+    private static long retryAfter(HttpResponse resp) {
+        Header header = resp.getFirstHeader("Retry-After");
+        if (header != null) {
+            try {
+                return Math.max(0L, Long.parseLong(header.getValue().trim()) * 1000L);
+            } catch (NumberFormatException ex) {
+                LOG.debug("Ignoring Retry-After: " + header.getValue());
+            }
         }
+        return 0L;
+    }
+
+    /**
+     * A refresh in flight, shared by callers asking for the same selection,
+     * and by all callers while it fetches all devices.
+     */
+    private static class RefreshCall extends CompletableFuture<DeviceSnapshot> {
+
+        // time (in milliseconds since epoch) the fetch was started
+        private final long startedAt;
+
+        RefreshCall(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+
+    /**
+     * One locate in progress, waiting for its device to report a location
+     * accepted by its policy.
+     */
+    private static class PendingLocate {
+
+        private final String deviceName;
+        private final CompletableFuture<DeviceLocation> result;
+        private final PollingPolicy policy;
+        private final LocateProgress progress;
+        private final LocateSweep sweep;
+        // System.nanoTime() when the locate times out
+        private final long deadline;
+        private volatile long dueAt;
+
+        PendingLocate(String deviceName, CompletableFuture<DeviceLocation> result, PollingPolicy policy, DeviceLocation known, LocateSweep sweep, long deadline) {
+            this.deviceName = deviceName;
+            this.result = result;
+            this.policy = policy;
+            this.sweep = sweep;
+            this.deadline = deadline;
+            this.dueAt = System.nanoTime();
+            this.progress = new LocateProgress(dueAt, known);
+        }
+
+        boolean isDone() {
+            return result.isDone();
+        }
+
+        void scheduleNext() {
+            dueAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, policy.nextDelay(progress)));
+        }
+
+        /**
+         * Poll again once the partition may take calls, but no later than the
+         * deadline.
+         */
+        void postpone(long retryAfterMillis) {
+            long delay = Math.max(retryAfterMillis, policy.nextDelay(progress));
+            long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, delay));
+            dueAt = due - deadline > 0 ? deadline : due;
+        }
+
+        void check(DeviceSnapshot devices) {
+            DeviceInfo di = devices.getByName(deviceName);
+            if (di == null) {
+                result.completeExceptionally(new SosumiException("Unknown device: " + deviceName));
+                return;
+            }
+            DeviceLocation loc = di.getDeviceLocation();
+            progress.update(loc);
+            if (loc != null && policy.accept(loc)) {
+                result.complete(loc);
+            } else {
+                scheduleNext();
+            }
+        }
+    }
+
+    /**
+     * The devices being located by one locateAll. Their locates share the
+     * poll loop with all other locates, and are polled together whenever
+     * one of them is due.
+     */
+    private class LocateSweep {
+
+        private final List<String> names;
+        private final PollingPolicy policy;
+        private final Consumer<LocateResult> listener;
+        private final LocateResult[] results;
+        private final CompletableFuture<List<LocateResult>> done = new CompletableFuture<List<LocateResult>>();
+        private final List<PendingLocate> locates = new ArrayList<PendingLocate>();
+        private int remaining;
+        private volatile boolean timedOut;
+
+        LocateSweep(List<String> names, PollingPolicy policy, Consumer<LocateResult> listener) {
+            this.names = names;
+            this.policy = policy;
+            this.listener = listener;
+            this.results = new LocateResult[names.size()];
+            this.remaining = names.size();
+        }
+
+        /**
+         * @param timeoutNanos time left until the sweep times out
+         * @param timeoutSeconds the timeout asked for, for the message
+         */
+        CompletableFuture<List<LocateResult>> start(long timeoutNanos, int timeoutSeconds) {
+            if (names.isEmpty()) {
+                done.complete(Collections.<LocateResult>emptyList());
+                return done;
+            }
+            long deadline = System.nanoTime() + Math.max(0L, timeoutNanos);
+            for (String name : names) {
+                locates.add(startLocate(name, policy, this, deadline));
+            }
+            for (int i = 0; i < locates.size(); i++) {
+                final int index = i;
+                final PendingLocate locate = locates.get(i);
+                locate.result.whenComplete((loc, t) -> finish(index, locate, loc, t));
+            }
+            final ScheduledFuture<?> timeoutTask = scheduler.schedule(() -> {
+                timedOut = true;
+                SosumiException ex = new SosumiException("Failed to locate device. Request timed out (" + timeoutSeconds + "s)");
+                for (PendingLocate locate : locates) {
+                    locate.result.completeExceptionally(ex);
+                }
+            }, Math.max(0L, timeoutNanos), TimeUnit.NANOSECONDS);
+            done.whenComplete((list, t) -> {
+                timeoutTask.cancel(false);
+                if (done.isCancelled()) {
+                    for (PendingLocate locate : locates) {
+                        locate.result.cancel(false);
+                    }
+                }
+            });
+            return done;
+        }
+
+        private void finish(int index, PendingLocate locate, DeviceLocation loc, Throwable t) {
+            LocateResult result;
+            if (t == null) {
+                result = new LocateResult(locate.deviceName, LocateResult.Status.LOCATED, loc, null);
+            } else {
+                Throwable cause = unwrap(t);
+                result = new LocateResult(locate.deviceName, timedOut ? LocateResult.Status.TIMED_OUT : LocateResult.Status.FAILED,
+                        locate.progress.getCurrent(), cause instanceof SosumiException ? (SosumiException) cause : toSosumiException(cause));
+            }
+            if (listener != null && !done.isDone()) {
+                try {
+                    listener.accept(result);
+                } catch (RuntimeException ex) {
+                    LOG.warn("Locate listener failed", ex);
+                }
+            }
+            boolean last;
+            synchronized (this) {
+                results[index] = result;
+                last = --remaining == 0;
+            }
+            if (last) {
+                done.complete(Arrays.asList(results));
+            }
+        }
+    }
+
+    /**
+     * Single poll loop serving every locate in progress on this account. Each
+     * tick issues one refresh for the locates that are due and checks them
+     * against its result, so concurrent locates do not multiply the
+     * initClient calls. The next tick is scheduled for the earliest due
+     * locate. A tick rejected by the {@link PartitionGuard} leaves its
+     * locates pending until the partition may take calls again.
+     */
+    private class LocatePoller implements Runnable {
+
+        private final List<PendingLocate> pending = new ArrayList<PendingLocate>();
+        private ScheduledFuture<?> nextTick;
+        private boolean running;
+
+        synchronized void add(PendingLocate locate) {
+            pending.add(locate);
+            if (running) {
+                return;
+            }
+            long delay = locate.dueAt - System.nanoTime();
+            if (nextTick != null) {
+                if (nextTick.getDelay(TimeUnit.NANOSECONDS) <= delay) {
+                    return;
+                }
+                nextTick.cancel(false);
+            }
+            nextTick = scheduler.schedule(this, Math.max(0L, delay), TimeUnit.NANOSECONDS);
+        }
+
+        synchronized void remove(PendingLocate locate) {
+            pending.remove(locate);
+            if (pending.isEmpty() && nextTick != null) {
+                nextTick.cancel(false);
+                nextTick = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            final List<PendingLocate> batch = new ArrayList<PendingLocate>();
+            synchronized (this) {
+                nextTick = null;
+                running = true;
+                long now = System.nanoTime();
+                Set<LocateSweep> sweeps = null;
+                for (PendingLocate p : pending) {
+                    if (p.dueAt - now <= 0 && p.sweep != null) {
+                        if (sweeps == null) {
+                            sweeps = new HashSet<LocateSweep>();
+                        }
+                        sweeps.add(p.sweep);
+                    }
+                }
+                // the devices of a sweep are polled together
+                for (PendingLocate p : pending) {
+                    if (p.dueAt - now <= 0 || (sweeps != null && sweeps.contains(p.sweep))) {
+                        batch.add(p);
+                    }
+                }
+            }
+            if (batch.isEmpty()) {
+                finishTick();
+                return;
+            }
+            Set<String> names = new HashSet<String>();
+            for (PendingLocate p : batch) {
+                names.add(p.deviceName);
+            }
+            refreshAsync(DeviceFilters.byName(names)).whenComplete((result, t) -> {
+                try {
+                    Throwable cause = t != null ? unwrap(t) : null;
+                    if (cause instanceof PartitionUnavailableException) {
+                        // rejected without calling the partition, so the locates wait for it
+                        long retryAfter = ((PartitionUnavailableException) cause).getRetryAfterMillis();
+                        for (PendingLocate p : batch) {
+                            p.postpone(retryAfter);
+                        }
+                    } else if (cause != null) {
+                        fail(batch, cause);
+                    } else {
+                        for (PendingLocate p : batch) {
+                            if (!p.isDone()) {
+                                p.check(result);
+                            }
+                        }
+                    }
+                } finally {
+                    finishTick();
+                }
+            });
+        }
+
+        private synchronized void finishTick() {
+            running = false;
+            if (pending.isEmpty() || nextTick != null) {
+                return;
+            }
+            long dueAt = pending.get(0).dueAt;
+            for (PendingLocate p : pending) {
+                if (p.dueAt - dueAt < 0) {
+                    dueAt = p.dueAt;
+                }
+            }
+            nextTick = scheduler.schedule(this, Math.max(0L, dueAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+
+        void failAll(Throwable ex) {
+            List<PendingLocate> all;
+            synchronized (this) {
+                all = new ArrayList<PendingLocate>(pending);
+                if (nextTick != null) {
+                    nextTick.cancel(false);
+                    nextTick = null;
+                }
+            }
+            fail(all, ex);
+        }
+
+        private void fail(List<PendingLocate> batch, Throwable ex) {
+            for (PendingLocate p : batch) {
+                p.result.completeExceptionally(ex);
+            }
+        }
+    }
+
+    /**
+     * Passes merged snapshots to the location sink and the tracks, off the
+     * refresh lock and the thread completing the call. Snapshots are queued
+     * and handled by at most one listener executor task at a time, which
+     * keeps them in order.
+     */
+    private class Publisher implements Runnable {
+
+        private final Queue<Runnable> snapshots = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        void offer(final DeviceSnapshot before, final DeviceSnapshot after, final List<DeviceInfo> fetched) {
+            snapshots.add(() -> {
+                appendLocations(before, after, fetched);
+                tracker.publish(after);
+            });
+        }
+
+        void drain() {
+            if (!snapshots.isEmpty() && draining.compareAndSet(false, true)) {
+                try {
+                    listenerExecutor.execute(this);
+                } catch (RejectedExecutionException ex) {
+                    draining.set(false);
+                    LOG.warn("Failed to publish device snapshot", ex);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable snapshot;
+            while ((snapshot = snapshots.poll()) != null) {
+                try {
+                    snapshot.run();
+                } catch (RuntimeException ex) {
+                    LOG.warn("Failed to publish device snapshot", ex);
+                }
+            }
+            draining.set(false);
+            drain();
+        }
+    }
+
+    /**
+     * One subscription to a device. Changes are queued and delivered by at
+     * most one listener executor task at a time, which keeps them in order.
+     */
+    private class Track implements Subscription, Runnable {
+
+        private final String deviceName;
+        private final DeviceListener listener;
+        private final Queue<Runnable> events = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile boolean cancelled;
+        // only touched by the publisher
+        private DeviceInfo last;
+
+        Track(String deviceName, DeviceListener listener) {
+            this.deviceName = deviceName;
+            this.listener = listener;
+        }
+
+        void offer(DeviceInfo current) {
+            if (current == null || cancelled || !changed(last, current)) {
+                return;
+            }
+            final DeviceInfo previous = last;
+            last = current;
+            events.add(() -> listener.deviceChanged(previous, current));
+            drain();
+        }
+
+        private void drain() {
+            if (draining.compareAndSet(false, true)) {
+                try {
+                    listenerExecutor.execute(this);
+                } catch (RejectedExecutionException ex) {
+                    draining.set(false);
+                    LOG.warn("Failed to deliver change of " + deviceName, ex);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable event;
+            while ((event = events.poll()) != null) {
+                if (cancelled) {
+                    events.clear();
+                    break;
+                }
+                try {
+                    event.run();
+                } catch (RuntimeException ex) {
+                    LOG.warn("Device listener failed", ex);
+                }
+            }
+            draining.set(false);
+            if (!events.isEmpty()) {
+                drain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            tracker.remove(this);
+        }
+
+        private boolean changed(DeviceInfo before, DeviceInfo after) {
+            if (before == null) {
+                return true;
+            }
+            if (before == after) {
+                return false;
+            }
+            if (before.getBatteryLevel() != after.getBatteryLevel()
+                    || !Objects.equals(before.getBatteryStatus(), after.getBatteryStatus())) {
+                return true;
+            }
+            if (!before.hasLocation() || !after.hasLocation()) {
+                return before.hasLocation() != after.hasLocation();
+            }
+            return before.getLocationTimestamp() != after.getLocationTimestamp()
+                    || before.getLatitude() != after.getLatitude()
+                    || before.getLongitude() != after.getLongitude();
+        }
+    }
+
+    /**
+     * Poll loop of the tracked devices of this account. It refreshes the
+     * tracked devices every track interval while there are subscriptions.
+     * Changes are published from every refresh, not only its own.
+     */
+    private class Tracker implements Runnable {
+
+        private final List<Track> tracks = new CopyOnWriteArrayList<Track>();
+        private ScheduledFuture<?> nextTick;
+        private boolean running;
+        private HashedWheelPollScheduler.Poll poll;
+
+        synchronized void add(Track track) {
+            tracks.add(track);
+            if (poll != null || running || nextTick != null) {
+                return;
+            }
+            HashedWheelPollScheduler wheel = pollScheduler;
+            if (wheel != null) {
+                poll = wheel.schedule(this::pollTracked, trackInterval);
+            } else {
+                nextTick = scheduler.schedule(this, 0L, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        synchronized void remove(Track track) {
+            tracks.remove(track);
+            if (tracks.isEmpty() && nextTick != null) {
+                nextTick.cancel(false);
+                nextTick = null;
+            }
+            if (tracks.isEmpty() && poll != null) {
+                poll.cancel();
+                poll = null;
+            }
+        }
+
+        synchronized void intervalChanged() {
+            if (poll != null) {
+                poll.setInterval(trackInterval);
+            }
+        }
+
+        /**
+         * Called by the poll scheduler on one of its workers.
+         */
+        private void pollTracked() {
+            Set<String> names = new HashSet<String>();
+            for (Track track : tracks) {
+                names.add(track.deviceName);
+            }
+            if (names.isEmpty()) {
+                return;
+            }
+            try {
+                refresh(DeviceFilters.byName(names));
+            } catch (SosumiException ex) {
+                LOG.warn("Failed to refresh tracked devices " + names, ex);
+            }
+        }
+
+        /**
+         * Called by the publisher, one snapshot at a time in the order they
+         * were merged.
+         */
+        void publish(DeviceSnapshot snapshot) {
+            for (Track track : tracks) {
+                track.offer(snapshot.getByName(track.deviceName));
+            }
+        }
+
+        @Override
+        public void run() {
+            Set<String> names = new HashSet<String>();
+            synchronized (this) {
+                nextTick = null;
+                running = true;
+                for (Track track : tracks) {
+                    names.add(track.deviceName);
+                }
+            }
+            if (names.isEmpty()) {
+                finishTick();
+                return;
+            }
+            refreshAsync(DeviceFilters.byName(names)).whenComplete((result, t) -> {
+                if (t != null) {
+                    LOG.warn("Failed to refresh tracked devices " + names, unwrap(t));
+                }
+                finishTick();
+            });
+        }
+
+        private synchronized void finishTick() {
+            running = false;
+            if (!tracks.isEmpty() && nextTick == null) {
+                nextTick = scheduler.schedule(this, trackInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Executor calling the device listeners of all instances that are not
+     * given one explicitly.
+     */
+    private static class SharedListenerExecutor {
+
+        static final Executor INSTANCE = Executors.newCachedThreadPool(new DaemonThreadFactory("sosumi-listener"));
+    }
+
+    /**
+     * Scheduler shared by all instances that are not given one explicitly.
+     */
+    private static class SharedScheduler {
+
+        static final ScheduledExecutorService INSTANCE = Executors.newScheduledThreadPool(2, new DaemonThreadFactory("sosumi-scheduler"));
     }
 }
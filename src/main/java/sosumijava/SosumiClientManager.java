@@ -0,0 +1,590 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+
+/**
+ * Hosts many accounts on one pooled HTTP client. All accounts share the
+ * connections to the FMIP partition hosts, and the partition and scope
+ * learned for an account are kept in an {@link EndpointCache}.
+ *
+ * @author tomasca
+ */
+public class SosumiClientManager implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(SosumiClientManager.class);
+    private final URL fmipHost;
+    private final ConnectionPool pool;
+    private final SosumiTransport transport;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentMap<String, Sosumi> accounts = new ConcurrentHashMap<String, Sosumi>();
+    private volatile EndpointCache endpointCache = new InMemoryEndpointCache();
+    private volatile LocationSink locationSink;
+    private volatile SosumiMetrics metrics = SosumiMetrics.NONE;
+    private volatile PartitionGuard partitionGuard;
+    private volatile HashedWheelPollScheduler pollScheduler;
+    private volatile boolean compressResponses = true;
+    private volatile boolean compressRequests;
+    private volatile long keepAliveMillis = 30000L;
+    private volatile long idleTimeoutMillis = 30000L;
+    private volatile int maxAccounts = Integer.MAX_VALUE;
+    private volatile long accountIdleTimeoutMillis;
+    private final AtomicBoolean trimming = new AtomicBoolean();
+    private final ScheduledFuture<?> evictionTask;
+
+    /**
+     *
+     * @param fmipHostUrl Base URL where the Find My iPhone service is located. E.g https://fmipmobile.icloud.com
+     */
+    public SosumiClientManager(String fmipHostUrl) throws MalformedURLException {
+        this(fmipHostUrl, Sosumi.sharedScheduler());
+    }
+
+    /**
+     *
+     * @param fmipHostUrl Base URL where the Find My iPhone service is located. E.g https://fmipmobile.icloud.com
+     * @param scheduler scheduler driving locate polls and idle connection
+     * eviction, owned by the caller and not shut down by {@link #close()}
+     */
+    public SosumiClientManager(String fmipHostUrl, ScheduledExecutorService scheduler) throws MalformedURLException {
+        this(fmipHostUrl, scheduler, false);
+    }
+
+    /**
+     *
+     * @param fmipHostUrl Base URL where the Find My iPhone service is located. E.g https://fmipmobile.icloud.com
+     * @param scheduler scheduler driving locate polls and idle connection
+     * eviction, owned by the caller and not shut down by {@link #close()}
+     * @param nonBlocking true to run the accounts on a non-blocking
+     * {@link AsyncTransport}, false for a {@link BlockingTransport}
+     */
+    public SosumiClientManager(String fmipHostUrl, ScheduledExecutorService scheduler, boolean nonBlocking) throws MalformedURLException {
+        this.fmipHost = new URL(fmipHostUrl);
+        this.scheduler = scheduler;
+        if (nonBlocking) {
+            final PoolingNHttpClientConnectionManager cm;
+            try {
+                cm = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor());
+            } catch (IOReactorException ex) {
+                throw new IllegalStateException("Failed to create I/O reactor", ex);
+            }
+            final MeteredNHttpConnectionManager metered = new MeteredNHttpConnectionManager(cm);
+            this.pool = new ConnectionPool() {
+                @Override
+                public void setMaxTotal(int max) {
+                    cm.setMaxTotal(max);
+                }
+
+                @Override
+                public void setDefaultMaxPerRoute(int max) {
+                    cm.setDefaultMaxPerRoute(max);
+                }
+
+                @Override
+                public void evict(long idleTimeoutMillis) {
+                    cm.closeExpiredConnections();
+                    cm.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+                }
+
+                @Override
+                public PoolStats getStats() {
+                    return cm.getTotalStats();
+                }
+
+                @Override
+                public void setMetrics(SosumiMetrics metrics) {
+                    metered.setMetrics(metrics);
+                }
+            };
+            this.transport = new AsyncTransport(HttpAsyncClients.custom()
+                    .setConnectionManager(metered)
+                    .setKeepAliveStrategy(new KeepAliveStrategy())
+                    .build());
+        } else {
+            final PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+            final MeteredConnectionManager metered = new MeteredConnectionManager(cm);
+            // as many I/O threads as connections, resized with the pool
+            final BlockingTransport blocking = new BlockingTransport(HttpClients.custom()
+                    .setConnectionManager(metered)
+                    .disableContentCompression()
+                    .setKeepAliveStrategy(new KeepAliveStrategy())
+                    .build(), 200);
+            this.pool = new ConnectionPool() {
+                @Override
+                public void setMaxTotal(int max) {
+                    cm.setMaxTotal(max);
+                    blocking.setMaxConcurrency(max);
+                }
+
+                @Override
+                public void setDefaultMaxPerRoute(int max) {
+                    cm.setDefaultMaxPerRoute(max);
+                }
+
+                @Override
+                public void evict(long idleTimeoutMillis) {
+                    cm.closeExpiredConnections();
+                    cm.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+                }
+
+                @Override
+                public PoolStats getStats() {
+                    return cm.getTotalStats();
+                }
+
+                @Override
+                public void setMetrics(SosumiMetrics metrics) {
+                    metered.setMetrics(metrics);
+                }
+            };
+            this.transport = blocking;
+        }
+        pool.setMaxTotal(200);
+        pool.setDefaultMaxPerRoute(50);
+        this.evictionTask = scheduler.scheduleWithFixedDelay(() -> {
+            evictConnections();
+            evictAccounts();
+        }, 5L, 5L, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get the client for an account, creating it if needed. The same client
+     * is returned for an account as long as the password is unchanged. The
+     * client replaced after a password change stops its tracks and locates.
+     *
+     * @param username iCloud username (Apple ID)
+     * @param password iCloud password
+     * @return client for the account
+     */
+    public Sosumi getAccount(String username, String password) {
+        Sosumi current = accounts.get(username);
+        while (current == null || !current.hasPassword(password)) {
+            Sosumi created = newClient(username, password);
+            if (current == null) {
+                current = accounts.putIfAbsent(username, created);
+                if (current == null) {
+                    if (accounts.size() > maxAccounts) {
+                        trimAccounts();
+                    }
+                    return created;
+                }
+            } else if (accounts.replace(username, current, created)) {
+                current.shutdown();
+                return created;
+            } else {
+                current = accounts.get(username);
+            }
+        }
+        current.touch();
+        return current;
+    }
+
+    /**
+     * Stop hosting an account. Its tracks are cancelled and its locates in
+     * progress fail. Its partition and scope stay in the endpoint cache in
+     * case it is added again.
+     *
+     * @param username iCloud username (Apple ID)
+     */
+    public void removeAccount(String username) {
+        Sosumi removed = accounts.remove(username);
+        if (removed != null) {
+            removed.shutdown();
+        }
+    }
+
+    /**
+     * Add many accounts and fetch their devices in parallel, which also
+     * records their endpoints in the endpoint cache. At most
+     * {@code concurrency} accounts are initialized at a time.
+     *
+     * @param credentials password per username
+     * @param concurrency maximum number of accounts initialized at a time
+     * @return the accounts that failed, with the reason
+     * @throws SosumiException if interrupted while waiting
+     */
+    public Map<String, SosumiException> warmUp(Map<String, String> credentials, int concurrency) throws SosumiException {
+        CompletableFuture<Map<String, SosumiException>> future = warmUpAsync(credentials, concurrency);
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            throw new SosumiException("Failed to warm up accounts", ex.getCause());
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new SosumiException("Interrupted while warming up accounts", ex);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #warmUp(Map, int)}. No thread is held
+     * while the accounts are initialized.
+     *
+     * @param credentials password per username
+     * @param concurrency maximum number of accounts initialized at a time
+     * @return a future completed with the accounts that failed, once every
+     * account has been attempted
+     */
+    public CompletableFuture<Map<String, SosumiException>> warmUpAsync(Map<String, String> credentials, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        }
+        WarmUp warmUp = new WarmUp(credentials, concurrency);
+        warmUp.drain();
+        return warmUp.done;
+    }
+
+    public int getAccountCount() {
+        return accounts.size();
+    }
+
+    /**
+     * Set the cache holding the partition and scope of each account. It
+     * applies to accounts added after the call. The default cache lives as
+     * long as this manager.
+     *
+     * @param endpointCache the cache
+     */
+    public void setEndpointCache(EndpointCache endpointCache) {
+        this.endpointCache = endpointCache;
+    }
+
+    /**
+     * Set the sink receiving the new locations of all accounts, such as an
+     * {@link InMemoryLocationHistory} for the whole fleet. It applies to
+     * accounts added after the call.
+     *
+     * @param locationSink the sink, or null for none
+     */
+    public void setLocationSink(LocationSink locationSink) {
+        this.locationSink = locationSink;
+    }
+
+    /**
+     * Set the metrics of the connection pool and of the accounts added after
+     * the call. The pool state is reported every 5 seconds.
+     *
+     * @param metrics receives the measurements
+     * @see JmxSosumiMetrics
+     */
+    public void setMetrics(SosumiMetrics metrics) {
+        this.metrics = metrics;
+        pool.setMetrics(metrics);
+    }
+
+    /**
+     * Set the guard shared by the accounts added after the call, limiting
+     * the load on each partition and failing fast while a partition is
+     * failing.
+     *
+     * @param partitionGuard the guard, or null for none
+     */
+    public void setPartitionGuard(PartitionGuard partitionGuard) {
+        this.partitionGuard = partitionGuard;
+    }
+
+    /**
+     * Set the poll scheduler polling the tracked devices of the accounts
+     * added after the call, so that many accounts can be tracked with a
+     * bounded number of threads. The scheduler is not closed with the
+     * manager.
+     *
+     * @param pollScheduler the poll scheduler, or null to poll from the
+     * scheduler of the manager
+     */
+    public void setPollScheduler(HashedWheelPollScheduler pollScheduler) {
+        this.pollScheduler = pollScheduler;
+    }
+
+    /**
+     * @param compressResponses true for accounts added after the call to
+     * accept compressed responses
+     * @see Sosumi#setCompressResponses(boolean)
+     */
+    public void setCompressResponses(boolean compressResponses) {
+        this.compressResponses = compressResponses;
+    }
+
+    /**
+     * @param compressRequests true for accounts added after the call to
+     * compress request bodies
+     * @see Sosumi#setCompressRequests(boolean)
+     */
+    public void setCompressRequests(boolean compressRequests) {
+        this.compressRequests = compressRequests;
+    }
+
+    /**
+     * Bound the number of accounts hosted. When more accounts are added, the
+     * least recently used ones are removed shortly after. An account is used
+     * when it is returned by {@link #getAccount(String, String)} and when
+     * its devices are read, refreshed, located or tracked. The tracks of a
+     * removed account are cancelled and its locates in progress fail.
+     *
+     * @param maxAccounts maximum number of accounts
+     */
+    public void setMaxAccounts(int maxAccounts) {
+        if (maxAccounts < 1) {
+            throw new IllegalArgumentException("maxAccounts must be at least 1");
+        }
+        this.maxAccounts = maxAccounts;
+        if (accounts.size() > maxAccounts) {
+            trimAccounts();
+        }
+    }
+
+    /**
+     * Remove accounts that have not been used for a while, checked every 5
+     * seconds. A removed account is created again by the next
+     * {@link #getAccount(String, String)}, with its endpoint from the
+     * endpoint cache.
+     *
+     * @param idleMillis idle time after which an account is removed, or 0 to
+     * keep idle accounts
+     */
+    public void setAccountIdleTimeout(long idleMillis) {
+        this.accountIdleTimeoutMillis = idleMillis;
+    }
+
+    /**
+     * @param maxTotal maximum number of connections in the pool
+     */
+    public void setMaxTotalConnections(int maxTotal) {
+        pool.setMaxTotal(maxTotal);
+    }
+
+    /**
+     * @param maxPerRoute maximum number of connections to a single partition host
+     */
+    public void setMaxConnectionsPerRoute(int maxPerRoute) {
+        pool.setDefaultMaxPerRoute(maxPerRoute);
+    }
+
+    /**
+     * @param keepAliveMillis how long an idle connection is kept alive when
+     * the server does not ask for less
+     */
+    public void setKeepAlive(long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    /**
+     * @param idleTimeoutMillis idle time after which pooled connections are
+     * closed by the background eviction
+     */
+    public void setIdleTimeout(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    @Override
+    public void close() throws IOException {
+        evictionTask.cancel(false);
+        for (Sosumi client : accounts.values()) {
+            client.shutdown();
+        }
+        accounts.clear();
+        transport.close();
+    }
+
+    private Sosumi newClient(String username, String password) {
+        Sosumi client = new Sosumi(fmipHost, username, password, transport, scheduler, AccountEndpoint.UNKNOWN);
+        client.setEndpointCache(endpointCache);
+        client.setLocationSink(locationSink);
+        client.setMetrics(metrics);
+        client.setPartitionGuard(partitionGuard);
+        client.setPollScheduler(pollScheduler);
+        client.setCompressResponses(compressResponses);
+        client.setCompressRequests(compressRequests);
+        return client;
+    }
+
+    private void evictConnections() {
+        try {
+            pool.evict(idleTimeoutMillis);
+            SosumiMetrics m = metrics;
+            if (m != SosumiMetrics.NONE) {
+                PoolStats stats = pool.getStats();
+                m.poolStats(stats.getLeased(), stats.getPending(), stats.getAvailable(), stats.getMax());
+            }
+        } catch (RuntimeException ex) {
+            LOG.warn("Failed to evict idle connections", ex);
+        }
+    }
+
+    void evictAccounts() {
+        long idle = accountIdleTimeoutMillis;
+        if (idle > 0) {
+            long oldest = System.currentTimeMillis() - idle;
+            for (Map.Entry<String, Sosumi> e : accounts.entrySet()) {
+                if (e.getValue().getLastAccess() < oldest && accounts.remove(e.getKey(), e.getValue())) {
+                    e.getValue().shutdown();
+                    LOG.debug("Removed idle account " + e.getKey());
+                }
+            }
+        }
+        if (accounts.size() > maxAccounts) {
+            trimAccounts();
+        }
+    }
+
+    /**
+     * Remove the least recently used accounts over the maximum, on the
+     * scheduler so that adding an account stays cheap. One trim runs at a
+     * time.
+     */
+    private void trimAccounts() {
+        if (!trimming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            scheduler.execute(() -> {
+                try {
+                    int excess = accounts.size() - maxAccounts;
+                    if (excess <= 0) {
+                        return;
+                    }
+                    List<Map.Entry<String, Sosumi>> lru = new ArrayList<Map.Entry<String, Sosumi>>(accounts.entrySet());
+                    // last access times move while sorting, so sort on a copy of them
+                    long[] access = new long[lru.size()];
+                    Integer[] order = new Integer[lru.size()];
+                    for (int i = 0; i < order.length; i++) {
+                        access[i] = lru.get(i).getValue().getLastAccess();
+                        order[i] = i;
+                    }
+                    Arrays.sort(order, (a, b) -> Long.compare(access[a], access[b]));
+                    for (int i = 0; i < excess && i < order.length; i++) {
+                        Map.Entry<String, Sosumi> e = lru.get(order[i]);
+                        if (accounts.remove(e.getKey(), e.getValue())) {
+                            e.getValue().shutdown();
+                        }
+                    }
+                    LOG.debug("Removed " + excess + " least recently used accounts");
+                } finally {
+                    trimming.set(false);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            trimming.set(false);
+        }
+    }
+
+    /**
+     * Initializes accounts with a bounded number in flight. The next account
+     * is started by whichever thread drains the warm-up, in a loop rather
+     * than by recursion, since a refresh may complete on the thread starting
+     * it.
+     */
+    private class WarmUp {
+
+        private final Iterator<Map.Entry<String, String>> remaining;
+        private final Map<String, SosumiException> failures = new ConcurrentHashMap<String, SosumiException>();
+        private final CompletableFuture<Map<String, SosumiException>> done = new CompletableFuture<Map<String, SosumiException>>();
+        private final AtomicInteger permits;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger draining = new AtomicInteger();
+
+        WarmUp(Map<String, String> credentials, int concurrency) {
+            this.remaining = new ArrayList<Map.Entry<String, String>>(credentials.entrySet()).iterator();
+            this.permits = new AtomicInteger(concurrency);
+        }
+
+        void drain() {
+            if (draining.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                // the iterator is only touched by the draining thread
+                while (remaining.hasNext() && !done.isDone() && permits.get() > 0) {
+                    permits.decrementAndGet();
+                    inFlight.incrementAndGet();
+                    start(remaining.next());
+                }
+                if ((!remaining.hasNext() || done.isDone()) && inFlight.get() == 0) {
+                    done.complete(failures);
+                }
+            } while (draining.decrementAndGet() != 0);
+        }
+
+        private void start(final Map.Entry<String, String> account) {
+            CompletableFuture<DeviceSnapshot> refreshed;
+            try {
+                refreshed = getAccount(account.getKey(), account.getValue()).refreshAsync(DeviceFilter.ALL);
+            } catch (RuntimeException ex) {
+                refreshed = new CompletableFuture<DeviceSnapshot>();
+                refreshed.completeExceptionally(ex);
+            }
+            refreshed.whenComplete((snapshot, t) -> {
+                if (t != null) {
+                    Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                    failures.put(account.getKey(), cause instanceof SosumiException ? (SosumiException) cause : new SosumiException("Failed to initialize account", cause));
+                }
+                inFlight.decrementAndGet();
+                permits.incrementAndGet();
+                drain();
+            });
+        }
+    }
+
+    /**
+     * The pool settings shared by the blocking and the non-blocking
+     * connection managers.
+     */
+    private interface ConnectionPool {
+
+        void setMaxTotal(int max);
+
+        void setDefaultMaxPerRoute(int max);
+
+        void evict(long idleTimeoutMillis);
+
+        PoolStats getStats();
+
+        void setMetrics(SosumiMetrics metrics);
+    }
+
+    /**
+     * Honours the keep-alive timeout sent by the server, but never keeps a
+     * connection longer than the configured keep-alive.
+     */
+    private class KeepAliveStrategy extends DefaultConnectionKeepAliveStrategy {
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = super.getKeepAliveDuration(response, context);
+            return duration > 0 ? Math.min(duration, keepAliveMillis) : keepAliveMillis;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * Receives measurements from the clients and the connection pool. Methods
+ * are called on the request paths, so implementations must be fast and
+ * thread safe. The arguments are primitives, so that nothing is allocated
+ * when metrics are disabled with {@link #NONE}.
+ *
+ * @see JmxSosumiMetrics
+ * @author tomasca
+ */
+public interface SosumiMetrics {
+
+    /**
+     * Discards all measurements.
+     */
+    SosumiMetrics NONE = new SosumiMetrics() {
+        @Override
+        public void apiCall(ApiFunction function, int status, long nanos) {
+        }
+
+        @Override
+        public void locate(int polls, long nanos, boolean located) {
+        }
+
+        @Override
+        public void connectionLeased(long waitNanos) {
+        }
+
+        @Override
+        public void poolStats(int leased, int pending, int available, int max) {
+        }
+    };
+
+    /**
+     * Called when an API call completes, also when it failed.
+     *
+     * @param function the function called
+     * @param status HTTP status of the response, or 0 if no response was
+     * received
+     * @param nanos time from sending the request until the response was
+     * handled
+     */
+    void apiCall(ApiFunction function, int status, long nanos);
+
+    /**
+     * Called when a locate completes.
+     *
+     * @param polls number of polls made for the locate, 0 if it was served
+     * from the last known location
+     * @param nanos time from starting the locate until it completed
+     * @param located true if a location was found, false if the locate
+     * failed, timed out or was cancelled
+     */
+    void locate(int polls, long nanos, boolean located);
+
+    /**
+     * Called when a pooled connection is leased for a request.
+     *
+     * @param waitNanos time spent waiting for the connection
+     */
+    void connectionLeased(long waitNanos);
+
+    /**
+     * Called periodically with the state of the connection pool.
+     *
+     * @param leased connections in use
+     * @param pending requests waiting for a connection
+     * @param available idle connections
+     * @param max maximum number of connections
+     */
+    void poolStats(int leased, int pending, int available, int max);
+}
@@ -0,0 +1,43 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Executes the HTTP requests of the API calls. Implementations must consume
+ * and release every response, whatever the outcome of the handler.
+ *
+ * @see BlockingTransport
+ * @see AsyncTransport
+ * @author tomasca
+ */
+public interface SosumiTransport extends Closeable {
+
+    /**
+     * Execute a request and wait for the handled response.
+     *
+     * @param request the request to send
+     * @param handler turns the response into a result
+     * @return the result of the handler
+     * @throws IOException if the request failed or the handler threw one
+     */
+    <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException;
+
+    /**
+     * Execute a request without waiting for the response. The request entity
+     * must not be modified until the returned future is completed.
+     *
+     * @param request the request to send
+     * @param handler turns the response into a result
+     * @return a future completed with the result of the handler, or
+     * exceptionally with the failure. Cancelling it aborts the request.
+     */
+    <T> CompletableFuture<T> executeAsync(HttpUriRequest request, ResponseHandler<? extends T> handler);
+}
@@ -0,0 +1,19 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+/**
+ * A subscription to the changes of a device.
+ *
+ * @author tomasca
+ */
+public interface Subscription {
+
+    /**
+     * Stop delivering changes. Polling for the device stops when it has no
+     * subscriptions left.
+     */
+    void cancel();
+}
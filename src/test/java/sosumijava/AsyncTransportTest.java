@@ -0,0 +1,98 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tomasca
+ */
+public class AsyncTransportTest {
+
+    private LocalTestServer server = null;
+    private SosumiClientManager manager;
+    private String primaryServiceAddress;
+    private String secondaryServiceAddress;
+    private final AtomicInteger messages = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalTestServer(null, null);
+        server.register("/*", new HttpRequestHandler() {
+            // Redirects requests to the primary address, serves a device list and accepts messages on the secondary
+            public void handle(HttpRequest req, HttpResponse resp, HttpContext context) throws HttpException, IOException {
+                if (req.getFirstHeader("Host").getValue().equals(primaryServiceAddress)) {
+                    resp.addHeader("X-Apple-MMe-Host", secondaryServiceAddress);
+                    resp.addHeader("X-Apple-MMe-Scope", "scope");
+                    resp.setStatusCode(330);
+                } else if (req.getRequestLine().getUri().endsWith("/initClient")) {
+                    resp.setEntity(new StringEntity("{\"content\":[{\"id\":\"id-phone\",\"name\":\"MyPhone\",\"location\":{\"timeStamp\":1392159139870,\"horizontalAccuracy\":10.0,\"locationFinished\":true,\"longitude\":12.0,\"latitude\":60.0}}]}"));
+                    resp.setStatusCode(200);
+                } else {
+                    messages.incrementAndGet();
+                    try {
+                        Thread.sleep(10L);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    resp.setStatusCode(200);
+                }
+            }
+        });
+        server.start();
+        primaryServiceAddress = server.getServiceAddress().getHostName() + ":" + server.getServiceAddress().getPort();
+        secondaryServiceAddress = server.getServiceAddress().getAddress().getHostAddress() + ":" + server.getServiceAddress().getPort();
+        manager = new SosumiClientManager("http://" + primaryServiceAddress, Sosumi.sharedScheduler(), true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.close();
+        server.stop();
+    }
+
+    @Test
+    public void testLocateDevice() throws Exception {
+        DeviceLocation loc = manager.getAccount("user", "pass").locateDevice("MyPhone", 10);
+        assertEquals("lat", 60.0, loc.getLatitude(), 0.0);
+        assertEquals("lon", 12.0, loc.getLongitude(), 0.0);
+    }
+
+    @Test
+    public void testManyMessagesInFlight() throws Exception {
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(manager.getAccount("user" + (i % 10), "pass").sendMessageAsync("MyPhone", "Text " + i, "Subject", false));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).get();
+        assertEquals("messages", 200, messages.get());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        try {
+            manager.getAccount("user", "pass").sendMessageAsync("Unknown", "Text", "Subject", false).join();
+            fail("should fail for unknown device");
+        } catch (RuntimeException ex) {
+            assertTrue("should fail with SosumiException", ex.getCause() instanceof SosumiException);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import static org.junit.Assert.fail;
+
+/**
+ * Waits in tests for a condition to become true, or for a count to stop
+ * changing, instead of sleeping a fixed time and hoping it did.
+ *
+ * @author tomasca
+ */
+final class Await {
+
+    private Await() {
+    }
+
+    /**
+     * @param message assertion message if the condition does not hold in time
+     * @param timeoutMillis how long to wait
+     * @param condition the condition
+     */
+    static void until(String message, long timeoutMillis, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                fail(message);
+            }
+            Thread.sleep(5L);
+        }
+    }
+
+    /**
+     * Wait for a count to stop changing, such as the calls of a poll loop
+     * that should have stopped. A call in flight may still finish, so the
+     * count only has to stay unchanged for a quiet period, which should be a
+     * few poll intervals.
+     *
+     * @param message assertion message if the count keeps changing
+     * @param quietMillis how long the count must stay unchanged
+     * @param timeoutMillis how long to wait
+     * @param count the count
+     * @return the stable count
+     */
+    static long stable(String message, long quietMillis, long timeoutMillis, LongSupplier count) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        long value = count.getAsLong();
+        long since = System.nanoTime();
+        while (System.nanoTime() - since < quietMillis * 1000000L) {
+            if (System.nanoTime() - deadline > 0) {
+                fail(message + ": still changing at " + value);
+            }
+            Thread.sleep(5L);
+            long current = count.getAsLong();
+            if (current != value) {
+                value = current;
+                since = System.nanoTime();
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.BasicResponseHandler;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tomasca
+ */
+public class BlockingTransportTest {
+
+    private LocalTestServer server = null;
+    private BlockingTransport transport;
+    private String url;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalTestServer(null, null);
+        server.register("/*", new HttpRequestHandler() {
+            // The first request hangs until released
+            public void handle(HttpRequest req, HttpResponse resp, HttpContext context) throws HttpException, IOException {
+                if (requests.incrementAndGet() == 1) {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                resp.setEntity(new StringEntity("ok"));
+                resp.setStatusCode(200);
+            }
+        });
+        server.start();
+        url = "http://" + server.getServiceAddress().getHostName() + ":" + server.getServiceAddress().getPort() + "/";
+        // a single I/O thread, so a call left running would block the next
+        transport = new BlockingTransport(HttpClients.createDefault(), 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        transport.close();
+        server.stop();
+    }
+
+    @Test
+    public void testCancelAbortsRequest() throws Exception {
+        CompletableFuture<String> hanging = transport.executeAsync(new HttpGet(url), new BasicResponseHandler());
+        Await.until("request should reach the server", 5000L, () -> requests.get() == 1);
+        hanging.cancel(true);
+        CompletableFuture<String> next = transport.executeAsync(new HttpGet(url), new BasicResponseHandler());
+        assertEquals("the I/O thread is free again", "ok", next.get(5, TimeUnit.SECONDS));
+    }
+}
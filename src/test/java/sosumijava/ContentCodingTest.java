@@ -0,0 +1,100 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.http.Consts;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.entity.ByteArrayEntity;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tomasca
+ */
+public class ContentCodingTest {
+
+    private static final String JSON = "{\"statusCode\":\"200\",\"content\":[{\"id\":\"abc\",\"name\":\"MyiPhone\"}]}";
+
+    @Test
+    public void testDecode() throws Exception {
+        byte[] plain = JSON.getBytes(Consts.UTF_8);
+        assertEquals("identity", JSON, read(ContentCoding.decode(entity(plain, null))));
+        assertEquals("identity", JSON, read(ContentCoding.decode(entity(plain, "identity"))));
+        assertEquals("gzip", JSON, read(ContentCoding.decode(entity(gzip(plain), "gzip"))));
+        assertEquals("x-gzip", JSON, read(ContentCoding.decode(entity(gzip(plain), "X-GZIP"))));
+        assertEquals("zlib deflate", JSON, read(ContentCoding.decode(entity(deflate(plain, false), "deflate"))));
+        assertEquals("raw deflate", JSON, read(ContentCoding.decode(entity(deflate(plain, true), "deflate"))));
+        try {
+            ContentCoding.decode(entity(plain, "br"));
+            fail("Should not accept unknown codings");
+        } catch (ClientProtocolException ex) {
+        }
+    }
+
+    @Test
+    public void testCompress() throws Exception {
+        HttpEntity small = new ByteArrayEntity(JSON.getBytes(Consts.UTF_8));
+        assertSame("small bodies are kept", small, ContentCoding.compress(small));
+
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 1000) {
+            sb.append(JSON);
+        }
+        HttpEntity body = new ByteArrayEntity(sb.toString().getBytes(Consts.UTF_8));
+        HttpEntity compressed = ContentCoding.compress(body);
+        assertEquals("encoding", "gzip", compressed.getContentEncoding().getValue());
+        assertTrue("repeatable", compressed.isRepeatable());
+        assertTrue("smaller", compressed.getContentLength() < body.getContentLength());
+        assertEquals("content", sb.toString(), read(new GZIPInputStream(compressed.getContent())));
+        assertSame("encoded bodies are kept", compressed, ContentCoding.compress(compressed));
+    }
+
+    private static HttpEntity entity(byte[] content, String encoding) {
+        ByteArrayEntity entity = new ByteArrayEntity(content);
+        if (encoding != null) {
+            entity.setContentEncoding(encoding);
+        }
+        return entity;
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(content);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] content, boolean raw) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, raw))) {
+            out.write(content);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[256];
+            for (int n; (n = in.read(buf)) != -1;) {
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), Consts.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
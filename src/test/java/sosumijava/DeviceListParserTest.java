@@ -0,0 +1,79 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ *
+ * @author tomasca
+ */
+public class DeviceListParserTest {
+
+    @Test
+    public void testSkipsUnmappedFields() throws Exception {
+        List<DeviceInfo> devices = DeviceListParser.parse(new StringReader("{\"statusCode\":\"200\",\"userInfo\":{\"lastName\":\"Bar\"},\"content\":["
+                + "{\"features\":{\"CLT\":false},\"id\":\"id-phone\",\"name\":\"MyPhone\",\"deviceClass\":\"iPhone\",\"batteryLevel\":0.5,\"batteryStatus\":\"Charging\",\"location\":{\"timeStamp\":1392159139870,\"locationType\":null,\"horizontalAccuracy\":10.0,\"locationFinished\":true,\"longitude\":12.5,\"latitude\":60.5}},"
+                + "{\"id\":\"id-pad\",\"name\":\"MyPad\",\"deviceClass\":\"iPad\",\"batteryLevel\":0.0,\"batteryStatus\":null,\"location\":null,\"msg\":[1,2,{\"a\":[]}]}"
+                + "],\"serverContext\":{\"timezone\":{\"tzName\":\"America/Los_Angeles\"}}}"));
+
+        assertEquals("devices", 2, devices.size());
+        DeviceInfo phone = devices.get(0);
+        assertEquals("deviceId", "id-phone", phone.getDeviceId());
+        assertEquals("latitude", 60.5, phone.getDeviceLocation().getLatitude(), 0.0);
+        assertEquals("timestamp", 1392159139870L, phone.getDeviceLocation().getTimestamp());
+        DeviceInfo pad = devices.get(1);
+        assertEquals("deviceName", "MyPad", pad.getDeviceName());
+        assertNull("batteryStatus", pad.getBatteryStatus());
+        assertNull("location", pad.getDeviceLocation());
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        String json = "{\"content\":["
+                + "{\"location\":{\"latitude\":1.0,\"longitude\":2.0},\"id\":\"id-phone\",\"name\":\"MyPhone\",\"deviceClass\":\"iPhone\"},"
+                + "{\"location\":null,\"id\":\"id-pad\",\"name\":\"MyPad\",\"deviceClass\":\"iPad\"},"
+                + "{\"id\":\"id-mac\",\"name\":\"MyMac\",\"deviceClass\":\"iMac\"}"
+                + "]}";
+
+        List<DeviceInfo> byName = DeviceListParser.parse(new StringReader(json), DeviceFilters.byName("MyPad"));
+        assertEquals("devices by name", 1, byName.size());
+        assertEquals("deviceId", "id-pad", byName.get(0).getDeviceId());
+        assertEquals("deviceClass", "iPad", byName.get(0).getDeviceClass());
+
+        List<DeviceInfo> byId = DeviceListParser.parse(new StringReader(json), DeviceFilters.byId("id-phone", "id-mac"));
+        assertEquals("devices by id", 2, byId.size());
+        assertEquals("deviceName", "MyPhone", byId.get(0).getDeviceName());
+        assertEquals("deviceName", "MyMac", byId.get(1).getDeviceName());
+    }
+
+    @Test
+    public void testReusesUnchangedDevices() throws Exception {
+        String json = "{\"content\":["
+                + "{\"id\":\"id-phone\",\"name\":\"MyPhone\",\"deviceClass\":\"iPhone\",\"batteryStatus\":\"Charging\",\"location\":{\"timeStamp\":1,\"latitude\":1.0,\"longitude\":2.0}},"
+                + "{\"id\":\"id-pad\",\"name\":\"MyPad\",\"deviceClass\":\"iPad\",\"batteryStatus\":\"Charging\",\"batteryLevel\":0.5}"
+                + "]}";
+        DeviceSnapshot previous = new DeviceSnapshot(DeviceListParser.parse(new StringReader(json)), 1L);
+        List<DeviceInfo> devices = DeviceListParser.parse(new StringReader(json.replace("0.5", "0.4")), DeviceFilter.ALL, previous);
+
+        assertSame("unchanged device reused", previous.getById("id-phone"), devices.get(0));
+        DeviceInfo pad = devices.get(1);
+        assertNotSame("changed device", previous.getById("id-pad"), pad);
+        assertEquals("batteryLevel", 0.4, pad.getBatteryLevel(), 0.0);
+        assertSame("id shared", previous.getById("id-pad").getDeviceId(), pad.getDeviceId());
+        assertSame("status shared", devices.get(0).getBatteryStatus(), pad.getBatteryStatus());
+        assertEquals("location", 2.0, devices.get(0).getDeviceLocation().getLongitude(), 0.0);
+        assertNull("no location", pad.getDeviceLocation());
+    }
+
+    @Test
+    public void testWithoutContent() throws Exception {
+        assertNull(DeviceListParser.parse(new StringReader("{\"statusCode\":\"200\"}")));
+    }
+}
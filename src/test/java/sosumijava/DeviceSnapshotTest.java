@@ -0,0 +1,112 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ *
+ * @author tomasca
+ */
+public class DeviceSnapshotTest {
+
+    @Test
+    public void testIndexedByNameAndId() {
+        DeviceInfo phone = DeviceInfo.fromJson("{\"id\":\"id-phone\",\"name\":\"MyPhone\",\"deviceClass\":\"iPhone\",\"batteryLevel\":0.5,\"batteryStatus\":\"Charging\",\"location\":null}");
+        DeviceInfo pad = DeviceInfo.fromJson("{\"id\":\"id-pad\",\"name\":\"MyPad\",\"deviceClass\":\"iPad\",\"batteryLevel\":0.2,\"batteryStatus\":\"NotCharging\",\"location\":null}");
+        DeviceSnapshot snapshot = new DeviceSnapshot(Arrays.asList(phone, pad), 1234L);
+
+        assertEquals("size", 2, snapshot.size());
+        assertSame("by name", pad, snapshot.getByName("MyPad"));
+        assertSame("by id", phone, snapshot.getById("id-phone"));
+        assertNull("unknown name", snapshot.getByName("id-pad"));
+        assertEquals("fetchedAt", 1234L, snapshot.getFetchedAt());
+        assertEquals("keeps service order", phone, snapshot.getDevices().iterator().next());
+    }
+
+    @Test
+    public void testMergeFilteredRefresh() {
+        DeviceInfo phone = DeviceInfo.fromJson("{\"id\":\"id-phone\",\"name\":\"MyPhone\",\"batteryLevel\":0.5}");
+        DeviceInfo pad = DeviceInfo.fromJson("{\"id\":\"id-pad\",\"name\":\"MyPad\",\"batteryLevel\":0.2}");
+        DeviceInfo mac = DeviceInfo.fromJson("{\"id\":\"id-mac\",\"name\":\"MyMac\",\"batteryLevel\":0.0}");
+        DeviceSnapshot snapshot = new DeviceSnapshot(Arrays.asList(phone, pad, mac), 1L);
+
+        DeviceInfo freshPad = DeviceInfo.fromJson("{\"id\":\"id-pad\",\"name\":\"MyPad\",\"batteryLevel\":0.3}");
+        DeviceSnapshot merged = snapshot.merge(Arrays.asList(freshPad), DeviceFilters.byName("MyPad", "MyMac"), 2L);
+
+        assertSame("untouched device kept", phone, merged.getByName("MyPhone"));
+        assertSame("refreshed device replaced", freshPad, merged.getById("id-pad"));
+        assertNull("device no longer reported dropped", merged.getByName("MyMac"));
+        assertEquals("fetchedAt", 2L, merged.getFetchedAt());
+        assertEquals("untouched device fetched before", 1L, merged.getFetchedAt("id-phone"));
+        assertEquals("refreshed device fetched now", 2L, merged.getFetchedAt("id-pad"));
+        assertEquals("unknown device", 0L, merged.getFetchedAt("id-mac"));
+        assertEquals("oldest", 1L, merged.getOldestFetchedAt());
+        assertEquals("listedAt", 1L, merged.getListedAt());
+        assertEquals("full refresh", 3L, merged.merge(Arrays.asList(phone, freshPad), DeviceFilter.ALL, 3L).getOldestFetchedAt());
+    }
+
+    @Test
+    public void testMergeFilteredRefreshIntoEmpty() {
+        DeviceInfo pad = DeviceInfo.fromJson("{\"id\":\"id-pad\",\"name\":\"MyPad\",\"batteryLevel\":0.2}");
+        DeviceSnapshot merged = DeviceSnapshot.EMPTY.merge(Arrays.asList(pad), DeviceFilters.byName("MyPad"), 2L);
+
+        assertSame("refreshed device added", pad, merged.getByName("MyPad"));
+        assertEquals("fetchedAt", 2L, merged.getFetchedAt());
+        assertEquals("refreshed device fetched now", 2L, merged.getFetchedAt("id-pad"));
+        assertEquals("never listed", 0L, merged.getListedAt());
+
+        DeviceSnapshot listed = merged.merge(Arrays.asList(pad), DeviceFilter.ALL, 3L);
+        assertEquals("listed", 3L, listed.getListedAt());
+    }
+
+    @Test
+    public void testMergeOutOfOrder() {
+        DeviceInfo phone = DeviceInfo.fromJson("{\"id\":\"id-phone\",\"name\":\"MyPhone\",\"batteryLevel\":0.5}");
+        DeviceInfo pad = DeviceInfo.fromJson("{\"id\":\"id-pad\",\"name\":\"MyPad\",\"batteryLevel\":0.2}");
+        DeviceSnapshot snapshot = new DeviceSnapshot(Arrays.asList(phone, pad), 1L);
+
+        DeviceInfo newPad = DeviceInfo.fromJson("{\"id\":\"id-pad\",\"name\":\"MyPad\",\"batteryLevel\":0.4}");
+        DeviceSnapshot later = snapshot.merge(Arrays.asList(newPad), DeviceFilters.byName("MyPad"), 3L);
+
+        // a refresh of the phone started before the pad refresh completes last
+        DeviceInfo oldPad = DeviceInfo.fromJson("{\"id\":\"id-pad\",\"name\":\"MyPad\",\"batteryLevel\":0.3}");
+        DeviceInfo newPhone = DeviceInfo.fromJson("{\"id\":\"id-phone\",\"name\":\"MyPhone\",\"batteryLevel\":0.6}");
+        DeviceSnapshot merged = later.merge(Arrays.asList(newPhone, oldPad), DeviceFilters.byName("MyPhone", "MyPad"), 2L);
+
+        assertSame("older device replaced", newPhone, merged.getById("id-phone"));
+        assertSame("newer device kept", newPad, merged.getById("id-pad"));
+        assertEquals("newer device time kept", 3L, merged.getFetchedAt("id-pad"));
+        assertEquals("fetchedAt", 3L, merged.getFetchedAt());
+
+        assertSame("older listing ignored", merged, merged.merge(Arrays.asList(phone), DeviceFilter.ALL, 1L));
+    }
+
+    @Test
+    public void testDuplicateNames() {
+        DeviceInfo first = DeviceInfo.fromJson("{\"id\":\"id-1\",\"name\":\"iPhone\",\"batteryLevel\":0.5}");
+        DeviceInfo second = DeviceInfo.fromJson("{\"id\":\"id-2\",\"name\":\"iPhone\",\"batteryLevel\":0.7}");
+        DeviceInfo pad = DeviceInfo.fromJson("{\"id\":\"id-3\",\"name\":\"iPad\",\"batteryLevel\":0.2}");
+        DeviceSnapshot snapshot = new DeviceSnapshot(Arrays.asList(first, second, pad), 1L);
+
+        assertEquals("all devices kept", 3, snapshot.size());
+        assertEquals("service order", Arrays.asList(first, second, pad), new ArrayList<DeviceInfo>(snapshot.getDevices()));
+        assertSame("first wins by name", first, snapshot.getByName("iPhone"));
+        assertSame("both by id", second, snapshot.getById("id-2"));
+
+        DeviceSnapshot merged = snapshot.merge(Arrays.asList(pad), DeviceFilters.byName("iPad"), 2L);
+        assertEquals("both kept by a filtered refresh", 3, merged.size());
+        assertSame("kept", second, merged.getById("id-2"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutable() {
+        DeviceSnapshot.EMPTY.getDevices().clear();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.File;
+import java.net.URL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tomasca
+ */
+public class FileEndpointCacheTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("endpoints", ".properties");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        FileEndpointCache cache = new FileEndpointCache(file);
+        cache.put("a@example.com", new AccountEndpoint(new URL("https://p01-fmipmobile.icloud.com"), "scope-a"));
+        cache.put("b@example.com", new AccountEndpoint(new URL("https://p02-fmipmobile.icloud.com"), null));
+        cache.put("c@example.com", new AccountEndpoint(new URL("https://p03-fmipmobile.icloud.com"), "scope-c"));
+        cache.remove("c@example.com");
+        cache.close();
+
+        FileEndpointCache loaded = new FileEndpointCache(file);
+        assertEquals("entries", 2, loaded.size());
+        assertEquals("a", new AccountEndpoint(new URL("https://p01-fmipmobile.icloud.com"), "scope-a"), loaded.get("a@example.com"));
+        assertEquals("b", new AccountEndpoint(new URL("https://p02-fmipmobile.icloud.com"), null), loaded.get("b@example.com"));
+        assertNull("removed", loaded.get("c@example.com"));
+    }
+
+    @Test
+    public void testFlushOnlyWhenChanged() throws Exception {
+        FileEndpointCache cache = new FileEndpointCache(file);
+        cache.flush();
+        assertFalse("nothing to write", file.exists());
+
+        AccountEndpoint ep = new AccountEndpoint(new URL("https://p01-fmipmobile.icloud.com"), "scope");
+        cache.put("a", ep);
+        cache.flush();
+        assertTrue("written", file.exists());
+        long modified = file.lastModified();
+        file.setLastModified(modified - 10000L);
+        cache.put("a", new AccountEndpoint(new URL("https://p01-fmipmobile.icloud.com"), "scope"));
+        cache.flush();
+        assertEquals("unchanged endpoint not rewritten", modified - 10000L, file.lastModified());
+    }
+}
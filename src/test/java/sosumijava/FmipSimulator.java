@@ -0,0 +1,352 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+/**
+ * Simulated FMIP service for load and soak tests, running on a
+ * {@link LocalTestServer}. Accounts are created on first use with any
+ * password, each with a number of devices moving around over time.
+ * <p>
+ * Requests to the primary address, {@link #getUrl()}, are redirected with a
+ * 330 to the partition address with a scope per account, as the real
+ * service does. Responses are compressed as negotiated by Accept-Encoding,
+ * and gzip request bodies are accepted. Latency, errors and slow locates can
+ * be injected.
+ *
+ * @author tomasca
+ */
+public class FmipSimulator {
+
+    private static final String PATH_PREFIX = "/fmipservice/device/";
+    private final LocalTestServer server = new LocalTestServer(null, null);
+    private final ConcurrentMap<String, Account> accounts = new ConcurrentHashMap<String, Account>();
+    private String primaryAddress;
+    private String partitionAddress;
+    private volatile int devicesPerAccount = 3;
+    private volatile long latencyMillis;
+    private volatile long latencyJitterMillis;
+    private volatile double errorRate;
+    private final AtomicLong failNext = new AtomicLong();
+    private volatile long locationFinishedDelayMillis;
+    private volatile long locationUpdateMillis = 1000L;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong redirects = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong compressedRequests = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+
+    public FmipSimulator() {
+        server.register("/*", new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+                FmipSimulator.this.handle(request, response);
+            }
+        });
+    }
+
+    public void start() throws Exception {
+        server.start();
+        InetSocketAddress address = server.getServiceAddress();
+        primaryAddress = address.getHostName() + ":" + address.getPort();
+        partitionAddress = address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * @return the URL clients should be created with
+     */
+    public String getUrl() {
+        return "http://" + primaryAddress;
+    }
+
+    /**
+     * @param devicesPerAccount devices of accounts created after the call
+     */
+    public void setDevicesPerAccount(int devicesPerAccount) {
+        this.devicesPerAccount = devicesPerAccount;
+    }
+
+    /**
+     * @param latencyMillis delay before every response
+     * @param jitterMillis random extra delay, up to this much
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = jitterMillis;
+    }
+
+    /**
+     * @param errorRate share of requests answered with 503, between 0 and 1
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @param requests number of requests from now on answered with 503
+     */
+    public void failNext(int requests) {
+        failNext.set(requests);
+    }
+
+    /**
+     * @param delayMillis how long the devices of an account report an
+     * unfinished location after a client starts polling the account
+     */
+    public void setLocationFinishedDelay(long delayMillis) {
+        this.locationFinishedDelayMillis = delayMillis;
+    }
+
+    /**
+     * @param updateMillis how often the devices report a new location
+     */
+    public void setLocationUpdateInterval(long updateMillis) {
+        this.locationUpdateMillis = updateMillis;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getRedirectCount() {
+        return redirects.get();
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    public long getMessageCount() {
+        return messages.get();
+    }
+
+    /**
+     * @return number of requests with a gzip body
+     */
+    public long getCompressedRequestCount() {
+        return compressedRequests.get();
+    }
+
+    /**
+     * @return bytes of response bodies sent, as they went over the wire
+     */
+    public long getResponseBytes() {
+        return responseBytes.get();
+    }
+
+    public int getAccountCount() {
+        return accounts.size();
+    }
+
+    /**
+     * @return the number of the connections accepted by the server
+     */
+    public int getAcceptedConnectionCount() {
+        return server.getAcceptedConnectionCount();
+    }
+
+    private void handle(HttpRequest request, HttpResponse response) throws IOException {
+        requests.incrementAndGet();
+        delay();
+        if (failNext.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0
+                || (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate)) {
+            errors.incrementAndGet();
+            response.setStatusCode(503);
+            return;
+        }
+        String username = username(request);
+        if (username == null) {
+            response.setStatusCode(401);
+            return;
+        }
+        Account account = account(username);
+        Header host = request.getFirstHeader("Host");
+        if (host == null || !host.getValue().equals(partitionAddress)) {
+            redirects.incrementAndGet();
+            response.addHeader("X-Apple-MMe-Host", partitionAddress);
+            response.addHeader("X-Apple-MMe-Scope", account.scope);
+            response.setStatusCode(330);
+            return;
+        }
+        String uri = request.getRequestLine().getUri();
+        if (!uri.startsWith(PATH_PREFIX + account.scope + "/")) {
+            response.setStatusCode(404);
+            return;
+        }
+        String function = uri.substring(uri.lastIndexOf('/') + 1);
+        readBody(request);
+        if (function.equals("initClient")) {
+            respond(request, response, account.initClient(System.currentTimeMillis()));
+        } else if (function.equals("sendMessage")) {
+            messages.incrementAndGet();
+            respond(request, response, "{\"statusCode\":\"200\"}");
+        } else {
+            response.setStatusCode(404);
+        }
+    }
+
+    private void readBody(HttpRequest request) throws IOException {
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return;
+        }
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        if (entity == null) {
+            return;
+        }
+        Header encoding = request.getFirstHeader("Content-Encoding");
+        boolean gzip = encoding != null && encoding.getValue().equals("gzip");
+        if (gzip) {
+            compressedRequests.incrementAndGet();
+        }
+        // a corrupt gzip body fails the request
+        try (InputStream in = gzip ? new GZIPInputStream(entity.getContent()) : entity.getContent()) {
+            byte[] buf = new byte[4096];
+            while (in.read(buf) != -1) {
+            }
+        }
+    }
+
+    private void respond(HttpRequest request, HttpResponse response, String json) throws IOException {
+        Header accept = request.getFirstHeader("Accept-Encoding");
+        String coding = accept == null ? null
+                : accept.getValue().contains("gzip") ? "gzip"
+                : accept.getValue().contains("deflate") ? "deflate" : null;
+        byte[] body = json.getBytes(Consts.UTF_8);
+        if (coding != null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (OutputStream out = coding.equals("gzip") ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes)) {
+                out.write(body);
+            }
+            body = bytes.toByteArray();
+        }
+        ByteArrayEntity entity = new ByteArrayEntity(body, ContentType.APPLICATION_JSON);
+        if (coding != null) {
+            entity.setContentEncoding(coding);
+        }
+        responseBytes.addAndGet(body.length);
+        response.setEntity(entity);
+        response.setStatusCode(200);
+    }
+
+    private void delay() throws IOException {
+        long delay = latencyMillis + (latencyJitterMillis > 0 ? ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1) : 0L);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", ex);
+            }
+        }
+    }
+
+    private static String username(HttpRequest request) {
+        Header auth = request.getFirstHeader("Authorization");
+        if (auth == null || !auth.getValue().startsWith("Basic ")) {
+            return null;
+        }
+        String credentials = new String(Base64.decodeBase64(auth.getValue().substring(6)), Consts.UTF_8);
+        int colon = credentials.indexOf(':');
+        return colon > 0 ? credentials.substring(0, colon) : null;
+    }
+
+    private Account account(String username) {
+        Account account = accounts.get(username);
+        if (account == null) {
+            Account created = new Account(username, devicesPerAccount);
+            account = accounts.putIfAbsent(username, created);
+            if (account == null) {
+                account = created;
+            }
+        }
+        return account;
+    }
+
+    /**
+     * A virtual account. Device positions are a function of time, so
+     * concurrent requests need no locking.
+     */
+    private class Account {
+
+        private final String scope;
+        private final String idPrefix;
+        private final double[] baseLatitudes;
+        private final double[] baseLongitudes;
+        private volatile long locatingSince;
+
+        Account(String username, int devices) {
+            this.scope = "scope-" + Integer.toHexString(username.hashCode()) + "-" + accounts.size();
+            this.idPrefix = Base64.encodeBase64URLSafeString(username.getBytes(Consts.UTF_8));
+            this.baseLatitudes = new double[devices];
+            this.baseLongitudes = new double[devices];
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < devices; i++) {
+                baseLatitudes[i] = 55.0 + random.nextDouble() * 10.0;
+                baseLongitudes[i] = 11.0 + random.nextDouble() * 10.0;
+            }
+        }
+
+        String initClient(long now) {
+            long delay = locationFinishedDelayMillis;
+            long since = locatingSince;
+            // a client coming back after a pause starts a new locate
+            if (since == 0 || now - since > delay + 10000L) {
+                locatingSince = since = now;
+            }
+            boolean finished = now - since >= delay;
+            long update = Math.max(1L, locationUpdateMillis);
+            long timestamp = now - now % update;
+            StringBuilder sb = new StringBuilder(256 * baseLatitudes.length + 64);
+            sb.append("{\"statusCode\":\"200\",\"content\":[");
+            for (int i = 0; i < baseLatitudes.length; i++) {
+                // each device walks around a circle of about a kilometer
+                double angle = (timestamp / update + i * 7) * 0.01;
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append("{\"id\":\"").append(idPrefix).append('-').append(i)
+                        .append("\",\"name\":\"Device ").append(i)
+                        .append("\",\"deviceClass\":\"iPhone\",\"batteryLevel\":").append(1.0 - (timestamp / update % 100) / 100.0)
+                        .append(",\"batteryStatus\":\"NotCharging\",\"location\":{\"timeStamp\":").append(timestamp)
+                        .append(",\"horizontalAccuracy\":").append(finished ? 10.0 : 500.0)
+                        .append(",\"locationFinished\":").append(finished)
+                        .append(",\"latitude\":").append(baseLatitudes[i] + Math.sin(angle) * 0.005)
+                        .append(",\"longitude\":").append(baseLongitudes[i] + Math.cos(angle) * 0.01)
+                        .append("}}");
+            }
+            return sb.append("]}").toString();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Short load runs of the client against the simulator. Longer soak runs use
+ * the same setup with more accounts and time.
+ *
+ * @author tomasca
+ */
+public class FmipSimulatorTest {
+
+    private FmipSimulator simulator;
+    private SosumiClientManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new FmipSimulator();
+        simulator.start();
+        manager = new SosumiClientManager(simulator.getUrl());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.close();
+        simulator.stop();
+    }
+
+    private static Map<String, String> accounts(String prefix, int count) {
+        Map<String, String> credentials = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            credentials.put(prefix + i + "@example.com", "pass");
+        }
+        return credentials;
+    }
+
+    @Test
+    public void testManyAccounts() throws Exception {
+        simulator.setLatency(2L, 3L);
+        Map<String, String> credentials = accounts("user", 500);
+        assertTrue("no failures", manager.warmUp(credentials, 32).isEmpty());
+        assertEquals("accounts", 500, simulator.getAccountCount());
+        assertEquals("one redirect per account", 500L, simulator.getRedirectCount());
+
+        List<MessageRequest> items = new ArrayList<MessageRequest>();
+        for (String username : credentials.keySet()) {
+            Sosumi sosumi = manager.getAccount(username, "pass");
+            assertEquals("devices", 3, sosumi.getDeviceSnapshot().size());
+            items.add(new MessageRequest(sosumi, "Device 1", "Hello", "Load", false));
+        }
+        for (MessageResult result : new MessageBatch().send(items, 32)) {
+            assertTrue("sent: " + result, result.isSuccess());
+        }
+        assertEquals("messages", 500L, simulator.getMessageCount());
+        assertEquals("no more redirects", 500L, simulator.getRedirectCount());
+    }
+
+    @Test
+    public void testInjectedErrors() throws Exception {
+        simulator.setErrorRate(0.5);
+        Map<String, SosumiException> failures = manager.warmUp(accounts("flaky", 100), 16);
+        assertFalse("some accounts should fail", failures.isEmpty());
+        assertTrue("some accounts should succeed", failures.size() < 100);
+        assertTrue("errors", simulator.getErrorCount() > 0);
+    }
+
+    @Test
+    public void testSlowLocationFinished() throws Exception {
+        simulator.setLocationFinishedDelay(300L);
+        Sosumi sosumi = manager.getAccount("slow@example.com", "pass");
+        long start = System.currentTimeMillis();
+        DeviceLocation loc = sosumi.locateDevice("Device 0", 10, PollingPolicies.fixed(50L));
+        assertTrue("finished", loc.isLocationFinished());
+        assertTrue("should wait for the device", System.currentTimeMillis() - start >= 300L);
+        assertTrue("should poll until finished: " + simulator.getRequestCount(), simulator.getRequestCount() >= 4);
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        simulator.setDevicesPerAccount(20);
+        Sosumi plain = manager.getAccount("plain@example.com", "pass");
+        plain.setCompressResponses(false);
+        plain.refresh(DeviceFilter.ALL);
+        long before = simulator.getResponseBytes();
+        assertEquals("devices", 20, plain.refresh(DeviceFilter.ALL).size());
+        long plainBytes = simulator.getResponseBytes() - before;
+
+        SosumiClientManager async = new SosumiClientManager(simulator.getUrl(), Sosumi.sharedScheduler(), true);
+        try {
+            for (SosumiClientManager m : new SosumiClientManager[]{manager, async}) {
+                Sosumi compressed = m.getAccount("compressed@example.com", "pass");
+                compressed.refresh(DeviceFilter.ALL);
+                before = simulator.getResponseBytes();
+                DeviceSnapshot snapshot = compressed.refresh(DeviceFilter.ALL);
+                long compressedBytes = simulator.getResponseBytes() - before;
+                assertEquals("devices", 20, snapshot.size());
+                assertEquals("decoded", "Device 19", snapshot.getByName("Device 19").getDeviceName());
+                assertTrue("should shrink: " + compressedBytes + " of " + plainBytes, compressedBytes * 3 < plainBytes);
+            }
+        } finally {
+            async.close();
+        }
+
+        manager.setCompressRequests(true);
+        Sosumi sender = manager.getAccount("sender@example.com", "pass");
+        sender.refresh(DeviceFilter.ALL);
+        assertEquals("the small initClient body is sent as is", 0L, simulator.getCompressedRequestCount());
+        sender.sendMessage("Device 0", "Hi", "Short", false);
+        sender.sendMessageAsync("Device 0", "Hello again", "Async", false).get();
+        assertEquals("compressed", 2L, simulator.getCompressedRequestCount());
+        assertEquals("messages", 2L, simulator.getMessageCount());
+    }
+
+    @Test
+    public void testDevicesMove() throws Exception {
+        simulator.setLocationUpdateInterval(50L);
+        final List<DeviceInfo> changes = new ArrayList<DeviceInfo>();
+        Sosumi sosumi = manager.getAccount("moving@example.com", "pass");
+        sosumi.setTrackInterval(60L);
+        Subscription subscription = sosumi.track("Device 0", new DeviceListener() {
+            public void deviceChanged(DeviceInfo previous, DeviceInfo current) {
+                synchronized (changes) {
+                    changes.add(current);
+                }
+            }
+        });
+        Await.until("should move", 5000L, () -> {
+            synchronized (changes) {
+                return changes.size() >= 3;
+            }
+        });
+        subscription.cancel();
+        synchronized (changes) {
+            assertTrue("should move: " + changes.size(), changes.size() >= 3);
+            assertTrue("new position", changes.get(0).getDeviceLocation().getLatitude() != changes.get(changes.size() - 1).getDeviceLocation().getLatitude());
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tomasca
+ */
+public class GeofenceEngineTest {
+
+    private GeofenceEngine engine;
+    private final List<String> events = new ArrayList<String>();
+
+    @Before
+    public void setUp() {
+        engine = new GeofenceEngine();
+        engine.setListenerExecutor(Runnable::run);
+        engine.addListener(new GeofenceListener() {
+            public void transition(String deviceId, Geofence fence, boolean entered, long timestamp) {
+                events.add((entered ? "enter " : "exit ") + fence.getId() + "@" + timestamp);
+            }
+        });
+    }
+
+    @Test
+    public void testCircleContainment() {
+        Geofence home = Geofence.circle("home", 60.0, 12.0, 100.0);
+        assertEquals("center", Geofence.Containment.INSIDE, home.test(60.0, 12.0, 10.0));
+        // 0.0005 degrees of latitude is about 56 m
+        assertEquals("inside with margin", Geofence.Containment.INSIDE, home.test(60.0005, 12.0, 40.0));
+        assertEquals("crossing boundary", Geofence.Containment.POSSIBLY_INSIDE, home.test(60.0005, 12.0, 50.0));
+        assertEquals("outside but close", Geofence.Containment.POSSIBLY_INSIDE, home.test(60.0011, 12.0, 50.0));
+        assertEquals("outside", Geofence.Containment.OUTSIDE, home.test(60.0011, 12.0, 10.0));
+    }
+
+    @Test
+    public void testPolygonContainment() {
+        // a square of about 1.1 km by 0.56 km
+        Geofence square = Geofence.polygon("square", new double[]{60.0, 60.0, 60.01, 60.01}, new double[]{12.0, 12.01, 12.01, 12.0});
+        assertEquals("middle", Geofence.Containment.INSIDE, square.test(60.005, 12.005, 100.0));
+        assertEquals("near edge", Geofence.Containment.POSSIBLY_INSIDE, square.test(60.0001, 12.005, 100.0));
+        assertEquals("outside", Geofence.Containment.OUTSIDE, square.test(59.99, 12.005, 100.0));
+        assertEquals("outside but close", Geofence.Containment.POSSIBLY_INSIDE, square.test(59.9999, 12.005, 100.0));
+    }
+
+    @Test
+    public void testTransitions() {
+        engine.add(Geofence.circle("home", 60.0, 12.0, 100.0));
+        engine.evaluate("phone", 60.01, 12.0, 10.0, 1L);
+        engine.evaluate("phone", 60.0005, 12.0, 50.0, 2L);
+        assertEquals("possibly inside does not enter", Collections.emptyList(), events);
+        engine.evaluate("phone", 60.0, 12.0, 10.0, 3L);
+        engine.evaluate("phone", 60.0, 12.0, 10.0, 4L);
+        assertEquals("entered once", Arrays.asList("enter home@3"), events);
+        assertEquals("inside", Collections.singleton("home"), engine.getFences("phone"));
+        engine.evaluate("phone", 60.0011, 12.0, 50.0, 5L);
+        assertEquals("possibly inside does not exit", 1, events.size());
+        engine.evaluate("phone", 60.01, 12.0, 5000.0, 6L);
+        assertEquals("inaccurate location does not exit", 1, events.size());
+        engine.evaluate("phone", 60.01, 12.0, 10.0, 5L);
+        assertEquals("older location ignored", 1, events.size());
+        engine.evaluate("phone", 60.01, 12.0, 10.0, 7L);
+        assertEquals("exited", Arrays.asList("enter home@3", "exit home@7"), events);
+
+        engine.evaluate("phone", 60.0, 12.0, 10.0, 8L);
+        engine.remove("home");
+        engine.evaluate("phone", 60.01, 12.0, 10.0, 9L);
+        assertEquals("no exit from removed fence", Arrays.asList("enter home@3", "exit home@7", "enter home@8"), events);
+        assertTrue("no fences", engine.getFences("phone").isEmpty());
+    }
+
+    @Test
+    public void testTransitionsOnListenerExecutor() throws Exception {
+        GeofenceEngine async = new GeofenceEngine();
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        final Thread evaluating = Thread.currentThread();
+        async.addListener(new GeofenceListener() {
+            public void transition(String deviceId, Geofence fence, boolean entered, long timestamp) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                delivered.add((Thread.currentThread() != evaluating ? "" : "caller ") + (entered ? "enter " : "exit ") + fence.getId() + "@" + timestamp);
+            }
+        });
+        async.add(Geofence.circle("home", 60.0, 12.0, 100.0));
+        for (int i = 0; i < 10; i++) {
+            async.evaluate("phone", 60.0, 12.0, 10.0, 2 * i + 1);
+            async.evaluate("phone", 60.01, 12.0, 10.0, 2 * i + 2);
+        }
+        assertTrue("evaluation is not held by the listener", delivered.isEmpty());
+        release.countDown();
+        Await.until("transitions delivered", 2000L, () -> delivered.size() == 20);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("in order", "enter home@" + (2 * i + 1), delivered.get(2 * i));
+            assertEquals("in order", "exit home@" + (2 * i + 2), delivered.get(2 * i + 1));
+        }
+    }
+
+    @Test
+    public void testLargeFence() {
+        engine.add(Geofence.polygon("sweden", new double[]{55.0, 55.0, 69.0, 69.0}, new double[]{11.0, 24.0, 24.0, 11.0}));
+        engine.evaluate("phone", 60.0, 12.0, 10.0, 1L);
+        assertEquals("entered", Arrays.asList("enter sweden@1"), events);
+    }
+
+    @Test
+    public void testPolarCircle() {
+        Geofence pole = Geofence.circle("pole", 89.999, 12.0, 1000.0);
+        assertEquals("latitude clamped", 90.0, pole.maxLatitude, 0.0);
+        assertEquals("every longitude", -180.0, pole.minLongitude, 0.0);
+        assertEquals("every longitude", 180.0, pole.maxLongitude, 0.0);
+        Geofence top = Geofence.circle("top", 90.0, 0.0, 500.0);
+        assertFalse("finite bounds", Double.isInfinite(top.minLongitude) || Double.isNaN(top.minLongitude));
+        engine.add(pole);
+        engine.add(top);
+        engine.evaluate("phone", 89.994, 100.0, 10.0, 1L);
+        assertEquals("entered", Collections.singleton("pole"), engine.getFences("phone"));
+        engine.evaluate("phone", 89.9999, -170.0, 10.0, 2L);
+        assertEquals("entered", new HashSet<String>(Arrays.asList("pole", "top")), engine.getFences("phone"));
+    }
+
+    @Test
+    public void testAntimeridian() {
+        // about 0.36 degrees of longitude at 60 degrees latitude
+        Geofence east = Geofence.circle("east", 60.0, 179.9, 20000.0);
+        assertEquals("across", Geofence.Containment.INSIDE, east.test(60.0, -179.95, 10.0));
+        assertEquals("outside across", Geofence.Containment.OUTSIDE, east.test(60.0, -179.7, 10.0));
+        assertEquals("outside", Geofence.Containment.OUTSIDE, east.test(60.0, 179.5, 10.0));
+        Geofence strait = Geofence.polygon("strait", new double[]{65.0, 65.0, 66.0, 66.0}, new double[]{179.5, 180.5, 180.5, 179.5});
+        assertEquals("polygon across", Geofence.Containment.INSIDE, strait.test(65.5, -179.8, 10.0));
+
+        engine.add(east);
+        engine.add(strait);
+        engine.evaluate("phone", 60.0, -179.95, 10.0, 1L);
+        assertEquals("entered across", Collections.singleton("east"), engine.getFences("phone"));
+        engine.evaluate("phone", 60.0, 179.95, 10.0, 2L);
+        assertEquals("still inside", Arrays.asList("enter east@1"), events);
+        engine.evaluate("phone", 65.5, -179.8, 10.0, 3L);
+        assertEquals("entered polygon", Collections.singleton("strait"), engine.getFences("phone"));
+        engine.remove("east");
+        engine.remove("strait");
+        engine.evaluate("phone", 60.0, -179.95, 10.0, 4L);
+        assertTrue("removed from both sides", engine.getFences("phone").isEmpty());
+    }
+
+    @Test
+    public void testCellCountOverflow() {
+        GeofenceEngine fine = new GeofenceEngine(1e-9);
+        fine.setListenerExecutor(Runnable::run);
+        fine.add(Geofence.polygon("world", new double[]{-80.0, -80.0, 80.0, 80.0}, new double[]{-170.0, 170.0, 170.0, -170.0}));
+        fine.evaluate("phone", 60.0, 12.0, 10.0, 1L);
+        assertEquals("entered", Collections.singleton("world"), fine.getFences("phone"));
+    }
+
+    @Test
+    public void testManyFencesMatchLinearScan() {
+        Random random = new Random(42);
+        List<Geofence> all = new ArrayList<Geofence>();
+        for (int i = 0; i < 20000; i++) {
+            Geofence fence = Geofence.circle("c" + i, 59.0 + random.nextDouble(), 11.0 + random.nextDouble() * 2, 50.0 + random.nextDouble() * 2000.0);
+            all.add(fence);
+            engine.add(fence);
+        }
+        assertEquals("fences", 20000, engine.size());
+        for (int i = 0; i < 2000; i++) {
+            double lat = 59.0 + random.nextDouble();
+            double lon = 11.0 + random.nextDouble() * 2;
+            double accuracy = random.nextDouble() * 200.0;
+            engine.removeDevice("phone");
+            engine.evaluate("phone", lat, lon, accuracy, i);
+            Set<String> expected = new HashSet<String>();
+            for (Geofence fence : all) {
+                if (fence.test(lat, lon, accuracy) == Geofence.Containment.INSIDE) {
+                    expected.add(fence.getId());
+                }
+            }
+            assertEquals("fences at " + lat + "," + lon, expected, engine.getFences("phone"));
+        }
+    }
+}
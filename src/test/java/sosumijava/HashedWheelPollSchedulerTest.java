@@ -0,0 +1,131 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tomasca
+ */
+public class HashedWheelPollSchedulerTest {
+
+    private HashedWheelPollScheduler pollScheduler;
+
+    @Before
+    public void setUp() {
+        pollScheduler = new HashedWheelPollScheduler(10L, 64, 4, 16);
+    }
+
+    @After
+    public void tearDown() {
+        pollScheduler.close();
+    }
+
+    @Test
+    public void testPollsAreSpread() throws Exception {
+        final List<Long> times = new ArrayList<Long>();
+        final CountDownLatch polled = new CountDownLatch(20);
+        final long start = System.nanoTime();
+        List<HashedWheelPollScheduler.Poll> scheduled = new ArrayList<HashedWheelPollScheduler.Poll>();
+        for (int i = 0; i < 20; i++) {
+            final AtomicBoolean first = new AtomicBoolean(true);
+            scheduled.add(pollScheduler.schedule(() -> {
+                if (first.compareAndSet(true, false)) {
+                    synchronized (times) {
+                        times.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    }
+                    polled.countDown();
+                }
+            }, 400L));
+        }
+        assertTrue("each poll in its first interval", polled.await(5, TimeUnit.SECONDS));
+        for (HashedWheelPollScheduler.Poll poll : scheduled) {
+            poll.cancel();
+        }
+        synchronized (times) {
+            int[] quarters = new int[4];
+            for (long t : times) {
+                assertTrue("first poll within the interval: " + times, t < 450L);
+                quarters[(int) Math.min(3, t / 100)]++;
+            }
+            for (int q : quarters) {
+                assertTrue("polls should be spread over the interval: " + times, q >= 2 && q <= 9);
+            }
+        }
+    }
+
+    @Test
+    public void testSetIntervalAndCancel() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        HashedWheelPollScheduler.Poll poll = pollScheduler.schedule(runs::incrementAndGet, 1000L);
+        long start = System.nanoTime();
+        poll.setInterval(50L);
+        assertEquals("interval", 50L, poll.getInterval());
+        Await.until("should poll at the new interval", 5000L, () -> runs.get() >= 6);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("six polls 50 ms apart: " + elapsed + " ms", elapsed >= 240L && elapsed < 1000L);
+
+        poll.cancel();
+        Await.stable("no polls after cancel", 200L, 5000L, runs::get);
+    }
+
+    @Test
+    public void testSkipsWhenBusy() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        HashedWheelPollScheduler.Poll poll = pollScheduler.schedule(() -> {
+            runs.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, 20L);
+        Await.until("skipped while running", 5000L, () -> pollScheduler.getSkippedCount() >= 5);
+        assertEquals("a running poll is not started again", 1, runs.get());
+        release.countDown();
+        Await.until("polls again when done", 5000L, () -> runs.get() > 1);
+        poll.cancel();
+    }
+
+    @Test
+    public void testTrackAccounts() throws Exception {
+        FmipSimulator simulator = new FmipSimulator();
+        simulator.setLocationUpdateInterval(50L);
+        simulator.start();
+        SosumiClientManager manager = new SosumiClientManager(simulator.getUrl());
+        try {
+            manager.setPollScheduler(pollScheduler);
+            final CountDownLatch changes = new CountDownLatch(50);
+            List<Subscription> subscriptions = new ArrayList<Subscription>();
+            for (int i = 0; i < 50; i++) {
+                Sosumi sosumi = manager.getAccount("user" + i + "@example.com", "pass");
+                sosumi.setTrackInterval(100L);
+                subscriptions.add(sosumi.track("Device 0", (before, after) -> changes.countDown()));
+            }
+            assertTrue("every account should see a change", changes.await(5, TimeUnit.SECONDS));
+            long polls = pollScheduler.getPollCount();
+            assertTrue("polled from the wheel", polls >= 50);
+
+            for (Subscription subscription : subscriptions) {
+                subscription.cancel();
+            }
+            Await.stable("no polls after the tracks are cancelled", 300L, 5000L, simulator::getRequestCount);
+        } finally {
+            manager.close();
+            simulator.stop();
+        }
+    }
+}
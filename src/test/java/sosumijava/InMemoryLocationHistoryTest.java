@@ -0,0 +1,82 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tomasca
+ */
+public class InMemoryLocationHistoryTest {
+
+    private static final String DEVICE = "device";
+
+    private static class Collector implements LocationVisitor {
+
+        final List<Long> timestamps = new ArrayList<Long>();
+        double latitude;
+
+        public void visit(long timestamp, double latitude, double longitude, float horizontalAccuracy, boolean locationFinished) {
+            timestamps.add(timestamp);
+            this.latitude = latitude;
+        }
+    }
+
+    private static InMemoryLocationHistory history(int capacity, long... timestamps) {
+        InMemoryLocationHistory history = new InMemoryLocationHistory(capacity);
+        for (long t : timestamps) {
+            history.append(DEVICE, t, t / 10.0, 12.0, 10.0f, true);
+        }
+        return history;
+    }
+
+    @Test
+    public void testRingKeepsLatest() {
+        InMemoryLocationHistory history = history(4, 10, 20, 30, 40, 50, 60);
+        assertFalse("older sample ignored", history.append(DEVICE, 55, 0.0, 0.0, 1.0f, true));
+        assertEquals("size", 4, history.size(DEVICE));
+        Collector c = new Collector();
+        assertEquals("visited", 4, history.last(DEVICE, 10, c));
+        assertEquals("oldest first", Arrays.asList(30L, 40L, 50L, 60L), c.timestamps);
+        c = new Collector();
+        assertEquals("last two", 2, history.last(DEVICE, 2, c));
+        assertEquals("last two", Arrays.asList(50L, 60L), c.timestamps);
+    }
+
+    @Test
+    public void testSince() {
+        InMemoryLocationHistory history = history(4, 10, 20, 30, 40, 50);
+        Collector c = new Collector();
+        assertEquals("visited", 2, history.since(DEVICE, 35, c));
+        assertEquals("since 35", Arrays.asList(40L, 50L), c.timestamps);
+        assertEquals("all", 4, history.since(DEVICE, 0, new Collector()));
+        assertEquals("none", 0, history.since(DEVICE, 51, new Collector()));
+        assertEquals("unknown device", 0, history.since("other", 0, new Collector()));
+    }
+
+    @Test
+    public void testNearest() {
+        InMemoryLocationHistory history = history(8, 10, 20, 40);
+        Collector c = new Collector();
+        assertTrue("found", history.nearest(DEVICE, 33, c));
+        assertEquals("closer to 40", Arrays.asList(40L), c.timestamps);
+        assertEquals("latitude", 4.0, c.latitude, 0.0);
+        c = new Collector();
+        history.nearest(DEVICE, 30, c);
+        assertEquals("tie goes to the older", Arrays.asList(20L), c.timestamps);
+        c = new Collector();
+        history.nearest(DEVICE, 5, c);
+        assertEquals("before the first", Arrays.asList(10L), c.timestamps);
+        c = new Collector();
+        history.nearest(DEVICE, 1000, c);
+        assertEquals("after the last", Arrays.asList(40L), c.timestamps);
+        assertFalse("unknown device", history.nearest("other", 10, new Collector()));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tomasca
+ */
+public class JmxSosumiMetricsTest {
+
+    private LocalTestServer server = null;
+    private String primaryServiceAddress;
+    private String secondaryServiceAddress;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalTestServer(null, null);
+        server.register("/*", new HttpRequestHandler() {
+            // Redirects requests to the primary address, fails sendMessage on the secondary
+            public void handle(HttpRequest req, HttpResponse resp, HttpContext context) throws HttpException, IOException {
+                String host = req.getFirstHeader("Host").getValue();
+                if (host.equals(primaryServiceAddress)) {
+                    resp.addHeader("X-Apple-MMe-Host", secondaryServiceAddress);
+                    resp.addHeader("X-Apple-MMe-Scope", "scope");
+                    resp.setStatusCode(330);
+                } else if (req.getRequestLine().getUri().endsWith("/sendMessage")) {
+                    resp.setStatusCode(500);
+                } else {
+                    resp.setEntity(new StringEntity("{\"content\":[{\"id\":\"id-phone\",\"name\":\"MyPhone\",\"deviceClass\":\"iPhone\",\"batteryLevel\":0.5,\"batteryStatus\":\"Charging\",\"location\":{\"timeStamp\":1392159139870,\"horizontalAccuracy\":10.0,\"locationFinished\":true,\"longitude\":12.0,\"latitude\":60.0}}]}"));
+                    resp.setStatusCode(200);
+                }
+            }
+        });
+        server.start();
+        primaryServiceAddress = server.getServiceAddress().getHostName() + ":" + server.getServiceAddress().getPort();
+        secondaryServiceAddress = server.getServiceAddress().getAddress().getHostAddress() + ":" + server.getServiceAddress().getPort();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals("count", 1000L, histogram.getCount());
+        assertEquals("mean", 500500.0, histogram.getMean(), 0.0);
+        assertEquals("max", 1000000L, histogram.getMax());
+        assertEquals("p50", 500000.0, histogram.getPercentile(50.0), 500000.0 * 0.125);
+        assertEquals("p99", 990000.0, histogram.getPercentile(99.0), 990000.0 * 0.125);
+        assertEquals("p100", 1000000L, histogram.getPercentile(100.0));
+        for (long v = 0; v < 100000; v += 7) {
+            assertTrue("bucket bounds " + v, LatencyHistogram.upperBound(LatencyHistogram.index(v)) >= v);
+        }
+        histogram.reset();
+        assertEquals("reset", 0L, histogram.getPercentile(99.0));
+    }
+
+    private void exercise(boolean nonBlocking) throws Exception {
+        SosumiClientManager manager = new SosumiClientManager("http://" + primaryServiceAddress, Sosumi.sharedScheduler(), nonBlocking);
+        JmxSosumiMetrics metrics = new JmxSosumiMetrics();
+        manager.setMetrics(metrics);
+        try {
+            Sosumi sosumi = manager.getAccount("user", "pass");
+            sosumi.locateDevice("MyPhone", 10);
+            sosumi.locateDevice("MyPhone", 10);
+            try {
+                sosumi.sendMessage("MyPhone", "text", "subject", false);
+                fail("should fail");
+            } catch (SosumiException ex) {
+                // expected
+            }
+            assertEquals("initClient calls", 2L, metrics.getInitClientCalls());
+            assertEquals("sendMessage calls", 1L, metrics.getSendMessageCalls());
+            assertEquals("redirects", 1L, metrics.getRedirects());
+            assertEquals("error responses", 1L, metrics.getErrorResponses());
+            assertEquals("failed calls", 0L, metrics.getFailedCalls());
+            assertEquals("locates", 2L, metrics.getLocates());
+            assertEquals("polls per locate", 0.5, metrics.getMeanPollsPerLocate(), 0.0);
+            assertEquals("leases", 3L, metrics.getConnectionLeases());
+            assertTrue("latency", metrics.getInitClientMaxMillis() > 0.0);
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testBlocking() throws Exception {
+        exercise(false);
+    }
+
+    @Test
+    public void testNonBlocking() throws Exception {
+        exercise(true);
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        JmxSosumiMetrics metrics = new JmxSosumiMetrics();
+        metrics.register("test");
+        try {
+            metrics.apiCall(ApiFunction.INIT_CLIENT, 330, 1000000L);
+            ObjectName name = new ObjectName("sosumijava:type=Metrics,name=\"test\"");
+            assertEquals("redirects", 1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Redirects"));
+        } finally {
+            metrics.unregister();
+        }
+    }
+}
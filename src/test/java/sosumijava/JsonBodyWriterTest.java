@@ -0,0 +1,48 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import static org.junit.Assert.*;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.http.Consts;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+/**
+ *
+ * @author tomasca
+ */
+public class JsonBodyWriterTest {
+
+    @Test
+    public void testEscaping() throws Exception {
+        String text = "Quote \" backslash \\ newline \n tab \t bell \u0007 \u00e5\u00e4\u00f6 \u20ac \ud83d\ude00";
+        byte[] body = JsonBodyWriter.get()
+                .raw("{\"text\":").string(text)
+                .raw(",\"subject\":").string(null)
+                .raw("}")
+                .toByteArray();
+
+        JsonObject parsed = new JsonParser().parse(new String(body, Consts.UTF_8)).getAsJsonObject();
+        assertEquals("text", text, parsed.get("text").getAsString());
+        assertTrue("subject", parsed.get("subject").isJsonNull());
+    }
+
+    @Test
+    public void testBufferReusedAndGrown() throws Exception {
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longText.append("\"\u00e5");
+        }
+        JsonBodyWriter w = JsonBodyWriter.get().string(longText.toString());
+        assertEquals("length", 2 + 1000 * 4, w.length());
+
+        JsonBodyWriter again = JsonBodyWriter.get().raw("{}");
+        assertSame("reused per thread", w, again);
+        assertEquals("body", "{}", EntityUtils.toString(again.toEntity()));
+    }
+}
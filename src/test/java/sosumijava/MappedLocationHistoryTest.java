@@ -0,0 +1,165 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tomasca
+ */
+public class MappedLocationHistoryTest {
+
+    private static final String DEVICE = "KOODsac0121e/ASDcascasSDAS210121";
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("history", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static List<Long> timestamps(MappedLocationHistory history, long from, long to) throws Exception {
+        final List<Long> result = new ArrayList<Long>();
+        history.scan(DEVICE, from, to, new LocationVisitor() {
+            public void visit(long timestamp, double latitude, double longitude, float horizontalAccuracy, boolean locationFinished) {
+                result.add(timestamp);
+            }
+        });
+        return result;
+    }
+
+    @Test
+    public void testAppendAndScanAcrossSegments() throws Exception {
+        MappedLocationHistory history = new MappedLocationHistory(dir, 4);
+        for (long t = 1; t <= 10; t++) {
+            assertTrue("stored", history.append(DEVICE, t * 1000L, 60.0 + t, 12.0, 10.0f, t % 2 == 0));
+        }
+        assertFalse("older location ignored", history.append(DEVICE, 5000L, 0.0, 0.0, 1.0f, true));
+        assertEquals("size", 10L, history.size(DEVICE));
+        assertEquals("range", Arrays.asList(3000L, 4000L, 5000L, 6000L, 7000L), timestamps(history, 2500L, 7000L));
+        assertEquals("unknown device", 0L, history.size("other"));
+
+        final double[] lat = new double[1];
+        final boolean[] finished = new boolean[1];
+        assertEquals("one record", 1, history.scan(DEVICE, 6000L, 6000L, new LocationVisitor() {
+            public void visit(long timestamp, double latitude, double longitude, float horizontalAccuracy, boolean locationFinished) {
+                lat[0] = latitude;
+                finished[0] = locationFinished;
+            }
+        }));
+        assertEquals("latitude", 66.0, lat[0], 0.0);
+        assertTrue("finished", finished[0]);
+        history.close();
+    }
+
+    @Test
+    public void testMaxSegments() throws Exception {
+        MappedLocationHistory history = new MappedLocationHistory(dir, 4);
+        history.setMaxSegments(2);
+        for (long t = 1; t <= 10; t++) {
+            history.append(DEVICE, t, 60.0, 12.0, 10.0f, true);
+        }
+        assertEquals("oldest segment dropped", Arrays.asList(5L, 6L, 7L, 8L, 9L, 10L), timestamps(history, 0L, 100L));
+        history.close();
+        assertEquals("files", 2, dir.listFiles()[0].listFiles().length);
+    }
+
+    @Test
+    public void testRecoverAfterTornRecord() throws Exception {
+        MappedLocationHistory history = new MappedLocationHistory(dir, 8);
+        for (long t = 1; t <= 3; t++) {
+            history.append(DEVICE, t, 60.0, 12.0, 10.0f, true);
+        }
+        history.close();
+
+        // a crash in the middle of writing the fourth record
+        File segment = dir.listFiles()[0].listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(3 * MappedLocationHistory.RECORD_SIZE);
+            raf.writeLong(4L);
+            raf.writeDouble(60.0);
+        } finally {
+            raf.close();
+        }
+
+        MappedLocationHistory reopened = new MappedLocationHistory(dir, 8);
+        assertEquals("torn record dropped", 3L, reopened.size(DEVICE));
+        assertTrue("appends after the last committed record", reopened.append(DEVICE, 5L, 61.0, 12.0, 10.0f, true));
+        assertEquals("timestamps", Arrays.asList(1L, 2L, 3L, 5L), timestamps(reopened, 0L, 100L));
+        reopened.close();
+    }
+
+    @Test
+    public void testMaxMappedSegments() throws Exception {
+        MappedLocationHistory history = new MappedLocationHistory(dir, 4);
+        history.setMaxMappedSegments(3);
+        for (long t = 1; t <= 20; t++) {
+            for (int d = 0; d < 5; d++) {
+                history.append("device" + d, t, 60.0 + d, 12.0, 10.0f, true);
+            }
+        }
+        assertEquals("mappings capped", 3, history.getMappedCount());
+        for (int d = 0; d < 5; d++) {
+            final List<Double> latitudes = new ArrayList<Double>();
+            assertEquals("records", 20, history.scan("device" + d, 0L, 100L, new LocationVisitor() {
+                public void visit(long timestamp, double latitude, double longitude, float horizontalAccuracy, boolean locationFinished) {
+                    latitudes.add(latitude);
+                }
+            }));
+            assertEquals("remapped", 60.0 + d, latitudes.get(0), 0.0);
+            assertEquals("remapped", 60.0 + d, latitudes.get(19), 0.0);
+        }
+        assertEquals("mappings capped", 3, history.getMappedCount());
+        history.close();
+        assertEquals("no mappings after close", 0, history.getMappedCount());
+
+        MappedLocationHistory reopened = new MappedLocationHistory(dir, 4);
+        reopened.setMaxMappedSegments(2);
+        assertEquals("recovered", 20L, reopened.size("device3"));
+        assertEquals("mappings capped while recovering", 2, reopened.getMappedCount());
+        reopened.close();
+    }
+
+    @Test
+    public void testIgnoresForeignFiles() throws Exception {
+        MappedLocationHistory history = new MappedLocationHistory(dir, 8);
+        history.append(DEVICE, 1L, 60.0, 12.0, 10.0f, true);
+        history.close();
+
+        File deviceDir = dir.listFiles()[0];
+        assertTrue("stray segment name", new File(deviceDir, "backup.seg").createNewFile());
+        assertTrue("stray file", new File(deviceDir, "notes.txt").createNewFile());
+        MappedLocationHistory reopened = new MappedLocationHistory(dir, 8);
+        assertEquals("records", 1L, reopened.size(DEVICE));
+        assertTrue("appends", reopened.append(DEVICE, 2L, 60.0, 12.0, 10.0f, true));
+        assertEquals("timestamps", Arrays.asList(1L, 2L), timestamps(reopened, 0L, 100L));
+        reopened.close();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tomasca
+ */
+public class MessageBatchTest {
+
+    private LocalTestServer server = null;
+    private SosumiClientManager manager;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger messages = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalTestServer(null, null);
+        server.register("/*", new HttpRequestHandler() {
+            // Serves a device list, and accepts messages to every device except "id-broken"
+            public void handle(HttpRequest req, HttpResponse resp, HttpContext context) throws HttpException, IOException {
+                if (req.getRequestLine().getUri().endsWith("/initClient")) {
+                    resp.setEntity(new StringEntity("{\"content\":[{\"id\":\"id-phone\",\"name\":\"MyPhone\"},{\"id\":\"id-broken\",\"name\":\"Broken\"}]}"));
+                    resp.setStatusCode(200);
+                    return;
+                }
+                int n = inFlight.incrementAndGet();
+                int max;
+                do {
+                    max = maxInFlight.get();
+                } while (n > max && !maxInFlight.compareAndSet(max, n));
+                try {
+                    Thread.sleep(20L);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+                messages.incrementAndGet();
+                String body = EntityUtils.toString(((HttpEntityEnclosingRequest) req).getEntity());
+                resp.setStatusCode(body.contains("\"id-broken\"") ? 500 : 200);
+            }
+        });
+        server.start();
+        manager = new SosumiClientManager("http://" + server.getServiceAddress().getHostName() + ":" + server.getServiceAddress().getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.close();
+        server.stop();
+    }
+
+    @Test
+    public void testSendToManyDevices() throws Exception {
+        List<MessageRequest> items = new ArrayList<MessageRequest>();
+        for (int i = 0; i < 40; i++) {
+            Sosumi account = manager.getAccount("user" + (i % 4), "pass");
+            items.add(new MessageRequest(account, i % 10 == 3 ? "Broken" : "MyPhone", "Alert " + i, "Subject", false));
+        }
+        items.add(new MessageRequest(manager.getAccount("user0", "pass"), "Unknown", "Alert", "Subject", false));
+
+        List<MessageResult> results = new MessageBatch().send(items, 5);
+
+        assertEquals("one result per item", items.size(), results.size());
+        int failed = 0;
+        for (int i = 0; i < results.size(); i++) {
+            assertSame("in order", items.get(i), results.get(i).getRequest());
+            if (!results.get(i).isSuccess()) {
+                failed++;
+                assertNotNull("error", results.get(i).getError());
+            }
+        }
+        assertEquals("broken and unknown devices fail", 5, failed);
+        assertEquals("messages sent", 40, messages.get());
+        assertTrue("parallelism bound: " + maxInFlight.get(), maxInFlight.get() <= 5);
+        assertTrue("should run concurrently: " + maxInFlight.get(), maxInFlight.get() > 1);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tomasca
+ */
+public class PartitionGuardTest {
+
+    private FmipSimulator simulator;
+    private SosumiClientManager manager;
+    private PartitionGuard guard;
+    private final List<String> events = new CopyOnWriteArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new FmipSimulator();
+        simulator.start();
+        manager = new SosumiClientManager(simulator.getUrl());
+        guard = new PartitionGuard();
+        guard.addListener(new PartitionListener() {
+            @Override
+            public void stateChanged(String partition, PartitionGuard.State state) {
+                events.add(state.name());
+            }
+
+            @Override
+            public void limitChanged(String partition, int limit) {
+            }
+        });
+        manager.setPartitionGuard(guard);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.close();
+        simulator.stop();
+    }
+
+    @Test
+    public void testRetryWithBackoff() throws Exception {
+        guard.setRetries(3, 10L, 50L);
+        simulator.failNext(2);
+        Sosumi sosumi = manager.getAccount("retry@example.com", "pass");
+        long start = System.currentTimeMillis();
+        assertEquals("devices", 3, sosumi.refresh(DeviceFilter.ALL).size());
+        assertTrue("should back off", System.currentTimeMillis() - start >= 10L);
+        assertEquals("errors", 2L, simulator.getErrorCount());
+
+        simulator.failNext(10);
+        try {
+            sosumi.refresh(DeviceFilter.ALL);
+            fail("Should give up after the retries");
+        } catch (SosumiException ex) {
+            assertFalse("not rejected by the guard", ex instanceof PartitionUnavailableException);
+        }
+        assertEquals("one call and three retries", 6L, simulator.getErrorCount());
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        guard.setRetries(0, 10L, 50L);
+        guard.setCircuitBreaker(3, 200L);
+        String partition = new URL(simulator.getUrl()).getAuthority();
+        Sosumi sosumi = manager.getAccount("broken@example.com", "pass");
+        simulator.setErrorRate(1.0);
+        for (int i = 0; i < 3; i++) {
+            try {
+                sosumi.refresh(DeviceFilter.ALL);
+                fail("Should fail");
+            } catch (SosumiException ex) {
+                assertFalse("not rejected by the guard", ex instanceof PartitionUnavailableException);
+            }
+        }
+        assertEquals("state", PartitionGuard.State.OPEN, guard.getState(partition));
+        long requests = simulator.getRequestCount();
+        try {
+            manager.getAccount("other@example.com", "pass").refreshAsync(DeviceFilter.ALL).get();
+            fail("Should fail fast");
+        } catch (ExecutionException ex) {
+            PartitionUnavailableException pue = (PartitionUnavailableException) ex.getCause();
+            assertEquals("partition", partition, pue.getPartition());
+            assertTrue("retry after", pue.getRetryAfterMillis() > 0 && pue.getRetryAfterMillis() <= 201L);
+        }
+        assertEquals("no request while open", requests, simulator.getRequestCount());
+
+        simulator.setErrorRate(0.0);
+        // rejected until the circuit lets a trial call through
+        Await.until("circuit should let a call through", 2000L, () -> {
+            try {
+                return sosumi.refresh(DeviceFilter.ALL).size() == 3;
+            } catch (PartitionUnavailableException ex) {
+                return false;
+            } catch (SosumiException ex) {
+                throw new AssertionError(ex);
+            }
+        });
+        assertEquals("state", PartitionGuard.State.CLOSED, guard.getState(partition));
+        assertEquals("events", "[OPEN, HALF_OPEN, CLOSED]", events.toString());
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        guard.setConcurrencyLimit(1, 1, 1);
+        Sosumi first = manager.getAccount("first@example.com", "pass");
+        Sosumi second = manager.getAccount("second@example.com", "pass");
+        first.refresh(DeviceFilter.ALL);
+        second.refresh(DeviceFilter.ALL);
+        simulator.setLatency(200L, 0L);
+        final long requests = simulator.getRequestCount();
+        CompletableFuture<DeviceSnapshot> slow = first.refreshAsync(DeviceFilter.ALL);
+        Await.until("slow call in flight", 2000L, () -> simulator.getRequestCount() > requests);
+        try {
+            second.refresh(DeviceFilter.ALL);
+            fail("Should be over the limit");
+        } catch (PartitionUnavailableException ex) {
+            assertEquals("retry at once", 0L, ex.getRetryAfterMillis());
+        }
+        assertEquals("devices", 3, slow.get().size());
+        assertEquals("devices", 3, second.refresh(DeviceFilter.ALL).size());
+    }
+
+    @Test
+    public void testLocateWaitsForPartition() throws Exception {
+        guard.setConcurrencyLimit(1, 1, 1);
+        simulator.setLocationFinishedDelay(400L);
+        Sosumi first = manager.getAccount("first@example.com", "pass");
+        Sosumi second = manager.getAccount("second@example.com", "pass");
+        first.refresh(DeviceFilter.ALL);
+        second.refresh(DeviceFilter.ALL);
+        simulator.setLatency(200L, 0L);
+        final long requests = simulator.getRequestCount();
+        CompletableFuture<DeviceSnapshot> slow = first.refreshAsync(DeviceFilter.ALL);
+        Await.until("slow call in flight", 2000L, () -> simulator.getRequestCount() > requests);
+
+        // the first polls are rejected by the guard while the slow call runs
+        CompletableFuture<DeviceLocation> located = second.locateDeviceAsync("Device 0", 10, PollingPolicies.fixed(50L));
+        assertEquals("devices", 3, slow.get().size());
+        DeviceLocation location = located.get(10, TimeUnit.SECONDS);
+        assertTrue("finished location", location.isLocationFinished());
+    }
+
+    @Test
+    public void testAdaptiveLimit() throws Exception {
+        PartitionGuard.Partition partition = guard.partition("p");
+        assertEquals("initial", 20, guard.getLimit("p"));
+        for (int round = 0; round < 10; round++) {
+            int limit = guard.getLimit("p");
+            for (int i = 0; i < limit; i++) {
+                partition.acquire();
+            }
+            try {
+                partition.acquire();
+                fail("Should be over the limit");
+            } catch (PartitionUnavailableException ex) {
+            }
+            for (int i = 0; i < limit; i++) {
+                // every request takes a millisecond
+                partition.onSuccess(System.nanoTime() - 1000000L);
+            }
+        }
+        int grown = guard.getLimit("p");
+        assertTrue("should grow while used at even latency: " + grown, grown > 20);
+
+        for (int i = 0; i < 4; i++) {
+            partition.acquire();
+            partition.onFailure();
+        }
+        assertTrue("should shrink on failures", guard.getLimit("p") < grown);
+        assertEquals("state", PartitionGuard.State.CLOSED, guard.getState("p"));
+    }
+}
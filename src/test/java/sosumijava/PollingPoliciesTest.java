@@ -0,0 +1,64 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tomasca
+ */
+public class PollingPoliciesTest {
+
+    private static DeviceLocation location(long timestamp, float accuracy, boolean finished) {
+        return DeviceLocation.fromJson("{\"timeStamp\":" + timestamp + ",\"horizontalAccuracy\":" + accuracy
+                + ",\"locationFinished\":" + finished + ",\"longitude\":12.0,\"latitude\":60.0}");
+    }
+
+    @Test
+    public void testFixed() {
+        PollingPolicy policy = PollingPolicies.fixed(5000L);
+        LocateProgress progress = new LocateProgress(System.nanoTime(), null);
+        for (int i = 0; i < 5; i++) {
+            progress.update(location(1000L, 100.0f, false));
+            assertEquals("delay", 5000L, policy.nextDelay(progress));
+        }
+        assertFalse("unfinished", policy.accept(location(1000L, 5.0f, false)));
+        assertTrue("finished", policy.accept(location(1000L, 100.0f, true)));
+    }
+
+    @Test
+    public void testBackoffResetsWhenLocationChanges() {
+        PollingPolicy policy = PollingPolicies.backoff(500L, 3000L);
+        LocateProgress progress = new LocateProgress(System.nanoTime(), null);
+        assertEquals("first probe", 500L, policy.nextDelay(progress));
+        progress.update(location(1000L, 100.0f, false));
+        assertEquals("new location", 500L, policy.nextDelay(progress));
+        progress.update(location(1000L, 100.0f, false));
+        assertEquals("unchanged once", 1000L, policy.nextDelay(progress));
+        progress.update(location(1000L, 100.0f, false));
+        assertEquals("unchanged twice", 2000L, policy.nextDelay(progress));
+        progress.update(location(1000L, 100.0f, false));
+        assertEquals("capped", 3000L, policy.nextDelay(progress));
+        progress.update(location(1000L, 50.0f, false));
+        assertEquals("better accuracy", 500L, policy.nextDelay(progress));
+        for (int i = 0; i < 100; i++) {
+            progress.update(null);
+        }
+        assertEquals("no overflow", 3000L, policy.nextDelay(progress));
+        assertEquals("polls", 105, progress.getPolls());
+    }
+
+    @Test
+    public void testAccuracy() {
+        PollingPolicy policy = PollingPolicies.accuracy(50.0, PollingPolicies.fixed(1000L));
+        assertFalse("too coarse", policy.accept(location(1000L, 65.0f, false)));
+        assertTrue("accurate enough", policy.accept(location(1000L, 50.0f, false)));
+        assertFalse("no accuracy", policy.accept(location(1000L, 0.0f, false)));
+        assertTrue("finished", policy.accept(location(1000L, 65.0f, true)));
+        assertEquals("delegated delay", 1000L, policy.nextDelay(new LocateProgress(System.nanoTime(), null)));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * sosumi-java
+ * Copyright 2014 Tomas Carlfalk. All rights reserved.
+ */
+package sosumijava;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tomasca
+ */
+public class SosumiClientManagerTest {
+
+    private LocalTestServer server = null;
+    private SosumiClientManager manager;
+    private String primaryServiceAddress;
+    private String secondaryServiceAddress;
+    private final List<String> requestHosts = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalTestServer(null, null);
+        server.register("/*", new HttpRequestHandler() {
+            // Redirects requests to the primary address, serves a device list on the secondary
+            public void handle(HttpRequest req, HttpResponse resp, HttpContext context) throws HttpException, IOException {
+                String host = req.getFirstHeader("Host").getValue();
+                requestHosts.add(host);
+                if (host.equals(primaryServiceAddress)) {
+                    resp.addHeader("X-Apple-MMe-Host", secondaryServiceAddress);
+                    resp.addHeader("X-Apple-MMe-Scope", "scope");
+                    resp.setStatusCode(330);
+                } else {
+                    resp.setEntity(new StringEntity("{\"content\":[{\"id\":\"id-phone\",\"name\":\"MyPhone\",\"deviceClass\":\"iPhone\",\"batteryLevel\":0.5,\"batteryStatus\":\"Charging\",\"location\":{\"timeStamp\":1392159139870,\"horizontalAccuracy\":10.0,\"locationFinished\":true,\"longitude\":12.0,\"latitude\":60.0}}]}"));
+                    resp.setStatusCode(200);
+                }
+            }
+        });
+        server.start();
+        primaryServiceAddress = server.getServiceAddress().getHostName() + ":" + server.getServiceAddress().getPort();
+        secondaryServiceAddress = server.getServiceAddress().getAddress().getHostAddress() + ":" + server.getServiceAddress().getPort();
+        manager = new SosumiClientManager("http://" + primaryServiceAddress);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.close();
+        server.stop();
+    }
+
+    @Test
+    public void testSameClientPerAccount() throws Exception {
+        Sosumi a = manager.getAccount("a", "pass");
+        assertSame("same account and password", a, manager.getAccount("a", "pass"));
+        assertNotSame("other account", a, manager.getAccount("b", "pass"));
+        assertNotSame("changed password", a, manager.getAccount("a", "other"));
+        assertEquals("accounts", 2, manager.getAccountCount());
+    }
+
+    @Test
+    public void testManyAccounts() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            DeviceLocation loc = manager.getAccount("user" + i, "pass").locateDevice("MyPhone", 10);
+            assertEquals("lat", 60.0, loc.getLatitude(), 0.0);
+        }
+        assertEquals("requests", 40, requestHosts.size());
+        assertTrue("should reuse pooled connections: " + server.getAcceptedConnectionCount(), server.getAcceptedConnectionCount() <= 2);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedAccountsRemoved() throws Exception {
+        manager.setMaxAccounts(3);
+        for (int i = 0; i < 3; i++) {
+            manager.getAccount("user" + i, "pass");
+            nextMillisecond();
+        }
+        Sosumi used = manager.getAccount("user0", "pass");
+        nextMillisecond();
+        manager.getAccount("user3", "pass");
+        Await.until("accounts over the maximum removed", 1000L, () -> manager.getAccountCount() <= 3);
+        assertEquals("accounts", 3, manager.getAccountCount());
+        assertSame("recently used account kept", used, manager.getAccount("user0", "pass"));
+        assertNotNull("unused account created again", manager.getAccount("user1", "pass"));
+    }
+
+    @Test
+    public void testEvictedTrackedAccountStopsPolling() throws Exception {
+        manager.setMaxAccounts(1);
+        Sosumi tracked = manager.getAccount("tracked", "pass");
+        tracked.setTrackInterval(200L);
+        final CountDownLatch polled = new CountDownLatch(1);
+        tracked.track("MyPhone", (before, after) -> polled.countDown());
+        assertTrue("should poll", polled.await(5, TimeUnit.SECONDS));
+
+        manager.getAccount("other", "pass");
+        Await.until("tracked account evicted", 2000L, () -> manager.getAccountCount() == 1);
+        Await.stable("no polls after eviction", 600L, 5000L, requestHosts::size);
+    }
+
+    @Test
+    public void testIdleAccountsRemoved() throws Exception {
+        final Sosumi idle = manager.getAccount("idle", "pass");
+        Sosumi active = manager.getAccount("active", "pass");
+        manager.setAccountIdleTimeout(50L);
+        Await.until("idle timeout passed", 1000L, () -> System.currentTimeMillis() - idle.getLastAccess() > 50L);
+        active.getDevices(1000L);
+        manager.evictAccounts();
+        assertEquals("accounts", 1, manager.getAccountCount());
+        assertSame("active account kept", active, manager.getAccount("active", "pass"));
+        assertNotSame("idle account removed", idle, manager.getAccount("idle", "pass"));
+    }
+
+    @Test
+    public void testEndpointKeptWhenAccountReplaced() throws Exception {
+        manager.getAccount("a", "pass").locateDevice("MyPhone", 10);
+        assertEquals("should follow redirect", 2, requestHosts.size());
+
+        manager.removeAccount("a");
+        manager.getAccount("a", "pass").locateDevice("MyPhone", 10);
+        assertEquals("should not need another redirect", 3, requestHosts.size());
+        assertEquals("should go straight to partition", secondaryServiceAddress, requestHosts.get(2));
+    }
+
+    @Test
+    public void testStaleCachedEndpointIsReplaced() throws Exception {
+        InMemoryEndpointCache cache = new InMemoryEndpointCache();
+        cache.put("a", new AccountEndpoint(new URL("http://127.0.0.1:1/"), "stale"));
+        manager.setEndpointCache(cache);
+
+        DeviceLocation loc = manager.getAccount("a", "pass").locateDevice("MyPhone", 10);
+        assertNotNull("location", loc);
+        assertEquals("should ask the primary host again", primaryServiceAddress, requestHosts.get(0));
+        AccountEndpoint ep = cache.get("a");
+        assertEquals("learned partition cached", secondaryServiceAddress, ep.getPartition().getAuthority());
+        assertEquals("learned scope cached", "scope", ep.getScope());
+    }
+
+    @Test
+    public void testWarmUpWithPersistentCache() throws Exception {
+        File file = File.createTempFile("endpoints", ".properties");
+        file.delete();
+        try {
+            Map<String, String> credentials = new HashMap<String, String>();
+            for (int i = 0; i < 30; i++) {
+                credentials.put("user" + i, "pass");
+            }
+            FileEndpointCache cache = new FileEndpointCache(file);
+            manager.setEndpointCache(cache);
+            Map<String, SosumiException> failures = manager.warmUp(credentials, 4);
+            assertTrue("failures: " + failures, failures.isEmpty());
+            assertEquals("accounts", 30, manager.getAccountCount());
+            assertEquals("one redirect and one list per account", 60, requestHosts.size());
+            cache.close();
+
+            // A restarted manager goes straight to the partitions
+            requestHosts.clear();
+            SosumiClientManager restarted = new SosumiClientManager("http://" + primaryServiceAddress);
+            try {
+                restarted.setEndpointCache(new FileEndpointCache(file));
+                assertTrue("no failures", restarted.warmUp(credentials, 4).isEmpty());
+                assertEquals("no redirects", 30, requestHosts.size());
+                for (String host : requestHosts) {
+                    assertEquals("partition", secondaryServiceAddress, host);
+                }
+            } finally {
+                restarted.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testWarmUpReportsFailures() throws Exception {
+        SosumiClientManager unreachable = new SosumiClientManager("http://127.0.0.1:1");
+        try {
+            Map<String, String> credentials = new HashMap<String, String>();
+            credentials.put("a", "pass");
+            credentials.put("b", "pass");
+            Map<String, SosumiException> failures = unreachable.warmUp(credentials, 8);
+            assertEquals("failed accounts", credentials.keySet(), failures.keySet());
+        } finally {
+            unreachable.close();
+        }
+    }
+
+    /**
+     * Wait for the clock to move on, so that accesses are ordered by their
+     * millisecond timestamps.
+     */
+    private static void nextMillisecond() throws InterruptedException {
+        final long now = System.currentTimeMillis();
+        Await.until("clock moves on", 1000L, () -> System.currentTimeMillis() > now);
+    }
+}
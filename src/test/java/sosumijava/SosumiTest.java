@@ -4,6 +4,16 @@
  */
 package sosumijava;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.entity.StringEntity;
@@ -156,7 +166,428 @@ public class SosumiTest {
         
     }
 
-    
+    @Test
+    public void testLocateDeviceAsyncTimesOut() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        doAnswer(new Answer() {
+            // Always 200 OK without location for MyiPad
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                calls.incrementAndGet();
+                HttpResponse resp = (HttpResponse) invocation.getArguments()[1];
+                resp.setEntity(new StringEntity(exampleJsonResponse));
+                resp.setStatusCode(200);
+                return null;
+            }
+        }).when(handler).handle((HttpRequest) anyObject(), (HttpResponse) anyObject(), (HttpContext) anyObject());
+
+        impl.setLocateRefreshInterval(100L);
+        CompletableFuture<DeviceLocation> future = impl.locateDeviceAsync("MyiPad", 1);
+        try {
+            future.get();
+            fail("should time out");
+        } catch (ExecutionException ex) {
+            assertTrue("should fail with SosumiException", ex.getCause() instanceof SosumiException);
+        }
+        assertTrue("should have polled more than once", calls.get() > 1);
+        Await.stable("should stop polling after timeout", 400L, 5000L, calls::get);
+    }
+
+    @Test
+    public void testLocateDeviceAsyncCancel() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        doAnswer(new Answer() {
+            // Always 200 OK without location for MyiPad
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                calls.incrementAndGet();
+                HttpResponse resp = (HttpResponse) invocation.getArguments()[1];
+                resp.setEntity(new StringEntity(exampleJsonResponse));
+                resp.setStatusCode(200);
+                return null;
+            }
+        }).when(handler).handle((HttpRequest) anyObject(), (HttpResponse) anyObject(), (HttpContext) anyObject());
+
+        impl.setLocateRefreshInterval(100L);
+        CompletableFuture<DeviceLocation> future = impl.locateDeviceAsync("MyiPad", 60);
+        Await.until("should poll", 5000L, () -> calls.get() >= 3);
+        assertTrue("should cancel", future.cancel(true));
+        Await.stable("should stop polling after cancel", 400L, 5000L, calls::get);
+    }
+
+    @Test
+    public void testConcurrentLocatesShareRefresh() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        doAnswer(new Answer() {
+            // Always 200 OK without location for MyiPad, a slow response to widen the window
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                calls.incrementAndGet();
+                Thread.sleep(50L);
+                HttpResponse resp = (HttpResponse) invocation.getArguments()[1];
+                resp.setEntity(new StringEntity(exampleJsonResponse));
+                resp.setStatusCode(200);
+                return null;
+            }
+        }).when(handler).handle((HttpRequest) anyObject(), (HttpResponse) anyObject(), (HttpContext) anyObject());
+
+        impl.setLocateRefreshInterval(200L);
+        List<CompletableFuture<DeviceLocation>> futures = new ArrayList<CompletableFuture<DeviceLocation>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(impl.locateDeviceAsync(i % 2 == 0 ? "MyiPad" : "MyiPadMini", 1));
+        }
+        for (CompletableFuture<DeviceLocation> f : futures) {
+            try {
+                f.get();
+                fail("should time out");
+            } catch (ExecutionException ex) {
+                assertTrue("should fail with SosumiException", ex.getCause() instanceof SosumiException);
+            }
+        }
+        assertTrue("should poll once per refresh window, not once per locate: " + calls.get(), calls.get() <= 8);
+    }
+
+    @Test
+    public void testLocateDeviceAcceptsAccurateLocation() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        doAnswer(new Answer() {
+            // MyiPad narrows its location down from 500 m to 30 m before finishing at 10 m
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                int call = calls.incrementAndGet();
+                String accuracy = call == 1 ? "500.0" : call == 2 ? "30.0" : "10.0";
+                HttpResponse resp = (HttpResponse) invocation.getArguments()[1];
+                resp.setEntity(new StringEntity(exampleJsonResponseWithLocationForMyiPad.replace(
+                        "\"horizontalAccuracy\":10.0,\"locationFinished\":true,\"isInaccurate\":false,\"longitude\":18",
+                        "\"horizontalAccuracy\":" + accuracy + ",\"locationFinished\":" + (call > 2) + ",\"isInaccurate\":false,\"longitude\":18")));
+                resp.setStatusCode(200);
+                return null;
+            }
+        }).when(handler).handle((HttpRequest) anyObject(), (HttpResponse) anyObject(), (HttpContext) anyObject());
+
+        DeviceLocation loc = impl.locateDevice("MyiPad", 10, PollingPolicies.accuracy(50.0, PollingPolicies.fixed(100L)));
+        assertEquals("accuracy", 30.0f, loc.getHorizontalAccuracy(), 0.0f);
+        assertFalse("not finished", loc.isLocationFinished());
+        assertEquals("calls", 2, calls.get());
+    }
+
+    @Test
+    public void testRefreshAllWhileFilteredRefreshInFlight() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer() {
+            // The first, filtered, refresh is held back and answers with an older location of MyiPad
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                HttpResponse resp = (HttpResponse) invocation.getArguments()[1];
+                if (calls.incrementAndGet() == 1) {
+                    release.await(5, TimeUnit.SECONDS);
+                    resp.setEntity(new StringEntity(exampleJsonResponseWithLocationForMyiPad));
+                } else {
+                    resp.setEntity(new StringEntity(exampleJsonResponse));
+                }
+                resp.setStatusCode(200);
+                return null;
+            }
+        }).when(handler).handle((HttpRequest) anyObject(), (HttpResponse) anyObject(), (HttpContext) anyObject());
+
+        CompletableFuture<DeviceSnapshot> filtered = impl.refreshAsync(DeviceFilters.byName("MyiPad"));
+        Await.until("filtered refresh should reach the server", 5000L, () -> calls.get() == 1);
+        List<CompletableFuture<DeviceSnapshot>> all = new ArrayList<CompletableFuture<DeviceSnapshot>>();
+        for (int i = 0; i < 5; i++) {
+            all.add(impl.refreshAsync(DeviceFilter.ALL));
+        }
+        DeviceSnapshot fresh = all.get(0).get();
+        for (CompletableFuture<DeviceSnapshot> f : all) {
+            assertSame("refreshes of all devices should share one call", fresh, f.get());
+        }
+        assertEquals("one call for the filtered refresh and one for all", 2, calls.get());
+
+        release.countDown();
+        assertSame("older filtered result should not be merged", fresh, filtered.get());
+        assertSame("snapshot", fresh, impl.getDeviceSnapshot());
+        assertNull("MyiPad keeps the newer state", impl.getDeviceSnapshot().getByName("MyiPad").getDeviceLocation());
+    }
+
+    @Test
+    public void testFilteredRefreshesCompleteOutOfOrder() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer() {
+            // The first refresh, of MyiPad, is held back until the refresh of MyiPhone is done
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                HttpResponse resp = (HttpResponse) invocation.getArguments()[1];
+                if (calls.incrementAndGet() == 1) {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                resp.setEntity(new StringEntity(exampleJsonResponseWithLocationForMyiPad));
+                resp.setStatusCode(200);
+                return null;
+            }
+        }).when(handler).handle((HttpRequest) anyObject(), (HttpResponse) anyObject(), (HttpContext) anyObject());
+
+        CompletableFuture<DeviceSnapshot> pad = impl.refreshAsync(DeviceFilters.byName("MyiPad"));
+        Await.until("refresh of MyiPad should reach the server", 5000L, () -> calls.get() == 1);
+        // start the refresh of MyiPhone in a later millisecond
+        Thread.sleep(2L);
+        DeviceSnapshot phone = impl.refreshAsync(DeviceFilters.byName("MyiPhone")).get();
+        assertNotNull("MyiPhone", phone.getByName("MyiPhone"));
+
+        release.countDown();
+        DeviceSnapshot merged = pad.get();
+        assertNotNull("MyiPad should be merged", merged.getByName("MyiPad").getDeviceLocation());
+        assertSame("MyiPhone kept", phone.getByName("MyiPhone"), merged.getByName("MyiPhone"));
+        assertSame("snapshot", merged, impl.getDeviceSnapshot());
+        assertEquals("not listed", 0L, merged.getListedAt());
+    }
+
+    @Test
+    public void testGetDevicesWithinMaxAge() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        doAnswer(new Answer() {
+            // Always 200 OK with all devices
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                calls.incrementAndGet();
+                HttpResponse resp = (HttpResponse) invocation.getArguments()[1];
+                resp.setEntity(new StringEntity(exampleJsonResponse));
+                resp.setStatusCode(200);
+                return null;
+            }
+        }).when(handler).handle((HttpRequest) anyObject(), (HttpResponse) anyObject(), (HttpContext) anyObject());
+
+        assertEquals("devices", 4, impl.getDevices(10000L).size());
+        assertSame("cached", impl.getDeviceSnapshot(), impl.getDevices(10000L));
+        assertEquals("device", "MyiPad", impl.getDevice("MyiPad", 10000L).getDeviceName());
+        assertNull("unknown device", impl.getDevice("Unknown", 10000L));
+        assertEquals("calls", 1, calls.get());
+
+        final long fetchedAt = impl.getDeviceSnapshot().getFetchedAt();
+        Await.until("snapshot older than the maximum age", 1000L, () -> System.currentTimeMillis() - fetchedAt > 50L);
+        DeviceInfo pad = impl.getDevice("MyiPad", 50L);
+        assertEquals("device refreshed", 2, calls.get());
+        DeviceSnapshot snapshot = impl.getDeviceSnapshot();
+        assertTrue("only the device refreshed", snapshot.getFetchedAt(pad.getDeviceId()) > snapshot.getFetchedAt(snapshot.getByName("MyiPhone").getDeviceId()));
+        impl.getDevice("MyiPad", 50L);
+        assertEquals("calls", 2, calls.get());
+        impl.getDevices(50L);
+        assertEquals("other devices too old", 3, calls.get());
+    }
+
+    @Test
+    public void testGetDevicesAfterLocate() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        doAnswer(new Answer() {
+            // Always 200 OK with a location for MyiPad
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                calls.incrementAndGet();
+                HttpResponse resp = (HttpResponse) invocation.getArguments()[1];
+                resp.setEntity(new StringEntity(exampleJsonResponseWithLocationForMyiPad));
+                resp.setStatusCode(200);
+                return null;
+            }
+        }).when(handler).handle((HttpRequest) anyObject(), (HttpResponse) anyObject(), (HttpContext) anyObject());
+
+        assertNotNull("located", impl.locateDevice("MyiPad", 10));
+        assertEquals("only MyiPad fetched", 1, impl.getDeviceSnapshot().size());
+        int located = calls.get();
+
+        assertNotNull("other device listed", impl.getDevice("MyiPhone", 60000L));
+        assertEquals("devices listed", located + 1, calls.get());
+        assertEquals("devices", 4, impl.getDevices(60000L).size());
+        assertEquals("listing reused", located + 1, calls.get());
+    }
+
+    @Test
+    public void testLocateAllSharesPolls() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        doAnswer(new Answer() {
+            // MyiPhone has a location from the start, MyiPad from the third call, the others never
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                int call = calls.incrementAndGet();
+                HttpResponse resp = (HttpResponse) invocation.getArguments()[1];
+                resp.setEntity(new StringEntity(call < 3 ? exampleJsonResponse : exampleJsonResponseWithLocationForMyiPad));
+                resp.setStatusCode(200);
+                return null;
+            }
+        }).when(handler).handle((HttpRequest) anyObject(), (HttpResponse) anyObject(), (HttpContext) anyObject());
+
+        final List<String> located = new CopyOnWriteArrayList<String>();
+        List<LocateResult> results = impl.locateAllAsync(null, 1, PollingPolicies.fixed(100L), result -> located.add(result.getDeviceName())).get();
+        assertEquals("results", 4, results.size());
+        assertEquals("service order", "MyiPhone", results.get(0).getDeviceName());
+        assertEquals("phone", LocateResult.Status.LOCATED, results.get(0).getStatus());
+        assertEquals("pad", LocateResult.Status.LOCATED, results.get(1).getStatus());
+        assertEquals("pad location", 55.18714771365112, results.get(1).getLocation().getLatitude(), 0.0);
+        assertEquals("mac", LocateResult.Status.TIMED_OUT, results.get(2).getStatus());
+        assertNull("mac location", results.get(2).getLocation());
+        assertNotNull("mac error", results.get(2).getError());
+        assertEquals("reported as located", Arrays.asList("MyiPhone", "MyiPad"), located.subList(0, 2));
+        assertEquals("all reported", 4, located.size());
+        assertTrue("one poll loop for all devices: " + calls.get(), calls.get() <= 13);
+
+        results = impl.locateAll(Arrays.asList("MyiPad", "Unknown"), 1);
+        assertTrue("known location", results.get(0).isLocated());
+        assertEquals("unknown device", LocateResult.Status.FAILED, results.get(1).getStatus());
+    }
+
+    @Test
+    public void testLocateAllAfterLocate() throws Exception {
+        doAnswer(new Answer() {
+            // Always 200 OK with a location for MyiPad
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                HttpResponse resp = (HttpResponse) invocation.getArguments()[1];
+                resp.setEntity(new StringEntity(exampleJsonResponseWithLocationForMyiPad));
+                resp.setStatusCode(200);
+                return null;
+            }
+        }).when(handler).handle((HttpRequest) anyObject(), (HttpResponse) anyObject(), (HttpContext) anyObject());
+
+        assertNotNull("located", impl.locateDevice("MyiPad", 10));
+        List<LocateResult> results = impl.locateAll(null, 1);
+        assertEquals("results", 4, results.size());
+        assertEquals("service order", "MyiPhone", results.get(0).getDeviceName());
+    }
+
+    @Test
+    public void testTrackDeliversChangesOnly() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        doAnswer(new Answer() {
+            // MyiPad stays put for two polls, then moves
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                int call = calls.incrementAndGet();
+                HttpResponse resp = (HttpResponse) invocation.getArguments()[1];
+                resp.setEntity(new StringEntity(call <= 2 ? exampleJsonResponseWithLocationForMyiPad
+                        : exampleJsonResponseWithLocationForMyiPad.replace("\"longitude\":18.01929723730405", "\"longitude\":18.5")));
+                resp.setStatusCode(200);
+                return null;
+            }
+        }).when(handler).handle((HttpRequest) anyObject(), (HttpResponse) anyObject(), (HttpContext) anyObject());
+
+        final List<DeviceInfo> changes = Collections.synchronizedList(new ArrayList<DeviceInfo>());
+        final List<DeviceInfo> previousOfFirst = Collections.synchronizedList(new ArrayList<DeviceInfo>());
+        final CountDownLatch release = new CountDownLatch(1);
+        impl.setTrackInterval(50L);
+        Subscription subscription = impl.track("MyiPad", new DeviceListener() {
+            public void deviceChanged(DeviceInfo previous, DeviceInfo current) {
+                if (changes.isEmpty()) {
+                    previousOfFirst.add(previous);
+                    try {
+                        // a slow listener must not hold up polling
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                changes.add(current);
+            }
+        });
+        Await.until("should keep polling while the listener is busy", 5000L, () -> calls.get() >= 4);
+        release.countDown();
+        Await.until("changes delivered", 5000L, () -> changes.size() >= 2);
+        subscription.cancel();
+        assertEquals("no previous on first change", Collections.singletonList(null), previousOfFirst);
+        assertEquals("changes", 2, changes.size());
+        assertEquals("first", 18.01929723730405, changes.get(0).getDeviceLocation().getLongitude(), 0.0);
+        assertEquals("moved", 18.5, changes.get(1).getDeviceLocation().getLongitude(), 0.0);
+
+        Await.stable("should stop polling after cancel", 200L, 5000L, calls::get);
+    }
+
+    @Test
+    public void testLocationSinkGetsNewLocationsOnly() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        doAnswer(new Answer() {
+            // The same locations twice, then MyiPad reports a new one
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                int call = calls.incrementAndGet();
+                HttpResponse resp = (HttpResponse) invocation.getArguments()[1];
+                resp.setEntity(new StringEntity(call <= 2 ? exampleJsonResponseWithLocationForMyiPad
+                        : exampleJsonResponseWithLocationForMyiPad.replace("\"timeStamp\":1392159139870,\"locationType\":null,\"positionType\":\"GPS\",\"horizontalAccuracy\":10.0,\"locationFinished\":true,\"isInaccurate\":false,\"longitude\":18",
+                                "\"timeStamp\":1392159149870,\"locationType\":null,\"positionType\":\"GPS\",\"horizontalAccuracy\":10.0,\"locationFinished\":true,\"isInaccurate\":false,\"longitude\":18")));
+                resp.setStatusCode(200);
+                return null;
+            }
+        }).when(handler).handle((HttpRequest) anyObject(), (HttpResponse) anyObject(), (HttpContext) anyObject());
+
+        final List<String> appended = Collections.synchronizedList(new ArrayList<String>());
+        impl.setLocationSink(new LocationSink() {
+            public void append(String deviceId, DeviceLocation location) {
+                appended.add(deviceId + "@" + location.getTimestamp());
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            impl.refresh(DeviceFilter.ALL);
+        }
+        Await.until("locations appended", 2000L, () -> appended.size() >= 3);
+        assertEquals("appended", Arrays.asList(
+                "KOODsac0121e/ASDcascasSDAS210121@1392159139870",
+                "+dwqdij29823WEF021ds/ASDKASDJcasdasd2@1392159139870",
+                "+dwqdij29823WEF021ds/ASDKASDJcasdasd2@1392159149870"), appended);
+    }
+
+    @Test
+    public void testSlowLocationSinkDoesNotBlockRefresh() throws Exception {
+        doAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                HttpResponse resp = (HttpResponse) invocation.getArguments()[1];
+                resp.setEntity(new StringEntity(exampleJsonResponseWithLocationForMyiPad));
+                resp.setStatusCode(200);
+                return null;
+            }
+        }).when(handler).handle((HttpRequest) anyObject(), (HttpResponse) anyObject(), (HttpContext) anyObject());
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> appended = Collections.synchronizedList(new ArrayList<String>());
+        impl.setLocationSink(new LocationSink() {
+            public void append(String deviceId, DeviceLocation location) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                appended.add(deviceId);
+            }
+        });
+        assertEquals("devices", 4, impl.refreshAsync(DeviceFilter.ALL).get(5, TimeUnit.SECONDS).size());
+        assertEquals("a second refresh is not held by the sink", 4, impl.refreshAsync(DeviceFilter.ALL).get(5, TimeUnit.SECONDS).size());
+        assertTrue("sink still blocked", appended.isEmpty());
+        release.countDown();
+        Await.until("locations appended", 2000L, () -> appended.size() == 2);
+    }
+
+    @Test
+    public void testConnectionsReleasedOnEveryPath() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        doAnswer(new Answer() {
+            // Mix of 330 redirects, 500 errors with a payload and 200 OK
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                int n = calls.incrementAndGet();
+                HttpResponse resp = (HttpResponse) invocation.getArguments()[1];
+                if (n % 10 == 1) {
+                    resp.addHeader("X-Apple-MMe-Host", primaryServiceAddress);
+                    resp.setStatusCode(330);
+                } else if (n % 10 == 5) {
+                    resp.setEntity(new StringEntity("{\"error\":\"Internal\"}"));
+                    resp.setStatusCode(500);
+                } else {
+                    resp.setEntity(new StringEntity(exampleJsonResponse));
+                    resp.setStatusCode(200);
+                }
+                return null;
+            }
+        }).when(handler).handle((HttpRequest) anyObject(), (HttpResponse) anyObject(), (HttpContext) anyObject());
+
+        int failures = 0;
+        for (int i = 0; i < 2000; i++) {
+            try {
+                if (i % 2 == 0) {
+                    impl.refresh(DeviceFilter.ALL);
+                } else {
+                    impl.sendMessage("MyiPad", "A text message", "A subject", false);
+                }
+            } catch (SosumiException ex) {
+                failures++;
+            }
+        }
+        assertTrue("should have seen failures", failures > 0);
+        assertTrue("should reuse connections: " + server.getAcceptedConnectionCount(), server.getAcceptedConnectionCount() <= 2);
+    }
+
     private static String exampleJsonResponse = "{\"statusCode\":\"200\",\"content\":[{\"canWipeAfterLock\":true,\"remoteWipe\":null,\"locFoundEnabled\":false,\"location\":{\"timeStamp\":1392159139870,\"locationType\":null,\"positionType\":\"GPS\",\"horizontalAccuracy\":10.0,\"locationFinished\":true,\"isInaccurate\":false,\"longitude\":12.01929723730405,\"latitude\":60.18714771365112,\"isOld\":false},\"deviceModel\":\"FifthGen\",\"remoteLock\":null,\"activationLocked\":true,\"locationEnabled\":true,\"rawDeviceModel\":\"iPhone4,1\",\"modelDisplayName\":\"iPhone\",\"lostModeCapable\":true,\"id\":\"KOODsac0121e/ASDcascasSDAS210121\",\"deviceDisplayName\":\"iPhone 4s\",\"darkWake\":false,\"locationCapable\":true,\"maxMsgChar\":160,\"name\":\"MyiPhone\",\"batteryLevel\":0.1939275,\"features\":{\"CLT\":false,\"CWP\":false,\"WMG\":true,\"XRM\":false,\"CLK\":false,\"SND\":true,\"LST\":true,\"KEY\":false,\"WIP\":true,\"LOC\":true,\"LLC\":false,\"MSG\":true,\"LMG\":false,\"LCK\":true,\"REM\":false,\"SVP\":false,\"TEU\":true,\"LKL\":false,\"LKM\":false,\"PIN\":false,\"KPD\":false},\"deviceClass\":\"iPhone\",\"wipeInProgress\":false,\"passcodeLength\":4,\"mesg\":null,\"isMac\":false,\"snd\":null,\"isLocating\":true,\"trackingInfo\":null,\"deviceColor\":null,\"batteryStatus\":\"Charging\",\"deviceStatus\":\"203\",\"wipedTimestamp\":null,\"lockedTimestamp\":null,\"msg\":null,\"lostTimestamp\":\"\",\"lostModeEnabled\":false,\"thisDevice\":false,\"lostDevice\":null},{\"canWipeAfterLock\":true,\"remoteWipe\":null,\"locFoundEnabled\":false,\"location\":null,\"deviceModel\":\"ThirdGen-4G\",\"remoteLock\":null,\"activationLocked\":true,\"locationEnabled\":true,\"rawDeviceModel\":\"iPad3,3\",\"modelDisplayName\":\"iPad\",\"lostModeCapable\":true,\"id\":\"+dwqdij29823WEF021ds/ASDKASDJcasdasd2\",\"deviceDisplayName\":\"iPad\",\"darkWake\":false,\"locationCapable\":true,\"maxMsgChar\":160,\"name\":\"MyiPad\",\"batteryLevel\":0.0,\"features\":{\"CLT\":false,\"CWP\":false,\"WMG\":true,\"XRM\":false,\"CLK\":false,\"SND\":true,\"LST\":true,\"KEY\":false,\"WIP\":true,\"LOC\":true,\"LLC\":false,\"MSG\":true,\"LMG\":false,\"LCK\":true,\"REM\":false,\"SVP\":false,\"TEU\":true,\"LKL\":true,\"LKM\":false,\"PIN\":false,\"KPD\":false},\"deviceClass\":\"iPad\",\"wipeInProgress\":false,\"passcodeLength\":4,\"mesg\":null,\"isMac\":false,\"snd\":null,\"isLocating\":true,\"trackingInfo\":null,\"deviceColor\":null,\"batteryStatus\":\"Unknown\",\"deviceStatus\":\"203\",\"wipedTimestamp\":null,\"lockedTimestamp\":null,\"msg\":null,\"lostTimestamp\":\"\",\"lostModeEnabled\":false,\"thisDevice\":false,\"lostDevice\":null},{\"canWipeAfterLock\":false,\"remoteWipe\":null,\"locFoundEnabled\":false,\"location\":null,\"deviceModel\":\"iMac12_1\",\"remoteLock\":null,\"activationLocked\":false,\"locationEnabled\":true,\"rawDeviceModel\":\"iMac12,1\",\"modelDisplayName\":\"iMac\",\"lostModeCapable\":false,\"id\":\"FDSFwqeqwe012/djasodij2131easASD/dqwid1\",\"deviceDisplayName\":\"iMac 21.5\\\"\",\"darkWake\":false,\"locationCapable\":true,\"maxMsgChar\":500,\"name\":\"MyiMac\",\"batteryLevel\":0.0,\"features\":{\"CLT\":false,\"CWP\":false,\"WMG\":false,\"XRM\":false,\"CLK\":false,\"SND\":true,\"LST\":false,\"KEY\":true,\"WIP\":true,\"LOC\":true,\"LLC\":false,\"MSG\":true,\"LMG\":true,\"LCK\":true,\"REM\":false,\"SVP\":false,\"TEU\":false,\"LKL\":true,\"LKM\":true,\"PIN\":true,\"KPD\":true},\"deviceClass\":\"iMac\",\"wipeInProgress\":false,\"passcodeLength\":4,\"mesg\":null,\"isMac\":true,\"snd\":null,\"isLocating\":true,\"trackingInfo\":null,\"deviceColor\":null,\"batteryStatus\":\"Unknown\",\"deviceStatus\":\"203\",\"wipedTimestamp\":null,\"lockedTimestamp\":null,\"msg\":null,\"lostTimestamp\":\"\",\"lostModeEnabled\":false,\"thisDevice\":false,\"lostDevice\":null},{\"canWipeAfterLock\":true,\"remoteWipe\":null,\"locFoundEnabled\":false,\"location\":null,\"deviceModel\":\"iPad2_5\",\"remoteLock\":null,\"activationLocked\":true,\"locationEnabled\":true,\"rawDeviceModel\":\"iPad2,5\",\"modelDisplayName\":\"iPad\",\"lostModeCapable\":true,\"id\":\"dbdbdbd/DSFOJ14/wqdojsd982e321DAWD124\",\"deviceDisplayName\":\"iPad mini\",\"darkWake\":false,\"locationCapable\":true,\"maxMsgChar\":160,\"name\":\"MyiPadMini\",\"batteryLevel\":0.7233946,\"features\":{\"CLT\":false,\"CWP\":false,\"WMG\":true,\"XRM\":false,\"CLK\":false,\"SND\":true,\"LST\":true,\"KEY\":true,\"WIP\":true,\"LOC\":true,\"LLC\":false,\"MSG\":true,\"LMG\":false,\"LCK\":true,\"REM\":false,\"SVP\":false,\"TEU\":true,\"LKL\":true,\"LKM\":false,\"PIN\":false,\"KPD\":true},\"deviceClass\":\"iPad\",\"wipeInProgress\":false,\"passcodeLength\":4,\"mesg\":null,\"isMac\":false,\"snd\":null,\"isLocating\":true,\"trackingInfo\":null,\"deviceColor\":null,\"batteryStatus\":\"NotCharging\",\"deviceStatus\":\"203\",\"wipedTimestamp\":null,\"lockedTimestamp\":null,\"msg\":null,\"lostTimestamp\":\"\",\"lostModeEnabled\":false,\"thisDevice\":false,\"lostDevice\":null}],\"userInfo\":{\"lastName\":\"Bar\",\"firstName\":\"Foo\"},\"userPreferences\":{\"touchPrefs\":{},\"activationProhibitedDevices\":{\"0000000000000000000000000000000000000000000000000\":\"111111111111111111\"},\"activationUpgradeEmailSent\":true,\"lastUpdatedTime\":1384881308761,\"builder\":null},\"serverContext\":{\"minTrackLocThresholdInMts\":100,\"prefsUpdateTime\":1384881308761,\"maxDeviceLoadTime\":60000,\"authToken\":\"ABABABABABABAB\",\"classicUser\":false,\"sessionLifespan\":900000,\"serverTimestamp\":1392159219259,\"enableMapStats\":true,\"imageBaseUrl\":\"https://statici.icloud.com\",\"deviceLoadStatus\":\"200\",\"preferredLanguage\":\"sv-se\",\"clientId\":\"0101010101010101010101011\",\"lastSessionExtensionTime\":null,\"trackInfoCacheDurationInSecs\":86400,\"isHSA\":false,\"timezone\":{\"tzCurrentName\":\"Pacific Standard Time\",\"previousTransition\":1383469199999,\"previousOffset\":-25200000,\"currentOffset\":-28800000,\"tzName\":\"America/Los_Angeles\"},\"callbackIntervalInMS\":2000,\"cloudUser\":true,\"validRegion\":true,\"maxLocatingTime\":90000,\"prsId\":121212121212,\"macCount\":0}}";
     private static String exampleJsonResponseWithLocationForMyiPad = "{\"statusCode\":\"200\",\"content\":[{\"canWipeAfterLock\":true,\"remoteWipe\":null,\"locFoundEnabled\":false,\"location\":{\"timeStamp\":1392159139870,\"locationType\":null,\"positionType\":\"GPS\",\"horizontalAccuracy\":10.0,\"locationFinished\":true,\"isInaccurate\":false,\"longitude\":12.01929723730405,\"latitude\":60.18714771365112,\"isOld\":false},\"deviceModel\":\"FifthGen\",\"remoteLock\":null,\"activationLocked\":true,\"locationEnabled\":true,\"rawDeviceModel\":\"iPhone4,1\",\"modelDisplayName\":\"iPhone\",\"lostModeCapable\":true,\"id\":\"KOODsac0121e/ASDcascasSDAS210121\",\"deviceDisplayName\":\"iPhone 4s\",\"darkWake\":false,\"locationCapable\":true,\"maxMsgChar\":160,\"name\":\"MyiPhone\",\"batteryLevel\":0.1939275,\"features\":{\"CLT\":false,\"CWP\":false,\"WMG\":true,\"XRM\":false,\"CLK\":false,\"SND\":true,\"LST\":true,\"KEY\":false,\"WIP\":true,\"LOC\":true,\"LLC\":false,\"MSG\":true,\"LMG\":false,\"LCK\":true,\"REM\":false,\"SVP\":false,\"TEU\":true,\"LKL\":false,\"LKM\":false,\"PIN\":false,\"KPD\":false},\"deviceClass\":\"iPhone\",\"wipeInProgress\":false,\"passcodeLength\":4,\"mesg\":null,\"isMac\":false,\"snd\":null,\"isLocating\":true,\"trackingInfo\":null,\"deviceColor\":null,\"batteryStatus\":\"Charging\",\"deviceStatus\":\"203\",\"wipedTimestamp\":null,\"lockedTimestamp\":null,\"msg\":null,\"lostTimestamp\":\"\",\"lostModeEnabled\":false,\"thisDevice\":false,\"lostDevice\":null},{\"canWipeAfterLock\":true,\"remoteWipe\":null,\"locFoundEnabled\":false,\"location\":{\"timeStamp\":1392159139870,\"locationType\":null,\"positionType\":\"GPS\",\"horizontalAccuracy\":10.0,\"locationFinished\":true,\"isInaccurate\":false,\"longitude\":18.01929723730405,\"latitude\":55.18714771365112,\"isOld\":false},\"deviceModel\":\"ThirdGen-4G\",\"remoteLock\":null,\"activationLocked\":true,\"locationEnabled\":true,\"rawDeviceModel\":\"iPad3,3\",\"modelDisplayName\":\"iPad\",\"lostModeCapable\":true,\"id\":\"+dwqdij29823WEF021ds/ASDKASDJcasdasd2\",\"deviceDisplayName\":\"iPad\",\"darkWake\":false,\"locationCapable\":true,\"maxMsgChar\":160,\"name\":\"MyiPad\",\"batteryLevel\":0.0,\"features\":{\"CLT\":false,\"CWP\":false,\"WMG\":true,\"XRM\":false,\"CLK\":false,\"SND\":true,\"LST\":true,\"KEY\":false,\"WIP\":true,\"LOC\":true,\"LLC\":false,\"MSG\":true,\"LMG\":false,\"LCK\":true,\"REM\":false,\"SVP\":false,\"TEU\":true,\"LKL\":true,\"LKM\":false,\"PIN\":false,\"KPD\":false},\"deviceClass\":\"iPad\",\"wipeInProgress\":false,\"passcodeLength\":4,\"mesg\":null,\"isMac\":false,\"snd\":null,\"isLocating\":true,\"trackingInfo\":null,\"deviceColor\":null,\"batteryStatus\":\"Unknown\",\"deviceStatus\":\"203\",\"wipedTimestamp\":null,\"lockedTimestamp\":null,\"msg\":null,\"lostTimestamp\":\"\",\"lostModeEnabled\":false,\"thisDevice\":false,\"lostDevice\":null},{\"canWipeAfterLock\":false,\"remoteWipe\":null,\"locFoundEnabled\":false,\"location\":null,\"deviceModel\":\"iMac12_1\",\"remoteLock\":null,\"activationLocked\":false,\"locationEnabled\":true,\"rawDeviceModel\":\"iMac12,1\",\"modelDisplayName\":\"iMac\",\"lostModeCapable\":false,\"id\":\"FDSFwqeqwe012/djasodij2131easASD/dqwid1\",\"deviceDisplayName\":\"iMac 21.5\\\"\",\"darkWake\":false,\"locationCapable\":true,\"maxMsgChar\":500,\"name\":\"MyiMac\",\"batteryLevel\":0.0,\"features\":{\"CLT\":false,\"CWP\":false,\"WMG\":false,\"XRM\":false,\"CLK\":false,\"SND\":true,\"LST\":false,\"KEY\":true,\"WIP\":true,\"LOC\":true,\"LLC\":false,\"MSG\":true,\"LMG\":true,\"LCK\":true,\"REM\":false,\"SVP\":false,\"TEU\":false,\"LKL\":true,\"LKM\":true,\"PIN\":true,\"KPD\":true},\"deviceClass\":\"iMac\",\"wipeInProgress\":false,\"passcodeLength\":4,\"mesg\":null,\"isMac\":true,\"snd\":null,\"isLocating\":true,\"trackingInfo\":null,\"deviceColor\":null,\"batteryStatus\":\"Unknown\",\"deviceStatus\":\"203\",\"wipedTimestamp\":null,\"lockedTimestamp\":null,\"msg\":null,\"lostTimestamp\":\"\",\"lostModeEnabled\":false,\"thisDevice\":false,\"lostDevice\":null},{\"canWipeAfterLock\":true,\"remoteWipe\":null,\"locFoundEnabled\":false,\"location\":null,\"deviceModel\":\"iPad2_5\",\"remoteLock\":null,\"activationLocked\":true,\"locationEnabled\":true,\"rawDeviceModel\":\"iPad2,5\",\"modelDisplayName\":\"iPad\",\"lostModeCapable\":true,\"id\":\"dbdbdbd/DSFOJ14/wqdojsd982e321DAWD124\",\"deviceDisplayName\":\"iPad mini\",\"darkWake\":false,\"locationCapable\":true,\"maxMsgChar\":160,\"name\":\"MyiPadMini\",\"batteryLevel\":0.7233946,\"features\":{\"CLT\":false,\"CWP\":false,\"WMG\":true,\"XRM\":false,\"CLK\":false,\"SND\":true,\"LST\":true,\"KEY\":true,\"WIP\":true,\"LOC\":true,\"LLC\":false,\"MSG\":true,\"LMG\":false,\"LCK\":true,\"REM\":false,\"SVP\":false,\"TEU\":true,\"LKL\":true,\"LKM\":false,\"PIN\":false,\"KPD\":true},\"deviceClass\":\"iPad\",\"wipeInProgress\":false,\"passcodeLength\":4,\"mesg\":null,\"isMac\":false,\"snd\":null,\"isLocating\":true,\"trackingInfo\":null,\"deviceColor\":null,\"batteryStatus\":\"NotCharging\",\"deviceStatus\":\"203\",\"wipedTimestamp\":null,\"lockedTimestamp\":null,\"msg\":null,\"lostTimestamp\":\"\",\"lostModeEnabled\":false,\"thisDevice\":false,\"lostDevice\":null}],\"userInfo\":{\"lastName\":\"Bar\",\"firstName\":\"Foo\"},\"userPreferences\":{\"touchPrefs\":{},\"activationProhibitedDevices\":{\"0000000000000000000000000000000000000000000000000\":\"111111111111111111\"},\"activationUpgradeEmailSent\":true,\"lastUpdatedTime\":1384881308761,\"builder\":null},\"serverContext\":{\"minTrackLocThresholdInMts\":100,\"prefsUpdateTime\":1384881308761,\"maxDeviceLoadTime\":60000,\"authToken\":\"ABABABABABABAB\",\"classicUser\":false,\"sessionLifespan\":900000,\"serverTimestamp\":1392159219259,\"enableMapStats\":true,\"imageBaseUrl\":\"https://statici.icloud.com\",\"deviceLoadStatus\":\"200\",\"preferredLanguage\":\"sv-se\",\"clientId\":\"0101010101010101010101011\",\"lastSessionExtensionTime\":null,\"trackInfoCacheDurationInSecs\":86400,\"isHSA\":false,\"timezone\":{\"tzCurrentName\":\"Pacific Standard Time\",\"previousTransition\":1383469199999,\"previousOffset\":-25200000,\"currentOffset\":-28800000,\"tzName\":\"America/Los_Angeles\"},\"callbackIntervalInMS\":2000,\"cloudUser\":true,\"validRegion\":true,\"maxLocatingTime\":90000,\"prsId\":121212121212,\"macCount\":0}}";
 }